@@ -2,8 +2,18 @@ package Canvas;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import Persistence.LazyDiagram;
 import Shapes.*;
 
 /**
@@ -12,21 +22,34 @@ import Shapes.*;
  * 使用觀察者模式處理形狀變化
  * 使用狀態模式管理不同的操作模式
  */
-public class CanvasPanel extends JPanel {
+public class CanvasPanel extends JPanel implements Scrollable {
     public enum Mode {
         SELECT, ASSOCIATION, GENERALIZATION, COMPOSITION, RECT, OVAL
     }
 
     private Mode currentMode = Mode.SELECT; // 當前模式
-    private List<BaseShape> shapes = new ArrayList<>(); // 儲存所有形狀
-    private List<BaseShape> selectedShapes = new ArrayList<>(); // 儲存被選取的形狀
+    private ShapeStore shapeStore = new ShapeStore(); // 儲存所有頂層形狀及其空間索引
+    private final Set<BaseShape> selectedShapes = new LinkedHashSet<>(); // 儲存被選取的形狀，依選取順序排列，以物件識別比較
     private Point startPoint; // 拖曳起始點
     private Point endPoint;// 拖曳的目的點
     private BaseShape currentShape; // 當前操作的形狀
     private ShapeFactory shapeFactory = new ShapeFactory(); // 形狀工廠
-    private int nextDepth = 0; // 下一個形狀的深度值
     private int DeltaX = 0;
     private int DeltaY = 0;
+    private DirtyRegion dirtyRegion = new DirtyRegion(); // 本次操作需要重繪的區域
+    private List<BaseShape> visibleShapes = new ArrayList<>(); // 繪製時重複使用的暫存列表
+    private double scale = 1.0; // 縮放比例，畫面座標 = 世界座標 * scale
+    private ZoomPanHandler zoomPanHandler = new ZoomPanHandler(); // 處理滾輪縮放與中鍵平移
+    private DragLayer dragLayer = new DragLayer(); // 拖曳時快取不會移動的形狀
+    private PortHighlight portHighlight = new PortHighlight(); // 拖曳連結時標示即將連接的連接埠
+    private DragCoalescer dragCoalescer = new DragCoalescer(this); // 將同一幀內的拖曳事件合併成一次處理
+    private LazyDiagram lazyDiagram; // 延遲載入中的圖表，所有頂層元素都建立後設為 null
+
+    private static final double MIN_SCALE = 0.05;
+    private static final double MAX_SCALE = 8.0;
+    private static final int CANVAS_MARGIN = 200; // 畫布在最遠形狀之外保留的空間（世界座標）
+    private static final int PORT_SNAP_RADIUS = 12; // 游標在形狀外時吸附連接埠的半徑（畫面像素）
+    private static final Comparator<BaseShape> DEPTH_ORDER = Comparator.comparingInt(BaseShape::getDepth); // 由下而上
 
     // 使用模式處理不同的操作
     private ModeHandler modeHandler;
@@ -84,42 +107,170 @@ public class CanvasPanel extends JPanel {
                 handleMouseDragged(e);
             }
         });
+
+        // 滾輪縮放
+        addMouseWheelListener(new MouseWheelListener() {
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                zoomPanHandler.handleWheel(e, CanvasPanel.this);
+            }
+        });
     }
 
     /**
      * 處理滑鼠拖曳事件
+     * 只記錄最新的游標位置，由 DragCoalescer 每幀處理一次
      */
     private void handleMouseDragged(MouseEvent e) {
-        Point currentPoint = e.getPoint();
+        if (zoomPanHandler.isPanning()) {
+            zoomPanHandler.handlePanDrag(e, this);
+            return;
+        }
+        dragCoalescer.post(toWorld(e.getPoint()));
+    }
+
+    /**
+     * 處理合併後的拖曳：套用最新的游標位置，更新連結並重繪一次
+     * @param currentPoint 游標位置（世界座標）
+     */
+    private void processDrag(Point currentPoint) {
         modeHandler.handleDrag(currentMode, currentPoint, this);
-        repaint();
+        repaintDirtyRegion();
     }
 
     /**
      * 處理滑鼠按下事件
      */
     private void handleMousePressed(MouseEvent e) {
-        startPoint = e.getPoint();
+        dragCoalescer.flush();
+        if (SwingUtilities.isMiddleMouseButton(e)) {
+            zoomPanHandler.startPan(e, this);
+            return;
+        }
+        startPoint = toWorld(e.getPoint());
         modeHandler.handlePress(currentMode, startPoint, this);
-        repaint();
+        repaintDirtyRegion();
     }
 
     /**
      * 處理滑鼠釋放事件
      */
     private void handleMouseReleased(MouseEvent e) {
-        Point endPoint = e.getPoint();
+        if (zoomPanHandler.isPanning()) {
+            if (SwingUtilities.isMiddleMouseButton(e)) {
+                zoomPanHandler.endPan();
+            }
+            return;
+        }
+        // 放開前先套用尚未處理的拖曳，讓形狀停在最後的位置
+        dragCoalescer.flush();
+        Point endPoint = toWorld(e.getPoint());
         modeHandler.handleRelease(currentMode, endPoint, this);
         currentShape = null;
+        repaintDirtyRegion();
+    }
+
+    /**
+     * 只重繪本次操作變動過的區域
+     */
+    private void repaintDirtyRegion() {
+        Rectangle region = dirtyRegion.take();
+        if (region != null) {
+            updateCanvasSize();
+            repaint(toScreen(region));
+        }
+    }
+
+    /**
+     * 將畫面座標轉換為世界座標
+     */
+    private Point toWorld(Point screenPoint) {
+        return new Point((int) Math.floor(screenPoint.x / scale), (int) Math.floor(screenPoint.y / scale));
+    }
+
+    /**
+     * 將世界座標的矩形轉換為涵蓋它的畫面座標矩形
+     */
+    private Rectangle toScreen(Rectangle worldRect) {
+        int x = (int) Math.floor(worldRect.x * scale);
+        int y = (int) Math.floor(worldRect.y * scale);
+        int maxX = (int) Math.ceil((worldRect.x + worldRect.width) * scale);
+        int maxY = (int) Math.ceil((worldRect.y + worldRect.height) * scale);
+        return new Rectangle(x, y, maxX - x + 1, maxY - y + 1);
+    }
+
+    /**
+     * 將畫面座標的矩形轉換為涵蓋它的世界座標矩形
+     */
+    private Rectangle toWorld(Rectangle screenRect) {
+        int x = (int) Math.floor(screenRect.x / scale);
+        int y = (int) Math.floor(screenRect.y / scale);
+        int maxX = (int) Math.ceil((screenRect.x + screenRect.width) / scale);
+        int maxY = (int) Math.ceil((screenRect.y + screenRect.height) / scale);
+        return new Rectangle(x, y, maxX - x, maxY - y);
+    }
+
+    /**
+     * 依照所有形狀的範圍與縮放比例調整畫布大小，讓捲軸可以捲到每個形狀
+     */
+    private void updateCanvasSize() {
+        Rectangle extent = shapeStore.getExtent();
+        if (lazyDiagram != null) {
+            extent.add(lazyDiagram.getExtent());
+        }
+        Dimension size = new Dimension(
+                (int) Math.ceil((extent.x + extent.width + CANVAS_MARGIN) * scale),
+                (int) Math.ceil((extent.y + extent.height + CANVAS_MARGIN) * scale));
+        if (!size.equals(getPreferredSize())) {
+            setPreferredSize(size);
+            revalidate();
+        }
+    }
+
+    /**
+     * 設定縮放比例，並讓錨點下的世界座標維持在畫面上的同一個位置
+     * @param newScale 新的縮放比例
+     * @param anchor 錨點（畫面座標）
+     */
+    public void setScale(double newScale, Point anchor) {
+        newScale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, newScale));
+        if (newScale == scale) {
+            return;
+        }
+
+        double worldX = anchor.x / scale;
+        double worldY = anchor.y / scale;
+        scale = newScale;
+        updateCanvasSize();
+
+        JViewport viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, this);
+        if (viewport != null) {
+            // 立即完成排版，才能把視窗位置設定到新的畫布大小範圍內
+            viewport.validate();
+            Point viewPosition = viewport.getViewPosition();
+            int offsetX = anchor.x - viewPosition.x;
+            int offsetY = anchor.y - viewPosition.y;
+            zoomPanHandler.scrollTo(viewport,
+                    (int) Math.round(worldX * scale) - offsetX,
+                    (int) Math.round(worldY * scale) - offsetY);
+        }
         repaint();
     }
 
+    /**
+     * 取得縮放比例
+     * @return 縮放比例
+     */
+    public double getScale() {
+        return scale;
+    }
+
     /**
      * 處理形狀移動時，更新所有相關連結的位置
      */
     public void updateLinksForShape(BaseShape shape) {
         LinkUpdater updater = new LinkUpdater();
-        updater.updateLinksForShape(shape, shapes, DeltaX, DeltaY);
+        updater.updateLinksForShape(shape, shapeStore, dirtyRegion, DeltaX, DeltaY);
     }
 
     /**
@@ -150,10 +301,172 @@ public class CanvasPanel extends JPanel {
      * 清除畫布上的所有物件
      */
     public void clearAll() {
-        shapes.clear();
+        List<BaseShape> removed = new ArrayList<>(shapeStore.getShapes());
+        lazyDiagram = null;
+        shapeStore.clear();
+        SpriteCache.getInstance().clear();
+        selectedShapes.clear();
+        updateCanvasSize();
+        repaint();
+        fireEdit(EditListener.Edit.CLEAR, List.of(), removed);
+    }
+
+    /**
+     * 加入編輯監聽器，模型改變後會通知它
+     * @param listener 監聽器
+     */
+    public void addEditListener(EditListener listener) {
+        listenerList.add(EditListener.class, listener);
+    }
+
+    public void removeEditListener(EditListener listener) {
+        listenerList.remove(EditListener.class, listener);
+    }
+
+    public EditListener[] getEditListeners() {
+        return listenerList.getListeners(EditListener.class);
+    }
+
+    private void fireEdit(EditListener.Edit edit, Collection<? extends BaseShape> changed,
+                          Collection<? extends BaseShape> removed) {
+        for (EditListener listener : getEditListeners()) {
+            listener.edited(edit, changed, removed);
+        }
+    }
+
+    /**
+     * 畫布上是否已建立圖表的所有形狀，延遲載入中的圖表還有尚未建立的形狀時回傳 false
+     */
+    public boolean isFullyLoaded() {
+        return lazyDiagram == null;
+    }
+
+    /**
+     * 將畫布上的圖表擷取為欄式形狀表，延遲載入中的圖表會先建立其餘的形狀
+     * @return 形狀表
+     * @throws IOException 延遲載入的圖表檔案無法讀取
+     */
+    public ShapeTable captureTable() throws IOException {
+        return captureTable(new IdentityHashMap<>());
+    }
+
+    /**
+     * 將畫布上的圖表擷取為欄式形狀表，並記錄每個元素所在的列
+     * @param rows 擷取時寫入元素 -> 列號，必須以物件識別比較
+     * @return 形狀表
+     * @throws IOException 延遲載入的圖表檔案無法讀取
+     */
+    public ShapeTable captureTable(Map<BaseShape, Integer> rows) throws IOException {
+        if (lazyDiagram != null) {
+            addLazyShapes(lazyDiagram.materializeAll(this::isOnCanvas));
+        }
+        return ShapeTable.capture(shapeStore.getShapes(), rows);
+    }
+
+    /**
+     * 以形狀表的內容取代畫布上的圖表
+     * @param table 形狀表
+     */
+    public void loadTable(ShapeTable table) {
+        loadTable(table, new BaseShape[table.size()]);
+    }
+
+    /**
+     * 以形狀表的內容取代畫布上的圖表，並取得每一列建立的物件
+     * @param table 形狀表
+     * @param objects 長度至少為列數的陣列，第 row 個元素會是第 row 列的物件
+     */
+    public void loadTable(ShapeTable table, BaseShape[] objects) {
+        List<BaseShape> shapes = table.materialize(objects);
+        List<BaseShape> removed = new ArrayList<>(shapeStore.getShapes());
+        lazyDiagram = null;
+        shapeStore.clear();
+        SpriteCache.getInstance().clear();
+        selectedShapes.clear();
+        shapeStore.addAll(shapes);
+        for (BaseShape shape : shapes) {
+            if (shape.isSelected()) {
+                selectedShapes.add(shape);
+            }
+        }
+        updateCanvasSize();
+        repaint();
+        fireEdit(EditListener.Edit.LOAD, shapes, removed);
+    }
+
+    /**
+     * 以延遲載入的圖表取代畫布上的圖表，形狀在畫面捲到它們時才建立
+     * 形狀建立時以 LOAD 通知編輯監聽器
+     * @param diagram 延遲載入的圖表
+     */
+    public void openLazy(LazyDiagram diagram) {
+        List<BaseShape> removed = new ArrayList<>(shapeStore.getShapes());
+        shapeStore.clear();
+        SpriteCache.getInstance().clear();
         selectedShapes.clear();
-        nextDepth = 0;
+        lazyDiagram = diagram;
+        // 檔案中的頂層形狀深度為 0 到數量減一，畫布上新建立的形狀放在它們之上
+        shapeStore.reserveDepths(diagram.getRootCount());
+        updateCanvasSize();
         repaint();
+        fireEdit(EditListener.Edit.LOAD, List.of(), removed);
+    }
+
+    /**
+     * 建立延遲載入的圖表中與可見範圍相交的形狀
+     */
+    private void materializeVisible() {
+        Rectangle visible = getVisibleRect();
+        if (lazyDiagram == null || visible.isEmpty()) {
+            return;
+        }
+        try {
+            if (addLazyShapes(lazyDiagram.materialize(toWorld(visible), this::isOnCanvas))) {
+                // 新的形狀可能超出這次的重繪區域
+                repaint();
+            }
+        } catch (IOException e) {
+            lazyDiagram = null;
+            // 繪製途中不能開啟對話框
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                    "無法讀取圖表的其餘部分：" + e.getMessage(), "錯誤", JOptionPane.ERROR_MESSAGE));
+        }
+    }
+
+    /**
+     * 將延遲載入的圖表新建立的頂層形狀依深度加入畫布
+     * @return 是否有加入形狀
+     */
+    private boolean addLazyShapes(List<BaseShape> shapes) {
+        List<BaseShape> shifted = new ArrayList<>();
+        for (BaseShape shape : shapes) {
+            shapeStore.add(shape, shape.getDepth(), shifted);
+            if (shape.isSelected()) {
+                selectedShapes.add(shape);
+            }
+        }
+        if (lazyDiagram.isComplete()) {
+            lazyDiagram = null; // 釋放檔案映射
+        }
+        if (shapes.isEmpty()) {
+            return false;
+        }
+        if (shifted.isEmpty()) {
+            fireEdit(EditListener.Edit.LOAD, shapes, List.of());
+        } else {
+            // 讓出深度而往下移的形狀也一併通知，監聽器記錄的深度才會與畫布一致
+            Set<BaseShape> changed = new LinkedHashSet<>(shapes);
+            changed.addAll(shifted);
+            fireEdit(EditListener.Edit.LOAD, changed, List.of());
+        }
+        return true;
+    }
+
+    /**
+     * 形狀（或它所屬的頂層群組）是否仍在畫布上
+     */
+    private boolean isOnCanvas(BaseShape shape) {
+        return shapeStore.contains(shape.getRoot());
     }
 
     /**
@@ -161,13 +474,14 @@ public class CanvasPanel extends JPanel {
      */
     public void groupSelectedShapes() {
         if (selectedShapes.size() > 1) {
-            CompositeShape group = shapeManager.createGroup(selectedShapes, shapes, nextDepth++);
+            CompositeShape group = shapeManager.createGroup(selectedShapes, shapeStore);
             if (group != null) {
-                shapes.add(group);
+                shapeStore.add(group);
                 selectedShapes.clear();
                 selectedShapes.add(group);
                 group.setSelected(true);
                 repaint();
+                fireEdit(EditListener.Edit.GROUP, List.of(group), List.of());
             }
         }
     }
@@ -184,15 +498,32 @@ public class CanvasPanel extends JPanel {
      * @param deepUngroup 是否深度解除群組（遞迴展開所有巢狀群組）
      */
     public void ungroupSelectedShape(boolean deepUngroup) {
-        if (selectedShapes.size() == 1 && selectedShapes.get(0) instanceof CompositeShape) {
-            CompositeShape group = (CompositeShape) selectedShapes.get(0);
+        if (selectedShapes.size() == 1 && firstSelectedShape() instanceof CompositeShape) {
+            CompositeShape group = (CompositeShape) firstSelectedShape();
+            List<BaseShape> removedGroups = new ArrayList<>();
+            collectGroups(group, deepUngroup, removedGroups);
 
             if (deepUngroup && shapeManager instanceof ConcreteShapeManager) { //複合式Group
-                ((ConcreteShapeManager) shapeManager).deepUngroupShape(group, shapes, selectedShapes);
+                ((ConcreteShapeManager) shapeManager).deepUngroupShape(group, shapeStore, selectedShapes);
             } else {
-                shapeManager.ungroupShape(group, shapes, selectedShapes); //單層Group
+                shapeManager.ungroupShape(group, shapeStore, selectedShapes); //單層Group
             }
             repaint();
+            fireEdit(EditListener.Edit.UNGROUP, new ArrayList<>(selectedShapes), removedGroups);
+        }
+    }
+
+    /**
+     * 收集解除群組時會消失的群組，深度解除時包含所有巢狀群組
+     */
+    private void collectGroups(CompositeShape group, boolean nested, List<BaseShape> result) {
+        result.add(group);
+        if (nested) {
+            for (BaseShape child : group.getShapes()) {
+                if (child instanceof CompositeShape childGroup) {
+                    collectGroups(childGroup, true, result);
+                }
+            }
         }
     }
 
@@ -201,9 +532,97 @@ public class CanvasPanel extends JPanel {
      */
     public void deleteSelectedShapes() {
         ShapeDeleter deleter = new ShapeDeleter();
-        deleter.deleteShapes(selectedShapes, shapes);
+        Set<BaseShape> removed = deleter.deleteShapes(selectedShapes, shapeStore);
         selectedShapes.clear();
         repaint();
+        fireEdit(EditListener.Edit.DELETE, List.of(), removed);
+    }
+
+    /**
+     * 將選取的形狀移到最上層，保持它們之間原本的上下順序
+     */
+    public void bringSelectedToFront() {
+        List<BaseShape> ordered = selectedInDepthOrder();
+        for (BaseShape shape : ordered) {
+            shapeStore.bringToFront(shape);
+        }
+        repaintReordered(ordered, ordered);
+    }
+
+    /**
+     * 將選取的形狀移到最下層，保持它們之間原本的上下順序
+     */
+    public void sendSelectedToBack() {
+        List<BaseShape> ordered = selectedInDepthOrder();
+        for (int i = ordered.size() - 1; i >= 0; i--) {
+            shapeStore.sendToBack(ordered.get(i));
+        }
+        repaintReordered(ordered, ordered);
+    }
+
+    /**
+     * 將選取的形狀各往上移一層
+     * 由最上層的選取形狀開始處理，上方緊鄰的選取形狀無法移動時，下方的也不移動，相鄰的選取形狀不會互相交換
+     */
+    public void bringSelectedForward() {
+        List<BaseShape> ordered = selectedInDepthOrder();
+        List<BaseShape> reordered = new ArrayList<>(ordered); // 選取的形狀與被交換的鄰居
+        Set<BaseShape> stuck = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = ordered.size() - 1; i >= 0; i--) {
+            BaseShape shape = ordered.get(i);
+            BaseShape above = shapeStore.findAbove(shape);
+            if (above == null || stuck.contains(above)) {
+                stuck.add(shape);
+            } else {
+                shapeStore.moveUp(shape);
+                reordered.add(above);
+            }
+        }
+        repaintReordered(ordered, reordered);
+    }
+
+    /**
+     * 將選取的形狀各往下移一層
+     * 由最下層的選取形狀開始處理，下方緊鄰的選取形狀無法移動時，上方的也不移動，相鄰的選取形狀不會互相交換
+     */
+    public void sendSelectedBackward() {
+        List<BaseShape> ordered = selectedInDepthOrder();
+        List<BaseShape> reordered = new ArrayList<>(ordered); // 選取的形狀與被交換的鄰居
+        Set<BaseShape> stuck = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (BaseShape shape : ordered) {
+            BaseShape below = shapeStore.findBelow(shape);
+            if (below == null || stuck.contains(below)) {
+                stuck.add(shape);
+            } else {
+                shapeStore.moveDown(shape);
+                reordered.add(below);
+            }
+        }
+        repaintReordered(ordered, reordered);
+    }
+
+    /**
+     * 取得依深度由下而上排列的選取形狀
+     */
+    private List<BaseShape> selectedInDepthOrder() {
+        List<BaseShape> ordered = new ArrayList<>(selectedShapes);
+        ordered.sort(DEPTH_ORDER);
+        return ordered;
+    }
+
+    /**
+     * 重繪改變順序的形狀所在的範圍
+     * @param shapes 選取的形狀
+     * @param reordered 深度改變的形狀
+     */
+    private void repaintReordered(List<BaseShape> shapes, List<BaseShape> reordered) {
+        for (BaseShape shape : shapes) {
+            dirtyRegion.add(shape);
+        }
+        repaintDirtyRegion();
+        if (!shapes.isEmpty()) {
+            fireEdit(EditListener.Edit.REORDER, reordered, List.of());
+        }
     }
 
     /**
@@ -211,10 +630,14 @@ public class CanvasPanel extends JPanel {
      */
     public void renameSelectedShape(String name) {
         if (!selectedShapes.isEmpty()) {
-            BaseShape shape = selectedShapes.get(0);
+            BaseShape shape = firstSelectedShape();
             if (shape instanceof BasicShape) {
+                dirtyRegion.add(shape);
                 ((BasicShape) shape).setName(name);
-                repaint();
+                shapeStore.update(shape);
+                dirtyRegion.add(shape);
+                repaintDirtyRegion();
+                fireEdit(EditListener.Edit.RENAME, List.of(shape), List.of());
             }
         }
     }
@@ -224,18 +647,30 @@ public class CanvasPanel extends JPanel {
      */
     public void customizeLabelStyle(String name, String shape, Color color, int fontSize) {
         if (selectedShapes.size() == 1) {
-            BaseShape baseShape = selectedShapes.get(0);
+            BaseShape baseShape = firstSelectedShape();
             if (baseShape instanceof BasicShape) {
                 BasicShape shape1 = (BasicShape) baseShape;
+                dirtyRegion.add(shape1);
                 shape1.setName(name);
                 shape1.setLabelShape(shape);
                 shape1.setLabelColor(color);
                 shape1.setFontSize(fontSize);
-                repaint();
+                shapeStore.update(shape1);
+                dirtyRegion.add(shape1);
+                repaintDirtyRegion();
+                fireEdit(EditListener.Edit.LABEL_STYLE, List.of(shape1), List.of());
             }
         }
     }
 
+    /**
+     * 取得最先被選取的形狀
+     * @return 形狀，沒有選取時回傳 null
+     */
+    private BaseShape firstSelectedShape() {
+        return selectedShapes.isEmpty() ? null : selectedShapes.iterator().next();
+    }
+
     /**
      * 檢查是否有選取的形狀
      */
@@ -248,7 +683,7 @@ public class CanvasPanel extends JPanel {
      */
     public String getSelectedShapeName() {
         if (!selectedShapes.isEmpty()) {
-            BaseShape shape = selectedShapes.get(0);
+            BaseShape shape = firstSelectedShape();
             if (shape instanceof BasicShape) {
                 return ((BasicShape) shape).getName();
             }
@@ -259,21 +694,70 @@ public class CanvasPanel extends JPanel {
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
-        Graphics2D g2d = (Graphics2D) g;
+        Graphics2D g2d = (Graphics2D) g.create();
 
-        // 繪製所有形狀
-        for (BaseShape shape : shapes) {
-            shape.draw(g2d);
+        // 只繪製與重繪區域相交的形狀，放在捲動面板中時重繪區域不會超出可見範圍
+        Rectangle clip = g2d.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        Rectangle visibleWorld = toWorld(clip);
+        materializeVisible();
+
+        if (dragLayer.isValidFor(this)) {
+            // 拖曳中：貼上靜態背景，只繪製移動中的形狀與其連結
+            dragLayer.paintBackground(g2d);
+            g2d.scale(scale, scale);
+            LevelOfDetail.setScaleHint(g2d);
+            dragLayer.paintMovingShapes(g2d, visibleWorld, shapeStore);
+        } else {
+            g2d.scale(scale, scale);
+            LevelOfDetail.setScaleHint(g2d);
+            shapeStore.findShapesIn(visibleWorld, visibleShapes);
+            for (int i = 0; i < visibleShapes.size(); i++) {
+                visibleShapes.get(i).draw(g2d);
+            }
+            visibleShapes.clear();
         }
 
         // 繪製當前正在操作的形狀（如選取框）
         if (currentShape != null) {
             currentShape.draw(g2d);
         }
+        portHighlight.paint(g2d);
+        g2d.dispose();
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return 16;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.HORIZONTAL ? visibleRect.width : visibleRect.height;
+    }
+
+    /**
+     * 畫布比視窗小時延伸到填滿整個視窗
+     */
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return getParent() instanceof JViewport && getParent().getWidth() > getPreferredSize().width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return getParent() instanceof JViewport && getParent().getHeight() > getPreferredSize().height;
     }
 
     // Getter
-    public List<BaseShape> getShapes() { return shapes; }
+    public Collection<BaseShape> getShapes() { return shapeStore.getShapes(); }
 
     /**
      * 模式處理interface
@@ -335,6 +819,10 @@ public class CanvasPanel extends JPanel {
                 case SELECT:
                     selectHandler.handleRelease(point, canvas);
                     break;
+                case RECT:
+                case OVAL:
+                    shapeHandler.handleRelease(canvas);
+                    break;
                 case ASSOCIATION:
                 case GENERALIZATION:
                 case COMPOSITION:
@@ -349,29 +837,43 @@ public class CanvasPanel extends JPanel {
      * 支援群組物件的框選和重新群組
      */
     private static class SelectModeHandler {
+        private Rectangle marquee; // 上一次處理過的選取框，尚未框選時為 null
+        private final List<Rectangle> changedAreas = new ArrayList<>(); // 兩次選取框之間的差異區域
+        private final List<BaseShape> candidates = new ArrayList<>(); // 差異區域內的候選形狀
+        private boolean moved = false; // 這次拖曳是否移動了選取的形狀
+
         public void handlePress(Point point, CanvasPanel canvas) {
-            boolean found = false;
+            marquee = null;
+            moved = false;
+            for (BaseShape shape : canvas.selectedShapes) {
+                canvas.dirtyRegion.add(shape);
+            }
             canvas.selectionManager.clearSelection(canvas.selectedShapes);
 
-            // 根據深度從上到下找到點擊的物件
-            for (int i = canvas.shapes.size() - 1; i >= 0; i--) {
-                BaseShape shape = canvas.shapes.get(i);
-                if (shape.contains(point)) {
-                    canvas.selectedShapes.add(shape);
-                    shape.setSelected(true);
-                    found = true;
-                    break;
-                }
+            // 透過空間索引找到點擊位置最上層的物件
+            BaseShape shape = canvas.shapeStore.findShapeAt(point);
+            if (shape != null) {
+                canvas.selectedShapes.add(shape);
+                shape.setSelected(true);
+                canvas.dirtyRegion.add(shape);
             }
         }
 
         public void handleDrag(Point point, CanvasPanel canvas) {
-            if (!canvas.selectedShapes.isEmpty()) {
+            // 框選期間形狀會即時被選取，已經開始框選時繼續框選，不移動形狀
+            if (marquee == null && !canvas.selectedShapes.isEmpty()) {
+                if (!canvas.dragLayer.isActive()) {
+                    canvas.dragLayer.build(canvas, canvas.selectedShapes);
+                }
                 canvas.settingDeltaX_DeltaY(point);
+                moved = true;
 
                 // 移動選取的物件
                 for (BaseShape shape : canvas.selectedShapes) {
+                    canvas.dirtyRegion.add(shape);
                     shape.move(canvas.DeltaX, canvas.DeltaY);
+                    canvas.shapeStore.update(shape);
+                    canvas.dirtyRegion.add(shape);
                 }
 
                 // 更新所有相關連結
@@ -385,31 +887,116 @@ public class CanvasPanel extends JPanel {
                 if (!(canvas.currentShape instanceof SelectionRectangle)) {
                     canvas.currentShape = new SelectionRectangle(canvas.startPoint, point);
                 } else {
+                    canvas.dirtyRegion.add(canvas.currentShape);
                     (canvas.currentShape).resize(canvas.startPoint, point);
                 }
+                canvas.dirtyRegion.add(canvas.currentShape);
+
+                // 拖曳期間即時更新框選結果
+                updateMarquee(((SelectionRectangle) canvas.currentShape).getRectangle(), canvas);
             }
         }
 
         public void handleRelease(Point point, CanvasPanel canvas) {
+            if (canvas.dragLayer.isActive()) {
+                // 拖曳結束，移動的形狀回到原本的繪製順序
+                canvas.dragLayer.release(canvas.dirtyRegion);
+            }
+
             if (canvas.currentShape instanceof SelectionRectangle) {
                 Rectangle selectionRect = ((SelectionRectangle) canvas.currentShape).getRectangle();
+                canvas.dirtyRegion.add(canvas.currentShape);
 
-                selectShapesInRectangle(selectionRect, canvas);
+                updateMarquee(selectionRect, canvas);
 
                 canvas.currentShape = null;
             }
+            marquee = null;
+
+            if (moved) {
+                // 移動的形狀與連到它們的連結（以最外層群組為單位）都改變了
+                Set<BaseShape> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (BaseShape shape : canvas.selectedShapes) {
+                    changed.add(shape);
+                    collectAttachedLinkRoots(shape, changed);
+                }
+                moved = false;
+                canvas.fireEdit(EditListener.Edit.MOVE, changed, List.of());
+            }
+        }
+
+        private void collectAttachedLinkRoots(BaseShape shape, Set<BaseShape> collector) {
+            if (shape instanceof BasicShape basicShape) {
+                for (Link link : basicShape.getOutgoingLinks()) {
+                    collector.add(link.getRoot());
+                }
+                for (Link link : basicShape.getIncomingLinks()) {
+                    collector.add(link.getRoot());
+                }
+            } else if (shape instanceof CompositeShape composite) {
+                for (BaseShape child : composite.getShapes()) {
+                    collectAttachedLinkRoots(child, collector);
+                }
+            }
         }
 
         /**
-         * 框選矩形內的所有形狀
+         * 將框選結果更新為新選取框內的形狀
+         * 只有與新舊選取框差異區域相交的形狀可能改變選取狀態，因此只以空間索引查詢差異區域，
+         * 再以 isShapeInSelectionArea 重新判斷這些候選形狀
          */
-        private void selectShapesInRectangle(Rectangle selectionRect, CanvasPanel canvas) {
-            for (BaseShape shape : canvas.shapes) {
-                if (isShapeInSelectionArea(shape, selectionRect)) {
-                    shape.setSelected(true);
-                    canvas.selectedShapes.add(shape);
+        private void updateMarquee(Rectangle selectionRect, CanvasPanel canvas) {
+            changedAreas.clear();
+            if (marquee == null) {
+                changedAreas.add(new Rectangle(selectionRect));
+            } else if (!marquee.equals(selectionRect)) {
+                subtract(marquee, selectionRect, changedAreas);
+                subtract(selectionRect, marquee, changedAreas);
+            }
+            marquee = new Rectangle(selectionRect);
+
+            candidates.clear();
+            for (Rectangle area : changedAreas) {
+                // 向外擴張一個單位，邊界上的形狀也會被重新判斷，多出來的候選形狀不影響結果
+                area.grow(1, 1);
+                canvas.shapeStore.findCandidatesIn(area, candidates);
+            }
+
+            for (BaseShape shape : candidates) {
+                boolean inside = isShapeInSelectionArea(shape, selectionRect);
+                if (inside ? canvas.selectedShapes.add(shape) : canvas.selectedShapes.remove(shape)) {
+                    shape.setSelected(inside);
+                    canvas.dirtyRegion.add(shape);
                 }
             }
+            candidates.clear();
+        }
+
+        /**
+         * 將 a 減去 b 剩下的區域拆成最多四個矩形（上、下、左、右）加入 result
+         */
+        private void subtract(Rectangle a, Rectangle b, List<Rectangle> result) {
+            Rectangle overlap = a.intersection(b);
+            if (overlap.isEmpty()) {
+                result.add(new Rectangle(a));
+                return;
+            }
+            int aMaxX = a.x + a.width;
+            int aMaxY = a.y + a.height;
+            int oMaxX = overlap.x + overlap.width;
+            int oMaxY = overlap.y + overlap.height;
+            if (overlap.y > a.y) {
+                result.add(new Rectangle(a.x, a.y, a.width, overlap.y - a.y)); // 上
+            }
+            if (oMaxY < aMaxY) {
+                result.add(new Rectangle(a.x, oMaxY, a.width, aMaxY - oMaxY)); // 下
+            }
+            if (overlap.x > a.x) {
+                result.add(new Rectangle(a.x, overlap.y, overlap.x - a.x, overlap.height)); // 左
+            }
+            if (oMaxX < aMaxX) {
+                result.add(new Rectangle(oMaxX, overlap.y, aMaxX - oMaxX, overlap.height)); // 右
+            }
         }
 
         /**
@@ -449,76 +1036,134 @@ public class CanvasPanel extends JPanel {
         public void handlePress(Mode mode, Point point, CanvasPanel canvas) {
             canvas.currentShape = canvas.shapeFactory.createShape(mode, point);
             if (canvas.currentShape != null) {
-                canvas.currentShape.setDepth(canvas.nextDepth++);
-                canvas.shapes.add(canvas.currentShape);
+                canvas.shapeStore.add(canvas.currentShape);
+                canvas.dirtyRegion.add(canvas.currentShape);
             }
         }
 
         public void handleDrag(Point point, CanvasPanel canvas) {
             if (canvas.currentShape != null) {
                 canvas.settingDeltaX_DeltaY(point);
+                canvas.dirtyRegion.add(canvas.currentShape);
                 canvas.currentShape.move(canvas.DeltaX, canvas.DeltaY);
+                canvas.shapeStore.update(canvas.currentShape);
+                canvas.dirtyRegion.add(canvas.currentShape);
                 canvas.startPoint = point;
             }
         }
+
+        public void handleRelease(CanvasPanel canvas) {
+            if (canvas.currentShape != null) {
+                canvas.fireEdit(EditListener.Edit.CREATE, List.of(canvas.currentShape), List.of());
+            }
+        }
     }
 
     /**
      * 連結模式處理器
      */
     private static class LinkModeHandler {
+        private final Point port = new Point(); // 查詢連接埠時重複使用
+
         public void handlePress(Mode mode, Point point, CanvasPanel canvas) {
-            for (BaseShape shape : canvas.shapes) {
-                if (shape instanceof BasicShape basicShape && shape.contains(point)) {
-                    Point port = basicShape.getNearestPort(point);
-                    if (port != null) {
-                        canvas.currentShape = canvas.shapeFactory.createLink(mode, port);
-                        if (canvas.currentShape instanceof Link link) {
-                            link.setStartShape(basicShape);
-                        }
-                        canvas.currentShape.setDepth(canvas.nextDepth++);
-                        canvas.shapes.add(canvas.currentShape);
-                        break;
-                    }
+            BasicShape basicShape = findTarget(point, canvas);
+            if (basicShape != null) {
+                canvas.currentShape = canvas.shapeFactory.createLink(mode, port);
+                if (canvas.currentShape instanceof Link link) {
+                    link.setStartShape(basicShape);
                 }
+                canvas.shapeStore.add(canvas.currentShape);
+                canvas.dirtyRegion.add(canvas.currentShape);
             }
         }
 
         public void handleDrag(Point point, CanvasPanel canvas) {
             if (canvas.currentShape instanceof Link) {
+                canvas.dirtyRegion.add(canvas.currentShape);
                 ((Link) canvas.currentShape).setEndPoint(point);
+                canvas.shapeStore.update(canvas.currentShape);
+                canvas.dirtyRegion.add(canvas.currentShape);
+
+                // 標示放開滑鼠時會連接的連接埠
+                BasicShape basicShape = findTarget(point, canvas);
+                canvas.portHighlight.set(basicShape != null ? port : null, canvas.dirtyRegion);
             }
         }
 
         public void handleRelease(Mode mode, Point point, CanvasPanel canvas) {
+            canvas.portHighlight.set(null, canvas.dirtyRegion);
             if (canvas.currentShape instanceof Link link) {
-                boolean validEnd = false;
-
-                for (BaseShape shape : canvas.shapes) {
-                    if (shape instanceof BasicShape basicShape && shape.contains(point)) {
-                        Point port = basicShape.getNearestPort(point);
-
-                        if (port != null) {
-                            link.setEndPoint(port);
-                            link.setEndShape(basicShape);
-                            validEnd = true;
-                            break;
-                        }
-                    }
+                canvas.dirtyRegion.add(link);
+
+                BasicShape basicShape = findTarget(point, canvas);
+                if (basicShape != null) {
+                    link.setEndPoint(port);
+                    link.setEndShape(basicShape);
+                    canvas.shapeStore.update(link);
+                    canvas.dirtyRegion.add(link);
+                    canvas.fireEdit(EditListener.Edit.LINK, List.of(link), List.of());
+                } else {
+                    link.disconnect();
+                    canvas.shapeStore.remove(canvas.currentShape);
                 }
+            }
+        }
 
-                if (!validEnd) {
-                    canvas.shapes.remove(canvas.currentShape);
-                }
+        /**
+         * 找出游標所在或附近的基本形狀，並將要連接的連接埠寫入 port
+         */
+        private BasicShape findTarget(Point point, CanvasPanel canvas) {
+            int snapRadius = (int) Math.ceil(PORT_SNAP_RADIUS / canvas.scale);
+            return canvas.shapeStore.findPortTarget(point, snapRadius, port);
+        }
+    }
+
+    /**
+     * 連接埠標示
+     * 拖曳連結時在即將連接的連接埠畫上外框，只有標示的位置改變時才需要重繪
+     */
+    private static class PortHighlight {
+        private static final int SIZE = 6; // 標示外框向連接埠外擴張的距離（世界座標）
+
+        private final Point port = new Point();
+        private boolean visible = false;
+
+        /**
+         * 設定標示的連接埠
+         * @param newPort 連接埠位置，null 表示不標示
+         * @param dirtyRegion 位置改變時加入新舊標示的範圍
+         */
+        public void set(Point newPort, DirtyRegion dirtyRegion) {
+            if (newPort == null ? !visible : visible && port.equals(newPort)) {
+                return;
+            }
+            if (visible) {
+                dirtyRegion.add(area());
+            }
+            visible = newPort != null;
+            if (visible) {
+                port.setLocation(newPort);
+                dirtyRegion.add(area());
+            }
+        }
+
+        public void paint(Graphics2D g2d) {
+            if (visible) {
+                g2d.setColor(Color.RED);
+                g2d.drawRect(port.x - SIZE, port.y - SIZE, SIZE * 2, SIZE * 2);
             }
         }
+
+        private Rectangle area() {
+            return new Rectangle(port.x - SIZE - 1, port.y - SIZE - 1, SIZE * 2 + 3, SIZE * 2 + 3);
+        }
     }
 
     /**
      * 選取管理器介面
      */
     private interface SelectionManager {
-        void clearSelection(List<BaseShape> selectedShapes);
+        void clearSelection(Collection<BaseShape> selectedShapes);
     }
 
     /**
@@ -526,7 +1171,7 @@ public class CanvasPanel extends JPanel {
      */
     private static class ConcreteSelectionManager implements SelectionManager {
         @Override
-        public void clearSelection(List<BaseShape> selectedShapes) {
+        public void clearSelection(Collection<BaseShape> selectedShapes) {
             for (BaseShape shape : selectedShapes) {
                 shape.setSelected(false);
             }
@@ -538,8 +1183,8 @@ public class CanvasPanel extends JPanel {
      * 形狀管理器interface
      */
     private interface ShapeManager {
-        CompositeShape createGroup(List<BaseShape> selectedShapes, List<BaseShape> allShapes, int depth);
-        void ungroupShape(CompositeShape group, List<BaseShape> allShapes, List<BaseShape> selectedShapes);
+        CompositeShape createGroup(Collection<BaseShape> selectedShapes, ShapeStore allShapes);
+        void ungroupShape(CompositeShape group, ShapeStore allShapes, Collection<BaseShape> selectedShapes);
     }
 
 
@@ -549,33 +1194,35 @@ public class CanvasPanel extends JPanel {
      */
     private static class ConcreteShapeManager implements ShapeManager {
         @Override
-        public CompositeShape createGroup(List<BaseShape> selectedShapes, List<BaseShape> allShapes, int depth) {
+        public CompositeShape createGroup(Collection<BaseShape> selectedShapes, ShapeStore allShapes) {
             if (selectedShapes.size() < 2) {
                 return null; // 至少需要兩個物件才能組成群組
             }
 
-            CompositeShape group = new CompositeShape();
-            group.setDepth(depth);
-
             // 處理所有選取的形狀，包括現有的群組
+            // 如果是群組，可以選擇是否要展開
+            // 這裡我們保持群組結構，直接加入新群組中
+            List<BaseShape> members = new ArrayList<>(selectedShapes.size());
             for (BaseShape shape : selectedShapes) {
                 if (allShapes.contains(shape)) {
-                    allShapes.remove(shape);
-
-                    // 如果是群組，可以選擇是否要展開
-                    // 這裡我們保持群組結構，直接加入新群組中
-                    group.addShape(shape);
+                    members.add(shape);
                 }
             }
+            // 選取集合的順序與深度無關（框選依 R-tree 的順序加入），子元素的順序就是群組內的繪製順序
+            members.sort(DEPTH_ORDER);
 
+            // 一次從畫布移除並加入群組，避免逐一移除造成平方時間
+            allShapes.removeAll(members);
+            CompositeShape group = new CompositeShape();
+            group.addShapes(members);
             return group;
         }
 
         @Override
-        public void ungroupShape(CompositeShape group, List<BaseShape> allShapes, List<BaseShape> selectedShapes) {
+        public void ungroupShape(CompositeShape group, ShapeStore allShapes, Collection<BaseShape> selectedShapes) {
             allShapes.remove(group);
 
-            List<BaseShape> childShapes = group.getShapes();
+            List<BaseShape> childShapes = group.ungroup();
             for (BaseShape shape : childShapes) {
                 allShapes.add(shape);
                 shape.setSelected(true);
@@ -589,10 +1236,10 @@ public class CanvasPanel extends JPanel {
          * 深度解除群組
          * 遞迴地將所有巢狀群組展開為個別形狀
          */
-        public void deepUngroupShape(CompositeShape group, List<BaseShape> allShapes, List<BaseShape> selectedShapes) {
+        public void deepUngroupShape(CompositeShape group, ShapeStore allShapes, Collection<BaseShape> selectedShapes) {
             allShapes.remove(group);
 
-            List<BaseShape> childShapes = group.getShapes();
+            List<BaseShape> childShapes = group.ungroup();
             for (BaseShape shape : childShapes) {
                 if (shape instanceof CompositeShape) {
                     // 遞迴展開子群組
@@ -613,57 +1260,62 @@ public class CanvasPanel extends JPanel {
      * 負責更新形狀移動時相關連結的位置
      */
     private static class LinkUpdater {
-        public void updateLinksForShape(BaseShape shape, List<BaseShape> allShapes, int deltaX, int deltaY) {
-            // 收集所有關聯到此形狀的連結
-            List<Link> relatedLinks = new ArrayList<>();
-
-            for (BaseShape s : allShapes) {
-                if (s instanceof Link) {
-                    Link link = (Link) s;
-
-                    // 檢查此連結是否關聯到此形狀或其子形狀
-                    boolean isRelated = false;
-
-                    if (shape instanceof BasicShape) {
-                        if (link.isRelatedTo(shape)) {
-                            isRelated = true;
-                        }
-                    } else if (shape instanceof CompositeShape) {
-                        CompositeShape composite = (CompositeShape) shape;
-                        if (composite.isRelatedToLink(link)) {
-                            isRelated = true;
-                        }
-                    }
-
-                    if (isRelated) {
-                        relatedLinks.add(link);
-                    }
+        public void updateLinksForShape(BaseShape shape, ShapeStore allShapes, DirtyRegion dirtyRegion,
+                                        int deltaX, int deltaY) {
+            // 透過形狀的連結索引收集所有關聯到此形狀或其子形狀的連結
+            Set<Link> relatedLinks = Collections.newSetFromMap(new IdentityHashMap<>());
+            collectRelatedLinks(shape, relatedLinks, dirtyRegion, deltaX, deltaY);
+
+            // 移動完成後，確保所有連接點都是最新的，並更新連結在空間索引中的位置
+            // 群組內的連結改變時，更新的是它最外層群組在索引中的位置
+            Set<BaseShape> changedRoots = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Link link : relatedLinks) {
+                link.updatePosition();
+                BaseShape root = link.getRoot();
+                if (root == link) {
+                    allShapes.update(link);
+                    dirtyRegion.add(link);
+                } else {
+                    changedRoots.add(root);
                 }
             }
+            for (BaseShape root : changedRoots) {
+                if (allShapes.contains(root)) {
+                    allShapes.update(root);
+                }
+                dirtyRegion.add(root);
+            }
+        }
 
-            // 更新所有相關連結的位置
-            for (Link link : relatedLinks) {
-                if (shape instanceof BasicShape) {
-                    // 使用修正後的方法更新連接點
-                    link.updateEndpointForShape(shape, deltaX, deltaY);
-                } else if (shape instanceof CompositeShape) {
-                    // 如果是群組形狀，檢查每個子形狀
-                    CompositeShape composite = (CompositeShape) shape;
-                    List<BaseShape> childShapes = composite.getShapes();
-
-                    for (BaseShape childShape : childShapes) {
-                        if (childShape instanceof BasicShape) {
-                            // 對群組中的每個基本形狀，使用修正後的方法更新連接點
-                            link.updateEndpointForShape(childShape, deltaX, deltaY);
-                        }
-                    }
+        /**
+         * 遞迴收集連結，並以移動的基本形狀更新連結端點
+         */
+        private void collectRelatedLinks(BaseShape shape, Set<Link> collector, DirtyRegion dirtyRegion,
+                                         int deltaX, int deltaY) {
+            if (shape instanceof BasicShape basicShape) {
+                for (Link link : basicShape.getOutgoingLinks()) {
+                    collectLink(link, basicShape, collector, dirtyRegion, deltaX, deltaY);
+                }
+                for (Link link : basicShape.getIncomingLinks()) {
+                    collectLink(link, basicShape, collector, dirtyRegion, deltaX, deltaY);
+                }
+            } else if (shape instanceof CompositeShape composite) {
+                // 如果是群組形狀，檢查每個子形狀
+                for (BaseShape childShape : composite.getShapes()) {
+                    collectRelatedLinks(childShape, collector, dirtyRegion, deltaX, deltaY);
                 }
             }
+        }
 
-            // 移動完成後，確保所有連接點都是最新的
-            for (Link link : relatedLinks) {
-                link.updatePosition();
+        /**
+         * 第一次遇到連結時先記錄它移動前的繪製範圍，再更新端點
+         */
+        private void collectLink(Link link, BasicShape movedShape, Set<Link> collector, DirtyRegion dirtyRegion,
+                                 int deltaX, int deltaY) {
+            if (collector.add(link)) {
+                dirtyRegion.add(link.getRoot());
             }
+            link.updateEndpointForShape(movedShape, deltaX, deltaY);
         }
     }
 
@@ -672,57 +1324,330 @@ public class CanvasPanel extends JPanel {
      * 負責刪除形狀及其相關連結
      */
     private static class ShapeDeleter {
-        public void deleteShapes(List<BaseShape> shapesToDelete, List<BaseShape> allShapes) {
-            // 創建一個臨時列表，避免並發修改異常
-            List<BaseShape> shapesToRemove = new ArrayList<>(shapesToDelete);
-            List<BaseShape> allToRemove = new ArrayList<>();
-
-            // 對於每個要刪除的形狀
-            for (BaseShape shape : shapesToRemove) {
-                // 如果是群組，遞迴收集所有子形狀
-                if (shape instanceof CompositeShape) {
-                    collectAllShapesInGroup((CompositeShape) shape, allToRemove);
+        /**
+         * 刪除形狀以及連到它們的畫布連結
+         * @return 移除的形狀與連結，包含群組的子元素
+         */
+        public Set<BaseShape> deleteShapes(Collection<BaseShape> shapesToDelete, ShapeStore allShapes) {
+            // 收集要刪除的形狀，群組會遞迴收集所有子形狀
+            Set<BaseShape> doomed = Collections.newSetFromMap(new IdentityHashMap<>());
+            List<BasicShape> doomedBasicShapes = new ArrayList<>();
+            for (BaseShape shape : shapesToDelete) {
+                collectShape(shape, doomed, doomedBasicShapes);
+            }
+
+            // 透過形狀的連結索引找出連到被刪除形狀的畫布連結，只走訪受影響的連結
+            for (BasicShape shape : doomedBasicShapes) {
+                collectAttachedLinks(shape.getOutgoingLinks(), doomed, allShapes);
+                collectAttachedLinks(shape.getIncomingLinks(), doomed, allShapes);
+            }
+
+            // 從畫布上一次移除所有標記的形狀和連結，並將連結從端點形狀的連結索引中移除
+            allShapes.removeAll(doomed);
+            releaseRemovedShapes(doomed);
+            return doomed;
+        }
+
+        /**
+         * 收集形狀，群組會遞迴收集所有子形狀
+         */
+        private void collectShape(BaseShape shape, Set<BaseShape> doomed, List<BasicShape> doomedBasicShapes) {
+            if (!doomed.add(shape)) {
+                return;
+            }
+            if (shape instanceof BasicShape basicShape) {
+                doomedBasicShapes.add(basicShape);
+            } else if (shape instanceof CompositeShape group) {
+                for (BaseShape child : group.getShapes()) {
+                    collectShape(child, doomed, doomedBasicShapes);
                 }
+            }
+        }
 
-                // 添加當前形狀到刪除列表
-                allToRemove.add(shape);
-            }
-
-            // 收集所有需要刪除的連結線
-            List<BaseShape> linksToRemove = new ArrayList<>();
-            for (BaseShape s : allShapes) {
-                if (s instanceof Link) {
-                    Link link = (Link) s;
-                    // 檢查連結是否與任何要刪除的形狀相關
-                    for (BaseShape shapeToRemove : allToRemove) {
-                        if (shapeToRemove instanceof BasicShape && link.isRelatedTo(shapeToRemove)) {
-                            linksToRemove.add(link);
-                            break;
-                        } else if (shapeToRemove instanceof CompositeShape &&
-                                ((CompositeShape) shapeToRemove).isRelatedToLink(link)) {
-                            linksToRemove.add(link);
-                            break;
-                        }
-                    }
+        /**
+         * 收集畫布上的連結，群組內的連結隨群組一起處理
+         */
+        private void collectAttachedLinks(List<Link> links, Set<BaseShape> doomed, ShapeStore allShapes) {
+            for (Link link : links) {
+                if (allShapes.contains(link)) {
+                    doomed.add(link);
                 }
             }
+        }
 
-            // 從畫布上移除所有標記的形狀和連結
-            allShapes.removeAll(allToRemove);
-            allShapes.removeAll(linksToRemove);
+        /**
+         * 解除被刪除連結與端點形狀的關聯，並釋放被刪除形狀的點陣圖快取
+         */
+        private void releaseRemovedShapes(Collection<BaseShape> removed) {
+            for (BaseShape shape : removed) {
+                if (shape instanceof Link link) {
+                    link.disconnect();
+                } else if (shape instanceof BasicShape basicShape) {
+                    SpriteCache.getInstance().invalidate(basicShape);
+                }
+            }
+        }
+    }
+
+    /**
+     * 重繪區域追蹤器
+     * 累積一次操作中所有變動形狀移動前後的繪製範圍，操作結束後只重繪這個範圍
+     */
+    private static class DirtyRegion {
+        private Rectangle region;
+
+        public void add(BaseShape shape) {
+            add(shape.getPaintBounds());
+        }
+
+        public void add(Rectangle area) {
+            if (region == null) {
+                region = new Rectangle(area);
+            } else {
+                region.add(area);
+            }
         }
 
         /**
-         * 遞迴收集群組中的所有形狀
+         * 取出累積的區域並重新開始累積
+         * @return 累積的區域，沒有變動時回傳 null
          */
-        private void collectAllShapesInGroup(CompositeShape group, List<BaseShape> collector) {
-            for (BaseShape shape : group.getShapes()) {
-                if (shape instanceof CompositeShape) {
-                    // 遞迴處理子群組
-                    collectAllShapesInGroup((CompositeShape) shape, collector);
+        public Rectangle take() {
+            Rectangle result = region;
+            region = null;
+            return result;
+        }
+    }
+
+    /**
+     * 拖曳事件合併器
+     * 高回報率的滑鼠每幀會送出多個拖曳事件，每個事件都移動形狀、更新連結並重繪會讓事件佇列堆積
+     * 事件只記錄最新的游標位置，計時器每幀觸發一次，以累積的位移處理一次拖曳
+     * 按下或放開滑鼠時立即處理尚未處理的位置，因此操作結果與逐一處理每個事件相同
+     */
+    private static class DragCoalescer {
+        private static final int FRAME_INTERVAL = 16; // 每幀的間隔（毫秒），約 60 幀
+
+        private final CanvasPanel canvas;
+        private final Timer timer;
+        private Point pending; // 尚未處理的游標位置
+
+        DragCoalescer(CanvasPanel canvas) {
+            this.canvas = canvas;
+            this.timer = new Timer(FRAME_INTERVAL, e -> flush());
+            this.timer.setRepeats(false);
+        }
+
+        /**
+         * 記錄最新的游標位置，這一幀還沒有排定處理時排定
+         * @param point 游標位置（世界座標）
+         */
+        public void post(Point point) {
+            pending = point;
+            if (!timer.isRunning()) {
+                timer.start();
+            }
+        }
+
+        /**
+         * 立即處理尚未處理的位置
+         */
+        public void flush() {
+            timer.stop();
+            Point point = pending;
+            if (point != null) {
+                pending = null;
+                canvas.processDrag(point);
+            }
+        }
+    }
+
+    /**
+     * 縮放與平移處理器
+     * 滾輪以游標位置為中心縮放，按住中鍵拖曳平移視窗
+     */
+    private static class ZoomPanHandler {
+        private static final double ZOOM_STEP = 1.1; // 每一格滾輪的縮放倍率
+
+        private Point panStart; // 開始平移時的螢幕座標
+        private Point panViewStart; // 開始平移時的視窗位置
+
+        public void handleWheel(MouseWheelEvent e, CanvasPanel canvas) {
+            double factor = Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation());
+            canvas.setScale(canvas.scale * factor, e.getPoint());
+        }
+
+        public void startPan(MouseEvent e, CanvasPanel canvas) {
+            JViewport viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, canvas);
+            if (viewport != null) {
+                panStart = e.getLocationOnScreen();
+                panViewStart = viewport.getViewPosition();
+            }
+        }
+
+        public void handlePanDrag(MouseEvent e, CanvasPanel canvas) {
+            JViewport viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, canvas);
+            if (viewport != null) {
+                Point current = e.getLocationOnScreen();
+                scrollTo(viewport,
+                        panViewStart.x - (current.x - panStart.x),
+                        panViewStart.y - (current.y - panStart.y));
+            }
+        }
+
+        public void endPan() {
+            panStart = null;
+            panViewStart = null;
+        }
+
+        public boolean isPanning() {
+            return panStart != null;
+        }
+
+        /**
+         * 移動視窗位置，並限制在畫布範圍內
+         */
+        public void scrollTo(JViewport viewport, int x, int y) {
+            Dimension viewSize = viewport.getViewSize();
+            Dimension extentSize = viewport.getExtentSize();
+            x = Math.max(0, Math.min(x, viewSize.width - extentSize.width));
+            y = Math.max(0, Math.min(y, viewSize.height - extentSize.height));
+            viewport.setViewPosition(new Point(x, y));
+        }
+    }
+
+    /**
+     * 拖曳圖層
+     * 開始拖曳時將所有不會移動的形狀（包含未連到移動形狀的連結）繪製成一張背景圖
+     * 拖曳期間每一幀只需要貼上背景，再繪製移動中的形狀與其連結；放開滑鼠後丟棄背景
+     */
+    private static class DragLayer {
+        private BufferedImage background; // 靜態形狀的背景圖（畫面座標）
+        private Rectangle screenArea; // 背景圖涵蓋的可見範圍
+        private double layerScale; // 建立背景圖時的縮放比例
+        private List<BaseShape> movingShapes = new ArrayList<>(); // 移動的頂層形狀與相關連結，依繪製順序排列
+
+        public boolean isActive() {
+            return background != null;
+        }
+
+        /**
+         * 背景圖是否仍符合目前的視窗位置與縮放比例
+         */
+        public boolean isValidFor(CanvasPanel canvas) {
+            return background != null && layerScale == canvas.scale && screenArea.equals(canvas.getVisibleRect());
+        }
+
+        /**
+         * 建立背景圖
+         * @param canvas 畫布
+         * @param selected 即將被拖曳的頂層形狀
+         */
+        public void build(CanvasPanel canvas, Collection<BaseShape> selected) {
+            Rectangle visible = canvas.getVisibleRect();
+            if (visible.isEmpty()) {
+                return;
+            }
+
+            // 收集移動的形狀以及連到它們的頂層連結
+            Set<BaseShape> moving = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (BaseShape shape : selected) {
+                moving.add(shape);
+                collectAttachedLinks(shape, moving, canvas.shapeStore);
+            }
+
+            GraphicsConfiguration configuration = canvas.getGraphicsConfiguration();
+            background = configuration != null
+                    ? configuration.createCompatibleImage(visible.width, visible.height)
+                    : new BufferedImage(visible.width, visible.height, BufferedImage.TYPE_INT_RGB);
+            screenArea = visible;
+            layerScale = canvas.scale;
+
+            Graphics2D g2d = background.createGraphics();
+            g2d.setColor(canvas.getBackground());
+            g2d.fillRect(0, 0, visible.width, visible.height);
+            g2d.translate(-visible.x, -visible.y);
+            g2d.scale(layerScale, layerScale);
+            LevelOfDetail.setScaleHint(g2d);
+
+            List<BaseShape> visibleShapes = new ArrayList<>();
+            canvas.shapeStore.findShapesIn(canvas.toWorld(visible), visibleShapes);
+            for (BaseShape shape : visibleShapes) {
+                if (!moving.contains(shape)) {
+                    shape.draw(g2d);
+                }
+            }
+            g2d.dispose();
+
+            movingShapes.clear();
+            movingShapes.addAll(moving);
+            movingShapes.sort(DEPTH_ORDER);
+        }
+
+        /**
+         * 收集連到形狀（或群組中任何基本形狀）的頂層連結
+         */
+        private void collectAttachedLinks(BaseShape shape, Set<BaseShape> collector, ShapeStore store) {
+            if (shape instanceof BasicShape basicShape) {
+                for (Link link : basicShape.getOutgoingLinks()) {
+                    collectLinkRoot(link, collector, store);
+                }
+                for (Link link : basicShape.getIncomingLinks()) {
+                    collectLinkRoot(link, collector, store);
+                }
+            } else if (shape instanceof CompositeShape composite) {
+                for (BaseShape child : composite.getShapes()) {
+                    collectAttachedLinks(child, collector, store);
+                }
+            }
+        }
+
+        /**
+         * 連結位於群組內時，整個最外層群組都會跟著改變，因此一起當成移動中的形狀
+         */
+        private void collectLinkRoot(Link link, Set<BaseShape> collector, ShapeStore store) {
+            BaseShape root = link.getRoot();
+            if (store.contains(root)) {
+                collector.add(root);
+            }
+        }
+
+        /**
+         * 貼上靜態形狀的背景圖
+         * @param g2d 畫面座標的圖形
+         */
+        public void paintBackground(Graphics2D g2d) {
+            g2d.drawImage(background, screenArea.x, screenArea.y, null);
+        }
+
+        /**
+         * 繪製移動中的形狀，以索引中的範圍判斷是否需要重繪
+         * @param g2d 世界座標的圖形
+         * @param visibleWorld 需要重繪的世界座標範圍
+         * @param store 形狀儲存區
+         */
+        public void paintMovingShapes(Graphics2D g2d, Rectangle visibleWorld, ShapeStore store) {
+            for (int i = 0; i < movingShapes.size(); i++) {
+                BaseShape shape = movingShapes.get(i);
+                if (store.intersects(shape, visibleWorld)) {
+                    shape.draw(g2d);
                 }
-                collector.add(shape);
             }
         }
+
+        /**
+         * 丟棄背景圖，並將移動過的形狀標記為需要以正常繪製順序重繪
+         */
+        public void release(DirtyRegion dirtyRegion) {
+            for (BaseShape shape : movingShapes) {
+                dirtyRegion.add(shape);
+            }
+            movingShapes.clear();
+            if (background != null) {
+                background.flush();
+            }
+            background = null;
+            screenArea = null;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+package Canvas;
+
+import java.util.Collection;
+import java.util.EventListener;
+import Shapes.BaseShape;
+
+/**
+ * 編輯監聽器
+ * 畫布上的模型改變後通知監聽器，例如寫入編輯日誌
+ * 開啟圖表與延遲載入建立形狀時以 LOAD 通知，這些形狀不是編輯，但保存圖表副本的監聽器需要它們
+ */
+public interface EditListener extends EventListener {
+    /**
+     * 編輯種類
+     */
+    enum Edit {
+        CREATE, MOVE, RENAME, GROUP, UNGROUP, DELETE, LINK, LABEL_STYLE, REORDER, CLEAR, LOAD
+    }
+
+    /**
+     * 模型改變後呼叫
+     * @param edit 編輯種類
+     * @param changed 新增或改變的元素，元素的子元素也一併視為改變
+     * @param removed 移除的元素，元素的子元素也一併視為移除
+     */
+    void edited(Edit edit, Collection<? extends BaseShape> changed, Collection<? extends BaseShape> removed);
+}
@@ -0,0 +1,22 @@
+package Canvas;
+
+/**
+ * 格狀索引的鍵值
+ * 連接埠網格與延遲載入的格子都以 HashMap 保存格子，以此類別把格子座標組成 Long 鍵值
+ */
+public final class GridKey {
+    private GridKey() {
+    }
+
+    /**
+     * 格子座標組成的鍵值
+     * Long 的雜湊值是高低 32 位元的 XOR，直接使用時同一條對角線上的格子都會碰撞，
+     * 因此乘上奇數常數打散位元（對 2^64 取餘數的乘法是一對一的，不同的格子仍然對應不同的鍵值）
+     * @param cellX 格子的 x 座標
+     * @param cellY 格子的 y 座標
+     * @return 鍵值
+     */
+    public static long of(int cellX, int cellY) {
+        return (((long) cellX << 32) | (cellY & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L;
+    }
+}
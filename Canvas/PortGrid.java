@@ -0,0 +1,176 @@
+package Canvas;
+
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import Shapes.BasicShape;
+
+/**
+ * 連接埠網格
+ * 將畫布上頂層基本形狀的連接埠放進固定大小的格子，查詢半徑內最近的連接埠時只需要檢查附近的格子
+ * 格子只記錄形狀與連接埠索引，座標直接向形狀讀取，因此形狀移動後只有跨越格子的連接埠需要搬移
+ */
+class PortGrid {
+    private static final int CELL_SIZE = 64; // 格子大小（世界座標）
+
+    private final Map<Long, Cell> cells = new HashMap<>(); // 格子座標 -> 格子
+    private final Map<BasicShape, long[]> cellKeys = new IdentityHashMap<>(); // 形狀 -> 每個連接埠所在的格子
+
+    /**
+     * 加入形狀的連接埠
+     * @param shape 形狀
+     */
+    public void insert(BasicShape shape) {
+        int count = shape.getPortCount();
+        long[] keys = new long[count];
+        Cell cell = null;
+        for (int i = 0; i < count; i++) {
+            keys[i] = keyOf(shape.getPortX(i), shape.getPortY(i));
+            // 同一個形狀相鄰的連接埠通常在同一個格子，不需要重新查表
+            if (cell == null || keys[i] != keys[i - 1]) {
+                cell = cell(keys[i]);
+            }
+            cell.add(shape, i);
+        }
+        cellKeys.put(shape, keys);
+    }
+
+    /**
+     * 移除形狀的連接埠
+     * @param shape 形狀
+     */
+    public void remove(BasicShape shape) {
+        long[] keys = cellKeys.remove(shape);
+        if (keys == null) {
+            return;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            removeFromCell(keys[i], shape, i);
+        }
+    }
+
+    /**
+     * 形狀移動或改變大小後更新連接埠所在的格子，沒有跨越格子的連接埠不需要處理
+     * @param shape 形狀
+     */
+    public void update(BasicShape shape) {
+        long[] keys = cellKeys.get(shape);
+        if (keys == null) {
+            return;
+        }
+        if (keys.length != shape.getPortCount()) {
+            remove(shape);
+            insert(shape);
+            return;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            long key = keyOf(shape.getPortX(i), shape.getPortY(i));
+            if (key != keys[i]) {
+                removeFromCell(keys[i], shape, i);
+                cell(key).add(shape, i);
+                keys[i] = key;
+            }
+        }
+    }
+
+    public void clear() {
+        cells.clear();
+        cellKeys.clear();
+    }
+
+    /**
+     * 找出半徑內最近的連接埠
+     * @param x 查詢點 x 座標
+     * @param y 查詢點 y 座標
+     * @param radius 搜尋半徑（世界座標）
+     * @param port 找到時寫入連接埠座標
+     * @return 連接埠所屬的形狀，半徑內沒有連接埠時回傳 null
+     */
+    public BasicShape findNearest(int x, int y, int radius, Point port) {
+        BasicShape nearest = null;
+        int nearestIndex = -1;
+        long minDistanceSq = (long) radius * radius;
+        int minCellX = Math.floorDiv(x - radius, CELL_SIZE);
+        int maxCellX = Math.floorDiv(x + radius, CELL_SIZE);
+        int minCellY = Math.floorDiv(y - radius, CELL_SIZE);
+        int maxCellY = Math.floorDiv(y + radius, CELL_SIZE);
+        for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+            for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+                Cell cell = cells.get(GridKey.of(cellX, cellY));
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0; i < cell.size; i++) {
+                    BasicShape shape = cell.shapes[i];
+                    int index = cell.ports[i];
+                    long dx = shape.getPortX(index) - x;
+                    long dy = shape.getPortY(index) - y;
+                    long distanceSq = dx * dx + dy * dy;
+                    // 距離相同時選擇較上層的形狀
+                    if (distanceSq < minDistanceSq || (distanceSq == minDistanceSq && nearest != null
+                            && shape.getDepth() > nearest.getDepth())) {
+                        minDistanceSq = distanceSq;
+                        nearest = shape;
+                        nearestIndex = index;
+                    }
+                }
+            }
+        }
+        if (nearest != null) {
+            port.setLocation(nearest.getPortX(nearestIndex), nearest.getPortY(nearestIndex));
+        }
+        return nearest;
+    }
+
+    private Cell cell(long key) {
+        return cells.computeIfAbsent(key, k -> new Cell());
+    }
+
+    private void removeFromCell(long key, BasicShape shape, int index) {
+        Cell cell = cells.get(key);
+        if (cell != null && cell.remove(shape, index) && cell.size == 0) {
+            cells.remove(key);
+        }
+    }
+
+    private static long keyOf(int x, int y) {
+        return GridKey.of(Math.floorDiv(x, CELL_SIZE), Math.floorDiv(y, CELL_SIZE));
+    }
+
+    /**
+     * 格子內的連接埠，以平行陣列保存形狀與連接埠索引
+     */
+    private static class Cell {
+        private BasicShape[] shapes = new BasicShape[4];
+        private int[] ports = new int[4];
+        private int size = 0;
+
+        void add(BasicShape shape, int index) {
+            if (size == shapes.length) {
+                shapes = Arrays.copyOf(shapes, size * 2);
+                ports = Arrays.copyOf(ports, size * 2);
+            }
+            shapes[size] = shape;
+            ports[size] = index;
+            size++;
+        }
+
+        /**
+         * 移除連接埠，以最後一個項目填補空位
+         */
+        boolean remove(BasicShape shape, int index) {
+            for (int i = 0; i < size; i++) {
+                if (shapes[i] == shape && ports[i] == index) {
+                    size--;
+                    shapes[i] = shapes[size];
+                    ports[i] = ports[size];
+                    shapes[size] = null;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,556 @@
+package Canvas;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 動態 R-tree 空間索引
+ * 以物件的外接矩形建立索引，支援插入、刪除、更新以及點查詢與範圍查詢
+ * 節點溢位時使用 Guttman 的二次分裂法 (quadratic split)
+ * 空的索引可以用 STR (Sort-Tile-Recursive) 一次建立，比逐一插入快得多
+ * @param <T> 被索引的物件型別，以物件識別 (identity) 區分
+ */
+public class RTree<T> {
+    private static final int MAX_ENTRIES = 16; // 每個節點最多的子項目數
+    private static final int MIN_ENTRIES = 6; // 每個節點最少的子項目數
+
+    private Node root = new Node(true);
+    private final Map<T, Entry<T>> entries = new IdentityHashMap<>(); // 物件 -> 葉節點項目
+    private final List<Node> searchStack = new ArrayList<>(); // 查詢時重複使用的堆疊
+
+    /**
+     * 插入物件，若物件已存在則更新其邊界
+     * @param item 物件
+     * @param bounds 物件的外接矩形
+     */
+    public void insert(T item, Rectangle bounds) {
+        Entry<T> entry = entries.get(item);
+        if (entry != null) {
+            update(item, bounds);
+            return;
+        }
+
+        entry = new Entry<>(item);
+        entry.set(bounds);
+        entries.put(item, entry);
+        insertEntry(entry);
+    }
+
+    /**
+     * 一次加入多個物件
+     * 索引為空時以 STR 由下而上建立整棵樹：依中心點 x 座標切成直條，每條再依 y 座標排序後裝滿葉節點，
+     * 上層節點以同樣的方式打包；索引不為空時逐一插入
+     * @param items 物件
+     * @param boundsOf 取得物件外接矩形的函式
+     */
+    public void load(Collection<? extends T> items, Function<? super T, Rectangle> boundsOf) {
+        if (root.count > 0) {
+            for (T item : items) {
+                insert(item, boundsOf.apply(item));
+            }
+            return;
+        }
+
+        List<Box> level = new ArrayList<>(items.size());
+        for (T item : items) {
+            if (entries.containsKey(item)) {
+                continue;
+            }
+            Entry<T> entry = new Entry<>(item);
+            entry.set(boundsOf.apply(item));
+            entries.put(item, entry);
+            level.add(entry);
+        }
+        if (level.isEmpty()) {
+            return;
+        }
+
+        boolean leaf = true;
+        do {
+            level = pack(level, leaf);
+            leaf = false;
+        } while (level.size() > 1);
+        root = (Node) level.get(0);
+        root.parent = null;
+    }
+
+    /**
+     * 將同一層的元素打包成上一層的節點
+     */
+    private List<Box> pack(List<Box> level, boolean leaf) {
+        int total = level.size();
+        int nodeCount = (total + MAX_ENTRIES - 1) / MAX_ENTRIES;
+        int sliceSize = (int) Math.ceil(Math.sqrt(nodeCount)) * MAX_ENTRIES;
+        List<Box> parents = new ArrayList<>(nodeCount);
+
+        level.sort(CENTER_X);
+        for (int start = 0; start < total; start += sliceSize) {
+            int end = Math.min(start + sliceSize, total);
+            level.subList(start, end).sort(CENTER_Y);
+            for (int first = start; first < end; first += MAX_ENTRIES) {
+                Node node = new Node(leaf);
+                for (int i = first; i < Math.min(first + MAX_ENTRIES, end); i++) {
+                    node.add(level.get(i));
+                }
+                node.recalculate();
+                parents.add(node);
+            }
+        }
+        return parents;
+    }
+
+    private static final Comparator<Box> CENTER_X = Comparator.comparingLong(box -> (long) box.minX + box.maxX);
+    private static final Comparator<Box> CENTER_Y = Comparator.comparingLong(box -> (long) box.minY + box.maxY);
+
+    /**
+     * 移除物件
+     * @param item 物件
+     * @return 物件原本是否在索引中
+     */
+    public boolean remove(T item) {
+        Entry<T> entry = entries.remove(item);
+        if (entry == null) {
+            return false;
+        }
+
+        Node leaf = entry.parent;
+        leaf.remove(entry);
+        condense(leaf);
+        return true;
+    }
+
+    /**
+     * 更新物件的邊界，物件不在索引中時不做任何事
+     * @param item 物件
+     * @param bounds 新的外接矩形
+     */
+    public void update(T item, Rectangle bounds) {
+        Entry<T> entry = entries.get(item);
+        if (entry == null) {
+            return;
+        }
+
+        // 新邊界仍落在原葉節點範圍內時，不需要調整樹的結構
+        Node leaf = entry.parent;
+        if (leaf.contains(bounds)) {
+            entry.set(bounds);
+            return;
+        }
+
+        leaf.remove(entry);
+        condense(leaf);
+        entry.set(bounds);
+        insertEntry(entry);
+    }
+
+    /**
+     * 檢查物件是否在索引中
+     * @param item 物件
+     * @return 是否在索引中
+     */
+    public boolean contains(T item) {
+        return entries.containsKey(item);
+    }
+
+    /**
+     * 檢查物件在索引中的外接矩形是否與指定範圍相交，不需要重新計算物件的邊界
+     * @param item 物件
+     * @param area 範圍
+     * @return 是否相交，物件不在索引中時回傳 false
+     */
+    public boolean intersects(T item, Rectangle area) {
+        Entry<T> entry = entries.get(item);
+        return entry != null && entry.intersects(area.x, area.y, area.x + area.width, area.y + area.height);
+    }
+
+    /**
+     * 取得索引中的物件數量
+     * @return 物件數量
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * 取得包住所有物件的矩形
+     * @return 根節點的範圍，索引為空時為空矩形
+     */
+    public Rectangle getBounds() {
+        if (root.count == 0) {
+            return new Rectangle();
+        }
+        return new Rectangle(root.minX, root.minY, root.maxX - root.minX, root.maxY - root.minY);
+    }
+
+    /**
+     * 清除所有物件
+     */
+    public void clear() {
+        root = new Node(true);
+        entries.clear();
+    }
+
+    /**
+     * 查詢外接矩形包含指定點的所有物件
+     * @param x 點的 x 座標
+     * @param y 點的 y 座標
+     * @param result 查詢結果會加入此列表
+     */
+    public void search(int x, int y, List<T> result) {
+        search(x, y, x, y, result);
+    }
+
+    /**
+     * 查詢外接矩形與指定範圍相交的所有物件
+     * @param area 查詢範圍
+     * @param result 查詢結果會加入此列表
+     */
+    public void search(Rectangle area, List<T> result) {
+        search(area.x, area.y, area.x + area.width, area.y + area.height, result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void search(int minX, int minY, int maxX, int maxY, List<T> result) {
+        if (root.count == 0) {
+            return;
+        }
+
+        searchStack.clear();
+        searchStack.add(root);
+        while (!searchStack.isEmpty()) {
+            Node node = searchStack.remove(searchStack.size() - 1);
+            for (int i = 0; i < node.count; i++) {
+                Box child = node.children[i];
+                if (!child.intersects(minX, minY, maxX, maxY)) {
+                    continue;
+                }
+                if (node.leaf) {
+                    result.add(((Entry<T>) child).item);
+                } else {
+                    searchStack.add((Node) child);
+                }
+            }
+        }
+    }
+
+    /**
+     * 將項目放入最適合的葉節點，並向上調整節點範圍
+     */
+    private void insertEntry(Entry<T> entry) {
+        Node leaf = chooseLeaf(entry);
+        leaf.add(entry);
+        adjustTree(leaf);
+    }
+
+    /**
+     * 由根節點往下，選擇擴張面積最小的子節點
+     */
+    private Node chooseLeaf(Box box) {
+        Node node = root;
+        while (!node.leaf) {
+            Node best = null;
+            long bestEnlargement = Long.MAX_VALUE;
+            long bestArea = Long.MAX_VALUE;
+
+            for (int i = 0; i < node.count; i++) {
+                Node child = (Node) node.children[i];
+                long area = child.area();
+                long enlargement = child.enlargement(box);
+                if (enlargement < bestEnlargement || (enlargement == bestEnlargement && area < bestArea)) {
+                    best = child;
+                    bestEnlargement = enlargement;
+                    bestArea = area;
+                }
+            }
+            node = best;
+        }
+        return node;
+    }
+
+    /**
+     * 自指定節點往上重新計算範圍，必要時分裂溢位的節點
+     */
+    private void adjustTree(Node node) {
+        while (node != null) {
+            if (node.count > MAX_ENTRIES) {
+                Node sibling = split(node);
+                if (node == root) {
+                    Node newRoot = new Node(false);
+                    newRoot.add(node);
+                    newRoot.add(sibling);
+                    newRoot.recalculate();
+                    root = newRoot;
+                    return;
+                }
+                node.parent.add(sibling);
+            } else {
+                node.recalculate();
+            }
+            node = node.parent;
+        }
+    }
+
+    /**
+     * 二次分裂法：挑選最浪費空間的兩個項目作為種子，再逐一分配其餘項目
+     * @return 新建立的兄弟節點
+     */
+    private Node split(Node node) {
+        int total = node.count;
+        Box[] pending = new Box[total];
+        System.arraycopy(node.children, 0, pending, 0, total);
+        node.clear();
+        Node sibling = new Node(node.leaf);
+
+        // 挑選種子
+        int seedA = 0;
+        int seedB = 1;
+        long worstWaste = Long.MIN_VALUE;
+        for (int i = 0; i < total; i++) {
+            for (int j = i + 1; j < total; j++) {
+                long waste = unionArea(pending[i], pending[j]) - pending[i].area() - pending[j].area();
+                if (waste > worstWaste) {
+                    worstWaste = waste;
+                    seedA = i;
+                    seedB = j;
+                }
+            }
+        }
+
+        node.add(pending[seedA]);
+        node.include(pending[seedA]);
+        sibling.add(pending[seedB]);
+        sibling.include(pending[seedB]);
+        pending[seedA] = null;
+        pending[seedB] = null;
+        int remaining = total - 2;
+
+        // 分配其餘項目
+        while (remaining > 0) {
+            if (node.count + remaining == MIN_ENTRIES) {
+                moveAll(pending, node);
+                break;
+            }
+            if (sibling.count + remaining == MIN_ENTRIES) {
+                moveAll(pending, sibling);
+                break;
+            }
+
+            int next = -1;
+            long bestDifference = -1;
+            long nextToNode = 0;
+            long nextToSibling = 0;
+            for (int i = 0; i < total; i++) {
+                if (pending[i] == null) {
+                    continue;
+                }
+                long toNode = node.enlargement(pending[i]);
+                long toSibling = sibling.enlargement(pending[i]);
+                long difference = Math.abs(toNode - toSibling);
+                if (difference > bestDifference) {
+                    bestDifference = difference;
+                    next = i;
+                    nextToNode = toNode;
+                    nextToSibling = toSibling;
+                }
+            }
+
+            Node target;
+            if (nextToNode != nextToSibling) {
+                target = nextToNode < nextToSibling ? node : sibling;
+            } else if (node.area() != sibling.area()) {
+                target = node.area() < sibling.area() ? node : sibling;
+            } else {
+                target = node.count <= sibling.count ? node : sibling;
+            }
+
+            target.add(pending[next]);
+            target.include(pending[next]);
+            pending[next] = null;
+            remaining--;
+        }
+
+        return sibling;
+    }
+
+    private void moveAll(Box[] pending, Node target) {
+        for (int i = 0; i < pending.length; i++) {
+            if (pending[i] != null) {
+                target.add(pending[i]);
+                target.include(pending[i]);
+                pending[i] = null;
+            }
+        }
+    }
+
+    /**
+     * 刪除項目後，自葉節點往上移除項目過少的節點，並將其中的項目重新插入
+     */
+    private void condense(Node node) {
+        List<Entry<T>> orphans = new ArrayList<>();
+
+        while (node != root) {
+            Node parent = node.parent;
+            if (node.count < MIN_ENTRIES) {
+                parent.remove(node);
+                collectEntries(node, orphans);
+            } else {
+                node.recalculate();
+            }
+            node = parent;
+        }
+        root.recalculate();
+
+        // 根節點只剩一個子節點時降低樹高
+        while (!root.leaf && root.count == 1) {
+            root = (Node) root.children[0];
+            root.parent = null;
+        }
+        if (!root.leaf && root.count == 0) {
+            root = new Node(true);
+        }
+
+        for (Entry<T> orphan : orphans) {
+            insertEntry(orphan);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void collectEntries(Node node, List<Entry<T>> collector) {
+        for (int i = 0; i < node.count; i++) {
+            if (node.leaf) {
+                collector.add((Entry<T>) node.children[i]);
+            } else {
+                collectEntries((Node) node.children[i], collector);
+            }
+        }
+    }
+
+    private static long unionArea(Box a, Box b) {
+        long width = (long) Math.max(a.maxX, b.maxX) - Math.min(a.minX, b.minX);
+        long height = (long) Math.max(a.maxY, b.maxY) - Math.min(a.minY, b.minY);
+        return width * height;
+    }
+
+    /**
+     * 具有外接矩形的樹元素（節點或葉項目）
+     * 座標皆為包含邊界的最小/最大值
+     */
+    private abstract static class Box {
+        int minX, minY, maxX, maxY;
+        Node parent;
+
+        long area() {
+            return ((long) maxX - minX) * ((long) maxY - minY);
+        }
+
+        long enlargement(Box other) {
+            return unionArea(this, other) - area();
+        }
+
+        boolean intersects(int otherMinX, int otherMinY, int otherMaxX, int otherMaxY) {
+            return minX <= otherMaxX && otherMinX <= maxX && minY <= otherMaxY && otherMinY <= maxY;
+        }
+    }
+
+    /**
+     * 葉項目，記錄被索引的物件
+     */
+    private static final class Entry<T> extends Box {
+        final T item;
+
+        Entry(T item) {
+            this.item = item;
+        }
+
+        void set(Rectangle bounds) {
+            minX = bounds.x;
+            minY = bounds.y;
+            maxX = bounds.x + bounds.width;
+            maxY = bounds.y + bounds.height;
+        }
+    }
+
+    /**
+     * 樹節點，葉節點的子項目為 Entry，內部節點的子項目為 Node
+     */
+    private static final class Node extends Box {
+        final boolean leaf;
+        final Box[] children = new Box[MAX_ENTRIES + 1]; // 多一格容納分裂前的溢位項目
+        int count;
+
+        Node(boolean leaf) {
+            this.leaf = leaf;
+        }
+
+        void add(Box child) {
+            children[count++] = child;
+            child.parent = this;
+        }
+
+        void remove(Box child) {
+            for (int i = 0; i < count; i++) {
+                if (children[i] == child) {
+                    children[i] = children[--count];
+                    children[count] = null;
+                    return;
+                }
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < count; i++) {
+                children[i] = null;
+            }
+            count = 0;
+        }
+
+        /**
+         * 將子項目的範圍併入節點範圍（節點為空時直接採用子項目範圍）
+         */
+        void include(Box child) {
+            if (count == 1) {
+                minX = child.minX;
+                minY = child.minY;
+                maxX = child.maxX;
+                maxY = child.maxY;
+            } else {
+                minX = Math.min(minX, child.minX);
+                minY = Math.min(minY, child.minY);
+                maxX = Math.max(maxX, child.maxX);
+                maxY = Math.max(maxY, child.maxY);
+            }
+        }
+
+        /**
+         * 依所有子項目重新計算節點範圍
+         */
+        void recalculate() {
+            if (count == 0) {
+                minX = minY = maxX = maxY = 0;
+                return;
+            }
+            minX = Integer.MAX_VALUE;
+            minY = Integer.MAX_VALUE;
+            maxX = Integer.MIN_VALUE;
+            maxY = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                Box child = children[i];
+                minX = Math.min(minX, child.minX);
+                minY = Math.min(minY, child.minY);
+                maxX = Math.max(maxX, child.maxX);
+                maxY = Math.max(maxY, child.maxY);
+            }
+        }
+
+        boolean contains(Rectangle bounds) {
+            return count > 0 && minX <= bounds.x && minY <= bounds.y
+                    && bounds.x + bounds.width <= maxX && bounds.y + bounds.height <= maxY;
+        }
+    }
+}
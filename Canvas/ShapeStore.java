@@ -0,0 +1,415 @@
+package Canvas;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import Shapes.BaseShape;
+import Shapes.BasicShape;
+import Shapes.Link;
+
+/**
+ * 形狀儲存區
+ * 管理畫布上所有頂層形狀的繪製順序與空間索引
+ * 新增、刪除或移動頂層形狀後都要透過此類別更新，以保持索引與形狀一致
+ * 繪製順序由形狀的深度值決定，深度值由此類別指定，深度越大越上層
+ * 頂層連結另外以線段的點擊範圍建立索引，點擊查詢不會被箭頭撐大的繪製範圍拖累
+ * 頂層基本形狀的連接埠另外放進連接埠網格，建立連結時可以找出游標附近的連接埠
+ */
+public class ShapeStore {
+    private final TreeMap<Integer, BaseShape> zOrder = new TreeMap<>(); // 深度 -> 形狀，依繪製順序（由下而上）排列
+    private final RTree<BaseShape> spatialIndex = new RTree<>(); // 以形狀繪製範圍建立的空間索引
+    private final RTree<Link> linkIndex = new RTree<>(); // 以連結點擊範圍（線段外接矩形擴張 Distance_GAP）建立的索引
+    private final List<Link> linkCandidates = new ArrayList<>(); // 連結點擊查詢的暫存列表
+    private PortGrid portGrid; // 頂層基本形狀的連接埠，第一次查詢時才建立，之後隨形狀更新
+    private final List<BaseShape> candidates = new ArrayList<>(); // 查詢時重複使用的暫存列表
+    private final Set<BaseShape> hits = Collections.newSetFromMap(new IdentityHashMap<>()); // 範圍查詢的暫存集合
+    private int nextDepth = 0; // 下一個形狀的深度值
+    private int reservedFloor = Integer.MAX_VALUE; // 保留給尚未加入的形狀的最小深度，沒有保留時為 Integer.MAX_VALUE
+
+    private static final Comparator<BaseShape> DEPTH_ORDER = Comparator.comparingInt(BaseShape::getDepth);
+
+    /**
+     * 將形狀加到最上層
+     * @param shape 要加入的形狀
+     */
+    public void add(BaseShape shape) {
+        insert(shape, nextDepth);
+    }
+
+    /**
+     * 以指定的深度加入形狀，延遲載入時依檔案中的順序插入之後才建立的形狀
+     * 深度已被其他形狀佔用時，佔用者與它下方緊接的形狀各往下移一層讓出位置，已加入的形狀之間的順序不變
+     * @param shape 要加入的形狀
+     * @param depth 深度
+     * @param shifted 被往下移的形狀會加入此集合
+     */
+    public void add(BaseShape shape, int depth, Collection<BaseShape> shifted) {
+        if (zOrder.containsKey(depth)) {
+            int free = depth - 1;
+            while (zOrder.containsKey(free)) {
+                free--;
+            }
+            for (int occupied = free + 1; occupied <= depth; occupied++) {
+                BaseShape occupant = zOrder.remove(occupied);
+                occupant.setDepth(occupied - 1);
+                zOrder.put(occupied - 1, occupant);
+                shifted.add(occupant);
+            }
+        }
+        insert(shape, depth);
+    }
+
+    private void insert(BaseShape shape, int depth) {
+        shape.setDepth(depth);
+        nextDepth = Math.max(nextDepth, depth + 1);
+        zOrder.put(depth, shape);
+        spatialIndex.insert(shape, shape.getPaintBounds());
+        if (shape instanceof Link link) {
+            linkIndex.insert(link, link.getBounds());
+        } else if (shape instanceof BasicShape basicShape && portGrid != null) {
+            portGrid.insert(basicShape);
+        }
+    }
+
+    /**
+     * 依序將多個形狀加到最上層
+     * 畫布為空時（例如開啟檔案）以 STR 一次建立空間索引，不需要逐一插入
+     * @param shapes 要加入的形狀，依繪製順序由下而上排列
+     */
+    public void addAll(Collection<? extends BaseShape> shapes) {
+        List<Link> links = new ArrayList<>();
+        for (BaseShape shape : shapes) {
+            shape.setDepth(nextDepth++);
+            zOrder.put(shape.getDepth(), shape);
+            if (shape instanceof Link link) {
+                links.add(link);
+            } else if (shape instanceof BasicShape basicShape && portGrid != null) {
+                portGrid.insert(basicShape);
+            }
+        }
+        spatialIndex.load(shapes, BaseShape::getPaintBounds);
+        linkIndex.load(links, Link::getBounds);
+    }
+
+    /**
+     * 保留目前最上層之上到指定值之前的深度，之後加到最上層的形狀深度不會小於此值
+     * 移到最下層的形狀也會放在保留的深度之下，以指定深度加入的形狀不會與它們衝突
+     * @param depth 第一個可以使用的深度
+     */
+    public void reserveDepths(int depth) {
+        if (depth > nextDepth) {
+            reservedFloor = Math.min(reservedFloor, nextDepth);
+            nextDepth = depth;
+        }
+    }
+
+    /**
+     * 移除形狀
+     * @param shape 要移除的形狀
+     */
+    public void remove(BaseShape shape) {
+        if (spatialIndex.remove(shape)) {
+            zOrder.remove(shape.getDepth());
+            if (shape instanceof Link link) {
+                linkIndex.remove(link);
+            } else if (shape instanceof BasicShape basicShape && portGrid != null) {
+                portGrid.remove(basicShape);
+            }
+        }
+    }
+
+    /**
+     * 移除多個形狀，不是頂層形狀的項目會被忽略
+     * @param toRemove 要移除的形狀
+     */
+    public void removeAll(Collection<? extends BaseShape> toRemove) {
+        for (BaseShape shape : toRemove) {
+            remove(shape);
+        }
+    }
+
+    /**
+     * 將形狀移到最上層
+     * @param shape 頂層形狀
+     */
+    public void bringToFront(BaseShape shape) {
+        if (contains(shape) && shape.getDepth() != zOrder.lastKey()) {
+            reorder(shape, nextDepth++);
+        }
+    }
+
+    /**
+     * 將形狀移到最下層
+     * @param shape 頂層形狀
+     */
+    public void sendToBack(BaseShape shape) {
+        if (!contains(shape)) {
+            return;
+        }
+        int bottom = Math.min(zOrder.firstKey(), reservedFloor);
+        if (shape.getDepth() != bottom) {
+            reorder(shape, bottom - 1);
+        }
+    }
+
+    /**
+     * 將形狀與上一層的形狀交換順序
+     * @param shape 頂層形狀
+     * @return 是否有移動
+     */
+    public boolean moveUp(BaseShape shape) {
+        return contains(shape) && swap(shape, zOrder.higherEntry(shape.getDepth()));
+    }
+
+    /**
+     * 將形狀與下一層的形狀交換順序
+     * @param shape 頂層形狀
+     * @return 是否有移動
+     */
+    public boolean moveDown(BaseShape shape) {
+        return contains(shape) && swap(shape, zOrder.lowerEntry(shape.getDepth()));
+    }
+
+    /**
+     * 取得緊鄰在形狀上一層的頂層形狀
+     * @param shape 頂層形狀
+     * @return 上一層的形狀，已在最上層時回傳 null
+     */
+    public BaseShape findAbove(BaseShape shape) {
+        Map.Entry<Integer, BaseShape> entry = zOrder.higherEntry(shape.getDepth());
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * 取得緊鄰在形狀下一層的頂層形狀
+     * @param shape 頂層形狀
+     * @return 下一層的形狀，已在最下層時回傳 null
+     */
+    public BaseShape findBelow(BaseShape shape) {
+        Map.Entry<Integer, BaseShape> entry = zOrder.lowerEntry(shape.getDepth());
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * 交換兩個形狀的深度
+     */
+    private boolean swap(BaseShape shape, Map.Entry<Integer, BaseShape> neighbor) {
+        if (neighbor == null) {
+            return false;
+        }
+        int depth = shape.getDepth();
+        BaseShape other = neighbor.getValue();
+        shape.setDepth(neighbor.getKey());
+        other.setDepth(depth);
+        zOrder.put(shape.getDepth(), shape);
+        zOrder.put(depth, other);
+        return true;
+    }
+
+    /**
+     * 改變形狀的深度
+     */
+    private void reorder(BaseShape shape, int depth) {
+        zOrder.remove(shape.getDepth());
+        shape.setDepth(depth);
+        zOrder.put(depth, shape);
+    }
+
+    /**
+     * 形狀移動、改變大小或標籤後更新索引，不是頂層形狀時不做任何事
+     * @param shape 變動的形狀
+     */
+    public void update(BaseShape shape) {
+        spatialIndex.update(shape, shape.getPaintBounds());
+        if (shape instanceof Link link) {
+            linkIndex.update(link, link.getBounds());
+        } else if (shape instanceof BasicShape basicShape && portGrid != null) {
+            portGrid.update(basicShape);
+        }
+    }
+
+    /**
+     * 檢查形狀是否為畫布上的頂層形狀
+     * @param shape 要檢查的形狀
+     * @return 是否為頂層形狀
+     */
+    public boolean contains(BaseShape shape) {
+        return spatialIndex.contains(shape);
+    }
+
+    /**
+     * 檢查頂層形狀已索引的繪製範圍是否與指定區域相交
+     * @param shape 頂層形狀
+     * @param area 區域
+     * @return 是否相交
+     */
+    public boolean intersects(BaseShape shape, Rectangle area) {
+        return spatialIndex.intersects(shape, area);
+    }
+
+    /**
+     * 清除所有形狀
+     */
+    public void clear() {
+        zOrder.clear();
+        spatialIndex.clear();
+        linkIndex.clear();
+        portGrid = null;
+        nextDepth = 0;
+        reservedFloor = Integer.MAX_VALUE;
+    }
+
+    /**
+     * 取得包含指定點的最上層形狀
+     * @param p 要檢查的點
+     * @return 最上層的形狀，沒有則回傳 null
+     */
+    public BaseShape findShapeAt(Point p) {
+        BaseShape topmost = findLinkAt(p);
+        for (BaseShape shape : queryPoint(p)) {
+            if (!(shape instanceof Link)
+                    && (topmost == null || shape.getDepth() > topmost.getDepth()) && shape.contains(p)) {
+                topmost = shape;
+            }
+        }
+        return topmost;
+    }
+
+    /**
+     * 取得通過指定點附近的最上層頂層連結
+     * 只檢查點擊範圍包含此點的連結，再以距離平方做精確判斷
+     * @param p 要檢查的點
+     * @return 最上層的連結，沒有則回傳 null
+     */
+    public Link findLinkAt(Point p) {
+        linkCandidates.clear();
+        linkIndex.search(p.x, p.y, linkCandidates);
+        Link topmost = null;
+        for (Link link : linkCandidates) {
+            if ((topmost == null || link.getDepth() > topmost.getDepth()) && link.contains(p)) {
+                topmost = link;
+            }
+        }
+        return topmost;
+    }
+
+    /**
+     * 取得包含指定點的最上層基本形狀（矩形、橢圓）
+     * @param p 要檢查的點
+     * @return 最上層的基本形狀，沒有則回傳 null
+     */
+    public BasicShape findBasicShapeAt(Point p) {
+        BasicShape topmost = null;
+        for (BaseShape shape : queryPoint(p)) {
+            if (shape instanceof BasicShape basicShape
+                    && (topmost == null || shape.getDepth() > topmost.getDepth()) && shape.contains(p)) {
+                topmost = basicShape;
+            }
+        }
+        return topmost;
+    }
+
+    /**
+     * 取得建立連結時要連接的形狀與連接埠
+     * 游標在基本形狀內時使用該形狀最近的連接埠，否則吸附到半徑內最近的連接埠
+     * @param p 游標位置
+     * @param snapRadius 吸附半徑（世界座標）
+     * @param port 找到時寫入連接埠座標
+     * @return 要連接的形狀，沒有則回傳 null
+     */
+    public BasicShape findPortTarget(Point p, int snapRadius, Point port) {
+        BasicShape shape = findBasicShapeAt(p);
+        if (shape != null) {
+            int index = shape.getNearestPortIndex(p.x, p.y);
+            if (index >= 0) {
+                port.setLocation(shape.getPortX(index), shape.getPortY(index));
+                return shape;
+            }
+        }
+        if (portGrid == null) {
+            // 只有建立連結時才需要連接埠網格，開啟大型圖表時不必先建立
+            portGrid = new PortGrid();
+            for (BaseShape topLevel : zOrder.values()) {
+                if (topLevel instanceof BasicShape basicShape) {
+                    portGrid.insert(basicShape);
+                }
+            }
+        }
+        return portGrid.findNearest(p.x, p.y, snapRadius, port);
+    }
+
+    /**
+     * 取得繪製範圍與指定區域相交的形狀，依繪製順序由下而上排列
+     * @param area 查詢區域
+     * @param result 查詢結果會加入此列表
+     */
+    public void findShapesIn(Rectangle area, List<BaseShape> result) {
+        candidates.clear();
+        spatialIndex.search(area, candidates);
+
+        if (candidates.size() > zOrder.size() / 2) {
+            // 大部分形狀都在區域內時，依繪製順序走訪並過濾比排序候選形狀便宜
+            hits.addAll(candidates);
+            for (BaseShape shape : zOrder.values()) {
+                if (hits.contains(shape)) {
+                    result.add(shape);
+                }
+            }
+            hits.clear();
+        } else {
+            candidates.sort(DEPTH_ORDER);
+            result.addAll(candidates);
+        }
+    }
+
+    /**
+     * 取得繪製範圍與指定區域相交的形狀，不依繪製順序排列
+     * 只需要候選形狀、不在意順序時使用，省去排序的成本
+     * @param area 查詢區域
+     * @param result 查詢結果會加入此列表
+     */
+    public void findCandidatesIn(Rectangle area, List<BaseShape> result) {
+        spatialIndex.search(area, result);
+    }
+
+    /**
+     * 以空間索引找出繪製範圍包含指定點的候選形狀
+     */
+    private List<BaseShape> queryPoint(Point p) {
+        candidates.clear();
+        spatialIndex.search(p.x, p.y, candidates);
+        return candidates;
+    }
+
+    /**
+     * 取得包住所有形狀繪製範圍的矩形
+     * @return 範圍矩形，沒有形狀時為空矩形
+     */
+    public Rectangle getExtent() {
+        return spatialIndex.getBounds();
+    }
+
+    /**
+     * 取得所有頂層形狀（依繪製順序由下而上）
+     * @return 唯讀的形狀集合
+     */
+    public Collection<BaseShape> getShapes() {
+        return Collections.unmodifiableCollection(zOrder.values());
+    }
+
+    /**
+     * 取得頂層形狀數量
+     * @return 形狀數量
+     */
+    public int size() {
+        return zOrder.size();
+    }
+}
@@ -0,0 +1,36 @@
+package MenuBar.Edit;
+
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import Canvas.CanvasPanel;
+
+/**
+ * 上移一層選單項目類
+ */
+public class BringForward extends JMenuItem {
+    private CanvasPanel canvasPanel;
+
+    public BringForward(JFrame frame){
+        super("Bring Forward"); // 設定 JMenuItem 標題
+
+        // 加入事件監聽
+        this.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (canvasPanel != null) {
+                    canvasPanel.bringSelectedForward();
+                } else {
+                    JOptionPane.showMessageDialog(frame, "Bring Forward clicked");
+                }
+            }
+        });
+    }
+
+    /**
+     * 設定畫布面板
+     */
+    public void setCanvasPanel(CanvasPanel canvasPanel) {
+        this.canvasPanel = canvasPanel;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,36 @@
+package MenuBar.Edit;
+
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import Canvas.CanvasPanel;
+
+/**
+ * 移到最上層選單項目類
+ */
+public class BringToFront extends JMenuItem {
+    private CanvasPanel canvasPanel;
+
+    public BringToFront(JFrame frame){
+        super("Bring to Front"); // 設定 JMenuItem 標題
+
+        // 加入事件監聽
+        this.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (canvasPanel != null) {
+                    canvasPanel.bringSelectedToFront();
+                } else {
+                    JOptionPane.showMessageDialog(frame, "Bring to Front clicked");
+                }
+            }
+        });
+    }
+
+    /**
+     * 設定畫布面板
+     */
+    public void setCanvasPanel(CanvasPanel canvasPanel) {
+        this.canvasPanel = canvasPanel;
+    }
+}
\ No newline at end of file
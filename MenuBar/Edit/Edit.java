@@ -20,6 +20,10 @@ public class Edit extends JMenu {
     private Delete deleteItem;
     private ClearAll clearAllItem;
     private Label labelItem;
+    private BringToFront bringToFrontItem;
+    private SendToBack sendToBackItem;
+    private BringForward bringForwardItem;
+    private SendBackward sendBackwardItem;
 
     public Edit(JFrame frame) {
         super("Edit");
@@ -31,6 +35,10 @@ public class Edit extends JMenu {
         deleteItem = new Delete(frame);
         clearAllItem = new ClearAll(frame);
         labelItem = new Label(frame);
+        bringToFrontItem = new BringToFront(frame);
+        sendToBackItem = new SendToBack(frame);
+        bringForwardItem = new BringForward(frame);
+        sendBackwardItem = new SendBackward(frame);
 
         // 加入選單
         this.add(renameItem);
@@ -40,6 +48,11 @@ public class Edit extends JMenu {
         this.add(clearAllItem);
         this.addSeparator();
         this.add(labelItem);
+        this.addSeparator();
+        this.add(bringToFrontItem);
+        this.add(sendToBackItem);
+        this.add(bringForwardItem);
+        this.add(sendBackwardItem);
     }
 
     /**
@@ -55,5 +68,9 @@ public class Edit extends JMenu {
         deleteItem.setCanvasPanel(canvasPanel);
         clearAllItem.setCanvasPanel(canvasPanel);
         labelItem.setCanvasPanel(canvasPanel);
+        bringToFrontItem.setCanvasPanel(canvasPanel);
+        sendToBackItem.setCanvasPanel(canvasPanel);
+        bringForwardItem.setCanvasPanel(canvasPanel);
+        sendBackwardItem.setCanvasPanel(canvasPanel);
     }
 }
\ No newline at end of file
@@ -11,6 +11,8 @@ import Canvas.CanvasPanel;
 public class File extends JMenu {
     private CanvasPanel canvasPanel;
     private NewFile newFileItem;
+    private OpenDiagram openDiagramItem;
+    private SaveDiagram saveDiagramItem;
     private SaveFile saveFileItem;
     private Exit exitItem;
 
@@ -19,11 +21,15 @@ public class File extends JMenu {
 
         // 建立選單項目
         newFileItem = new NewFile(frame);
+        openDiagramItem = new OpenDiagram(frame);
+        saveDiagramItem = new SaveDiagram(frame);
         saveFileItem = new SaveFile(frame);
         exitItem = new Exit(frame);
 
         // 加入選單
         this.add(newFileItem);
+        this.add(openDiagramItem);
+        this.add(saveDiagramItem);
         this.add(saveFileItem);
         this.addSeparator(); // 分隔線
         this.add(exitItem);
@@ -37,6 +43,8 @@ public class File extends JMenu {
 
         // 更新子選單項目的畫布引用
         newFileItem.setCanvasPanel(canvasPanel);
+        openDiagramItem.setCanvasPanel(canvasPanel);
+        saveDiagramItem.setCanvasPanel(canvasPanel);
         saveFileItem.setCanvasPanel(canvasPanel);
     }
 }
\ No newline at end of file
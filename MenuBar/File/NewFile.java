@@ -5,6 +5,7 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import Canvas.CanvasPanel;
+import Persistence.DiagramJournal;
 
 /**
  * 新建檔案選單項目類
@@ -30,6 +31,11 @@ public class NewFile extends JMenuItem {
 
                 if (result == JOptionPane.YES_OPTION) {
                     if (canvasPanel != null) {
+                        // 新檔案的編輯不屬於原本的圖表檔，先停止記錄
+                        DiagramJournal journal = DiagramJournal.of(canvasPanel);
+                        if (journal != null) {
+                            journal.close();
+                        }
                         canvasPanel.clearAll();
                         JOptionPane.showMessageDialog(frame, "已建立新檔案");
                     } else {
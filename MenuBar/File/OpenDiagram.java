@@ -0,0 +1,112 @@
+package MenuBar.File;
+
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import Canvas.CanvasPanel;
+import Persistence.DiagramJournal;
+import Persistence.DiagramReader;
+import Persistence.LazyDiagram;
+import Shapes.BaseShape;
+import Shapes.ShapeTable;
+
+/**
+ * 開啟圖表選單項目類
+ */
+public class OpenDiagram extends JMenuItem {
+    private static final long LAZY_LOAD_SIZE = 16L * 1024 * 1024; // 超過此大小且有索引的檔案改用延遲載入
+    private CanvasPanel canvasPanel;
+    private JFrame parentFrame;
+
+    // 建構子
+    public OpenDiagram(JFrame frame) {
+        super("Open Diagram"); // 設定 JMenuItem 標題
+        this.parentFrame = frame;
+
+        // 加入事件監聽
+        this.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (canvasPanel != null) {
+                    openDiagram();
+                } else {
+                    JOptionPane.showMessageDialog(frame, "無法開啟檔案");
+                }
+            }
+        });
+    }
+
+    /**
+     * 選擇圖表檔案並以其內容取代畫布上的圖表
+     * 大型檔案以記憶體映射延遲載入，只建立畫面上看得到的形狀
+     * 檔案旁邊的編輯日誌有儲存過的編輯時先重播日誌；上次沒有正常關閉而留下沒有儲存的編輯時，詢問是否還原
+     * 完整載入的圖表之後的編輯都記錄在編輯日誌；延遲載入的圖表在第一次儲存後才開始記錄
+     */
+    private void openDiagram() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("開啟圖表");
+        fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("UML 圖表檔", "umld"));
+
+        if (fileChooser.showOpenDialog(parentFrame) == JFileChooser.APPROVE_OPTION) {
+            Path path = fileChooser.getSelectedFile().toPath();
+            DiagramJournal previous = DiagramJournal.of(canvasPanel);
+            boolean reopening = previous != null && previous.getSnapshotPath().equals(path);
+            try {
+                if (reopening) {
+                    // 重新開啟同一個圖表檔：先讓壓縮寫完，再從磁碟讀取
+                    previous.awaitCompaction();
+                }
+                // 先讀取新的圖表，讀取失敗時畫布上的圖表與它的日誌都不受影響
+                DiagramJournal.Recovery recovery = DiagramJournal.recover(path);
+                LazyDiagram lazy = null;
+                ShapeTable table = null;
+                if (recovery != null) {
+                    if (!reopening && recovery.hasUnsavedEdits() && JOptionPane.showConfirmDialog(
+                            parentFrame,
+                            "上次沒有正常關閉，這個圖表有尚未儲存的編輯，要還原嗎？\n還原的編輯要再儲存才會寫入圖表檔。",
+                            "還原編輯",
+                            JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+                        recovery.restoreUnsavedEdits();
+                    }
+                    table = recovery.getTable();
+                } else if (Files.size(path) >= LAZY_LOAD_SIZE && LazyDiagram.isIndexed(path)) {
+                    lazy = LazyDiagram.open(path);
+                } else {
+                    table = new DiagramReader().read(path);
+                }
+
+                // 載入前關閉原本的日誌，取代畫布內容的編輯不會記錄到原本的圖表檔
+                if (previous != null) {
+                    previous.close();
+                }
+                if (lazy != null) {
+                    canvasPanel.openLazy(lazy);
+                } else {
+                    BaseShape[] objects = new BaseShape[table.size()];
+                    canvasPanel.loadTable(table, objects);
+                    if (recovery != null) {
+                        recovery.resume(objects, canvasPanel);
+                    } else {
+                        DiagramJournal.attach(path, table, objects, canvasPanel);
+                    }
+                }
+            } catch (Exception ex) {
+                JOptionPane.showMessageDialog(
+                        parentFrame,
+                        "開啟時發生錯誤：" + ex.getMessage(),
+                        "錯誤",
+                        JOptionPane.ERROR_MESSAGE
+                );
+            }
+        }
+    }
+
+    /**
+     * 設定畫布面板
+     */
+    public void setCanvasPanel(CanvasPanel canvasPanel) {
+        this.canvasPanel = canvasPanel;
+    }
+}
@@ -0,0 +1,97 @@
+package MenuBar.File;
+
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import Canvas.CanvasPanel;
+import Persistence.DiagramJournal;
+
+/**
+ * 儲存圖表選單項目類
+ */
+public class SaveDiagram extends JMenuItem {
+    private CanvasPanel canvasPanel;
+    private JFrame parentFrame;
+
+    // 建構子
+    public SaveDiagram(JFrame frame) {
+        super("Save Diagram"); // 設定 JMenuItem 標題
+        this.parentFrame = frame;
+
+        // 加入事件監聽
+        this.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (canvasPanel != null) {
+                    saveDiagram();
+                } else {
+                    JOptionPane.showMessageDialog(frame, "無法儲存檔案");
+                }
+            }
+        });
+    }
+
+    /**
+     * 將畫布上的圖表儲存為圖表檔案
+     * 儲存到正在記錄編輯日誌的檔案時只需要把日誌寫入磁碟，其他情況寫入完整的圖表檔並開始新的日誌
+     */
+    private void saveDiagram() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("儲存圖表");
+        fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("UML 圖表檔", "umld"));
+
+        if (fileChooser.showSaveDialog(parentFrame) == JFileChooser.APPROVE_OPTION) {
+            try {
+                File file = fileChooser.getSelectedFile();
+
+                // 確保檔案有.umld副檔名
+                if (!file.getName().toLowerCase().endsWith(".umld")) {
+                    file = new File(file.getAbsolutePath() + ".umld");
+                }
+
+                if (!syncJournal(file)) {
+                    DiagramJournal previous = DiagramJournal.of(canvasPanel);
+                    if (previous != null) {
+                        previous.close();
+                    }
+                    DiagramJournal.create(file.toPath(), canvasPanel);
+                }
+                JOptionPane.showMessageDialog(parentFrame, "已成功儲存檔案：" + file.getName());
+            } catch (Exception ex) {
+                JOptionPane.showMessageDialog(
+                        parentFrame,
+                        "儲存時發生錯誤：" + ex.getMessage(),
+                        "錯誤",
+                        JOptionPane.ERROR_MESSAGE
+                );
+            }
+        }
+    }
+
+    /**
+     * 畫布正在以編輯日誌記錄同一個檔案時，在日誌記下儲存點並寫入磁碟
+     * 開啟圖表時只重播到最後一個儲存點，之後的編輯視為沒有儲存
+     * @return 是否已經儲存；日誌寫入失敗時回傳 false，改為重新寫入完整的圖表檔
+     */
+    private boolean syncJournal(File file) {
+        DiagramJournal journal = DiagramJournal.of(canvasPanel);
+        if (journal != null && journal.getSnapshotPath().toAbsolutePath().equals(file.toPath().toAbsolutePath())) {
+            try {
+                journal.commit();
+                return true;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 設定畫布面板
+     */
+    public void setCanvasPanel(CanvasPanel canvasPanel) {
+        this.canvasPanel = canvasPanel;
+    }
+}
@@ -1,18 +1,18 @@
 package MenuBar.File;
 
 import javax.swing.*;
-import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import javax.imageio.ImageIO;
 import Canvas.CanvasPanel;
+import Persistence.PngExporter;
 
 /**
  * 儲存檔案選單項目類
  */
 public class SaveFile extends JMenuItem {
+    private static final Integer[] DPI_CHOICES = {96, 150, 300, 600};
+    private static final int CANCEL_POLL_INTERVAL = 100; // 檢查匯出是否被取消的間隔（毫秒）
     private CanvasPanel canvasPanel;
     private JFrame parentFrame;
 
@@ -35,7 +35,9 @@ public class SaveFile extends JMenuItem {
     }
 
     /**
-     * 將畫布儲存為PNG檔案
+     * 將整張圖表匯出為PNG檔案
+     * 以選擇的解析度繪製圖表的完整範圍，不限於視窗中看得到的部分
+     * 匯出在背景執行緒進行，進度對話框可以取消
      */
     private void saveCanvasAsPNG() {
         JFileChooser fileChooser = new JFileChooser();
@@ -52,35 +54,79 @@ public class SaveFile extends JMenuItem {
                     file = new File(file.getAbsolutePath() + ".png");
                 }
 
-                // 建立與畫布相同大小的緩衝圖像
-                Component canvas = canvasPanel;
-                BufferedImage image = new BufferedImage(
-                        canvas.getWidth(),
-                        canvas.getHeight(),
-                        BufferedImage.TYPE_INT_RGB
-                );
+                Integer dpi = (Integer) JOptionPane.showInputDialog(parentFrame, "解析度 (DPI)：", "儲存為PNG",
+                        JOptionPane.QUESTION_MESSAGE, null, DPI_CHOICES, DPI_CHOICES[0]);
+                if (dpi == null) {
+                    return;
+                }
 
-                // 繪製畫布內容到緩衝圖像
-                Graphics2D g2d = image.createGraphics();
-                g2d.setColor(Color.WHITE);
-                g2d.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
-                canvas.paint(g2d);
-                g2d.dispose();
+                // 在事件執行緒上擷取圖表，之後的繪製與編碼都在背景進行
+                PngExporter exporter = new PngExporter(canvasPanel.captureTable(), dpi);
+                new ExportWorker(exporter, file).execute();
+            } catch (Exception ex) {
+                showError(ex);
+            }
+        }
+    }
 
-                // 儲存圖像
-                if (ImageIO.write(image, "png", file)) {
-                    JOptionPane.showMessageDialog(parentFrame, "已成功儲存檔案：" + file.getName());
-                } else {
-                    JOptionPane.showMessageDialog(parentFrame, "儲存失敗：無法寫入檔案格式");
+    private void showError(Exception ex) {
+        JOptionPane.showMessageDialog(
+                parentFrame,
+                "儲存時發生錯誤：" + ex.getMessage(),
+                "錯誤",
+                JOptionPane.ERROR_MESSAGE
+        );
+    }
+
+    /**
+     * 在背景執行匯出，並以進度對話框顯示進度
+     * 按下取消時中斷背景執行緒，匯出器會停止並刪除未完成的檔案
+     */
+    private class ExportWorker extends SwingWorker<Void, Void> {
+        private final PngExporter exporter;
+        private final File file;
+        private final ProgressMonitor monitor;
+        private final Timer cancelPoll; // 定期檢查使用者是否按下取消，不必等到下一次進度更新
+
+        ExportWorker(PngExporter exporter, File file) {
+            this.exporter = exporter;
+            this.file = file;
+            this.monitor = new ProgressMonitor(parentFrame,
+                    "正在匯出 " + exporter.getWidth() + " x " + exporter.getHeight() + " 像素的圖像",
+                    null, 0, 100);
+            monitor.setMillisToDecideToPopup(200);
+            monitor.setMillisToPopup(200);
+            addPropertyChangeListener(event -> {
+                if ("progress".equals(event.getPropertyName())) {
+                    monitor.setProgress((Integer) event.getNewValue());
                 }
+            });
+            this.cancelPoll = new Timer(CANCEL_POLL_INTERVAL, event -> {
+                if (monitor.isCanceled() && !isDone()) {
+                    cancel(true);
+                }
+            });
+            cancelPoll.start();
+        }
 
+        @Override
+        protected Void doInBackground() throws Exception {
+            exporter.export(file.toPath(), (done, total) -> setProgress(done * 100 / total));
+            return null;
+        }
+
+        @Override
+        protected void done() {
+            cancelPoll.stop();
+            monitor.close();
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                get();
+                JOptionPane.showMessageDialog(parentFrame, "已成功儲存檔案：" + file.getName());
             } catch (Exception ex) {
-                JOptionPane.showMessageDialog(
-                        parentFrame,
-                        "儲存時發生錯誤：" + ex.getMessage(),
-                        "錯誤",
-                        JOptionPane.ERROR_MESSAGE
-                );
+                showError(ex.getCause() instanceof Exception cause ? cause : ex);
             }
         }
     }
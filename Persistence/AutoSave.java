@@ -0,0 +1,220 @@
+package Persistence;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JOptionPane;
+import javax.swing.Timer;
+import Canvas.CanvasPanel;
+import Canvas.EditListener;
+import Shapes.BaseShape;
+import Shapes.CompositeShape;
+import Shapes.Link;
+import Shapes.ShapeTable;
+
+/**
+ * 自動儲存
+ * 依編輯通知維護一份以元素編號索引的圖表副本，每次編輯只更新改變的元素
+ * 計時器在事件執行緒上複製副本的欄位陣列作為不可變的快照，排序、編碼與寫入磁碟都在背景執行緒進行，
+ * 因此自動儲存不需要在事件執行緒上走訪物件模型，也不會等待磁碟
+ * 畫布正在以編輯日誌記錄圖表檔時，背景執行緒也會把日誌寫入磁碟
+ */
+public class AutoSave implements EditListener {
+    public static final int DEFAULT_INTERVAL = 30_000; // 自動儲存的間隔（毫秒）
+
+    private final CanvasPanel canvas;
+    private final Path target;
+    private final ElementTable elements = new ElementTable(); // 畫布上圖表的副本，只在事件執行緒上存取
+    private final Map<BaseShape, Integer> ids = new IdentityHashMap<>(); // 元素 -> 元素編號
+    private int nextId = 0;
+    private boolean dirty = false; // 上次自動儲存之後是否有編輯
+    private volatile boolean saving = false; // 背景執行緒是否正在寫入上一份快照
+    private volatile IOException failure; // 最近一次自動儲存失敗的原因，成功時為 null
+    private boolean failureReported = false; // 已經告知使用者自動儲存失敗，之後成功寫入時清除，持續失敗只提示一次
+    private boolean suspensionReported = false; // 已經告知使用者延遲載入的圖表暫停自動儲存，圖表全部載入後清除
+    private final Timer timer;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "diagram-autosave");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param canvas 畫布
+     * @param target 自動儲存的圖表檔路徑
+     * @param interval 自動儲存的間隔（毫秒）
+     */
+    public AutoSave(CanvasPanel canvas, Path target, int interval) {
+        this.canvas = canvas;
+        this.target = target;
+        this.timer = new Timer(interval, e -> save());
+    }
+
+    /**
+     * 預設的自動儲存檔案，位於使用者目錄下
+     */
+    public static Path defaultPath() {
+        return Path.of(System.getProperty("user.home"), ".umleditor", "autosave." + DiagramFormat.EXTENSION);
+    }
+
+    /**
+     * 開始監聽畫布的編輯並定期自動儲存，必須在事件執行緒上呼叫
+     */
+    public void start() {
+        // 以畫布上已建立的形狀作為副本的起點，延遲載入的形狀建立時會以 LOAD 通知
+        Map<BaseShape, Integer> rows = new IdentityHashMap<>();
+        ShapeTable table = ShapeTable.capture(canvas.getShapes(), rows);
+        int[] rowIds = new int[table.size()];
+        for (Map.Entry<BaseShape, Integer> entry : rows.entrySet()) {
+            rowIds[entry.getValue()] = idOf(entry.getKey());
+        }
+        elements.load(table, rowIds);
+        canvas.addEditListener(this);
+        timer.start();
+    }
+
+    /**
+     * 停止自動儲存並等待寫入中的快照完成，可以在任何執行緒呼叫（例如程式結束時的關閉掛鉤）
+     */
+    public void stop() {
+        timer.stop();
+        canvas.removeEditListener(this);
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    @Override
+    public void edited(Edit edit, Collection<? extends BaseShape> changed, Collection<? extends BaseShape> removed) {
+        List<BaseShape> removedElements = new ArrayList<>();
+        for (BaseShape shape : removed) {
+            collectSubtree(shape, removedElements);
+        }
+        for (BaseShape shape : removedElements) {
+            Integer id = ids.remove(shape);
+            if (id != null) {
+                elements.remove(id);
+            }
+        }
+
+        List<BaseShape> changedElements = new ArrayList<>();
+        for (BaseShape shape : changed) {
+            collectSubtree(shape, changedElements);
+        }
+        ShapeTable scratch = new ShapeTable(changedElements.size());
+        for (BaseShape shape : changedElements) {
+            int row = scratch.addShape(shape);
+            if (row == ShapeTable.NONE) {
+                continue;
+            }
+            int id = idOf(shape);
+            elements.put(id, scratch, row, shape.getParent() == null ? ShapeTable.NONE : idOf(shape.getParent()));
+            if (shape instanceof Link link) {
+                // 端點形狀可能在這批元素的後面，先取得編號
+                elements.setEndpoints(id, endpointId(link.getStartShape()), endpointId(link.getEndShape()));
+            }
+        }
+        dirty = true;
+    }
+
+    /**
+     * 在事件執行緒上複製副本，交給背景執行緒寫入
+     * 上一份快照還沒寫完時留到下一次
+     * 延遲載入的圖表還有尚未建立的形狀時，副本不完整，暫停自動儲存並告知使用者，圖表全部載入後恢復
+     * 背景寫入失敗時告知使用者一次，之後仍繼續嘗試，成功寫入後再次失敗才會再提示
+     */
+    private void save() {
+        IOException error = failure;
+        if (error == null) {
+            failureReported = false;
+        } else if (!failureReported) {
+            failureReported = true;
+            JOptionPane.showMessageDialog(canvas, "無法自動儲存到 " + target + "：" + error.getMessage(),
+                    "自動儲存失敗", JOptionPane.WARNING_MESSAGE);
+        }
+        if (!canvas.isFullyLoaded()) {
+            if (dirty && !suspensionReported) {
+                suspensionReported = true;
+                JOptionPane.showMessageDialog(canvas,
+                        "圖表還有尚未載入的形狀，自動儲存暫停到圖表全部載入為止。\n儲存圖表會載入全部的形狀，之後恢復自動儲存。",
+                        "自動儲存已暫停", JOptionPane.INFORMATION_MESSAGE);
+            }
+            return;
+        }
+        suspensionReported = false;
+        DiagramJournal journal = DiagramJournal.of(canvas);
+        if (saving || (!dirty && journal == null)) {
+            return;
+        }
+        ElementTable snapshot = dirty ? elements.copy() : null;
+        dirty = false;
+        saving = true;
+        writer.execute(() -> write(snapshot, journal));
+    }
+
+    /**
+     * 在背景執行緒將快照寫入暫存檔，寫入磁碟後取代自動儲存檔案
+     */
+    private void write(ElementTable snapshot, DiagramJournal journal) {
+        try {
+            if (journal != null) {
+                journal.sync();
+            }
+            if (snapshot != null) {
+                Files.createDirectories(target.getParent());
+                Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    new DiagramWriter().write(snapshot.toTable(), channel);
+                    channel.force(true);
+                }
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            failure = null;
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            saving = false;
+        }
+    }
+
+    private static void collectSubtree(BaseShape shape, List<BaseShape> result) {
+        result.add(shape);
+        if (shape instanceof CompositeShape group) {
+            for (BaseShape child : group.getShapes()) {
+                collectSubtree(child, result);
+            }
+        }
+    }
+
+    private int idOf(BaseShape shape) {
+        Integer id = ids.get(shape);
+        if (id == null) {
+            id = nextId++;
+            ids.put(shape, id);
+        }
+        return id;
+    }
+
+    private int endpointId(BaseShape shape) {
+        return shape == null ? ShapeTable.NONE : idOf(shape);
+    }
+}
@@ -0,0 +1,78 @@
+package Persistence;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 圖表二進位檔案格式
+ *
+ * 檔案結構（整數皆為 little-endian）：
+ * 檔頭：MAGIC (4 bytes)、VERSION (varint)、元素數量 (varint)、字串數量 (varint)
+ * 字串表：編號 1 開始的每個字串，UTF-8 位元組長度 (varint) 加上內容；編號 0 固定為空字串，不寫入
+ * 元素紀錄：依列號順序，每筆紀錄的列號就是其他紀錄引用它時使用的編號
+ *   共同欄位：種類 (1 byte)、旗標 (1 byte)、x 與 y 相對於上一筆紀錄的差 (zigzag varint)、
+ *            寬與高 (zigzag varint)、深度相對於上一筆紀錄的差 (zigzag varint)、所屬群組列號 + 1 (varint)
+ *   形狀：名稱字串編號 (varint)、標籤顏色 ARGB (4 bytes)、字體大小 (varint)
+ *   連結：起點形狀列號 + 1 (varint)、終點形狀列號 + 1 (varint)
+ *   群組：沒有額外欄位
+ *
+ * 版本 2 起，頂層元素的 x、y 與深度直接記錄數值（相對於 0），群組的子元素緊接在群組之後，
+ * 因此每個頂層元素連同它的子元素都可以從它的位置單獨解碼
+ * 元素紀錄之後是頂層元素索引與檔尾：
+ *   索引：頂層元素數量 (4 bytes)，接著每個頂層元素一筆 INDEX_ENTRY_SIZE 位元組的項目：
+ *        第一列的列號 (4 bytes)、紀錄位置 (8 bytes)、深度 (4 bytes)、
+ *        包含子元素的外接範圍 minX、minY、maxX、maxY (各 4 bytes)
+ *   檔尾：索引位置 (8 bytes)、INDEX_MAGIC (4 bytes)
+ */
+final class DiagramFormat {
+    static final int MAGIC = 0x444C4D55; // 檔案開頭的 "UMLD"
+    static final int INDEX_MAGIC = 0x494C4D55; // 檔尾的 "UMLI"
+    static final int VERSION = 2;
+    static final int FIRST_INDEXED_VERSION = 2; // 開始有頂層元素索引的版本
+    static final String EXTENSION = "umld";
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int MAX_RECORD_SIZE = 64; // 單筆元素紀錄的最大位元組數（不含字串）
+    static final int INDEX_ENTRY_SIZE = 32;
+    static final int FOOTER_SIZE = 12;
+
+    private DiagramFormat() {
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * 寫入無號 varint，每個位元組保存 7 個位元，最高位元表示後面還有位元組
+     */
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * 讀取無號 varint
+     */
+    static int getVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new EOFException("圖表檔案不完整");
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("圖表檔案已損毀");
+    }
+}
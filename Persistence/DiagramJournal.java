@@ -0,0 +1,889 @@
+package Persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import Canvas.CanvasPanel;
+import Canvas.EditListener;
+import Shapes.BaseShape;
+import Shapes.CompositeShape;
+import Shapes.Link;
+import Shapes.ShapeTable;
+
+/**
+ * 圖表編輯日誌
+ * 畫布上的每次編輯都在日誌檔後面附加一筆紀錄，儲存時只需要附加 COMMIT 紀錄並把日誌寫入磁碟，成本與編輯量成正比
+ * 儲存後日誌超過快照大小的一半時在背景壓縮：重新寫入完整的快照並開始新的日誌，快照因此只會包含已儲存的編輯
+ * 開啟圖表時以 recover 讀取快照並重播到最後一筆 COMMIT，寫到一半的紀錄會被忽略
+ * 正常關閉時截掉最後一筆 COMMIT 之後沒有儲存的編輯；日誌中沒有已儲存的編輯時直接刪除日誌
+ *
+ * 壓縮的步驟與中斷時的復原方式：
+ * 1. （事件執行緒，儲存時）擷取形狀表，開始 NEXT_SUFFIX 日誌，之後的編輯寫入新日誌
+ * 2. （背景）將快照寫入暫存檔，把它的長度與 CRC 填入新日誌的檔頭
+ * 3. （背景）以暫存檔取代快照，再以新日誌取代舊日誌
+ * 第 3 步之前中斷時快照仍是舊的，重播舊日誌後再重播新日誌；之後中斷時新日誌的檔頭與快照相符，只重播新日誌
+ */
+public class DiagramJournal implements EditListener {
+    private static final long MIN_COMPACT_SIZE = 1 << 20; // 日誌小於此大小時不壓縮
+
+    private final Path snapshotPath;
+    private final Path journalPath;
+    private final Path nextPath;
+    private final CanvasPanel canvas;
+    private final Map<BaseShape, Integer> ids = new IdentityHashMap<>(); // 元素 -> 元素編號
+    private int nextId = 0;
+    private volatile FileChannel channel; // 目前寫入的日誌，自動儲存會在背景執行緒寫入磁碟
+    private long generation = 0;
+    private volatile long snapshotSize; // 最近一次快照的大小，決定何時壓縮
+    private long committedSize; // 目前的日誌到最後一筆 COMMIT 紀錄為止的長度
+    private boolean committedEdits = false; // 目前的日誌在 committedSize 之前是否有編輯紀錄
+    private boolean pendingEdits = false; // 上次儲存之後是否有編輯紀錄
+    private ByteBuffer record = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer frame = ByteBuffer.allocate(JournalFormat.FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc = new CRC32();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "diagram-journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean compacting = false;
+    private volatile IOException failure; // 寫入或壓縮失敗的原因，下次儲存時回報
+
+    private DiagramJournal(Path snapshotPath, CanvasPanel canvas) {
+        this.snapshotPath = snapshotPath;
+        this.journalPath = sibling(snapshotPath, JournalFormat.SUFFIX);
+        this.nextPath = sibling(snapshotPath, JournalFormat.NEXT_SUFFIX);
+        this.canvas = canvas;
+    }
+
+    /**
+     * 將畫布上的圖表完整寫入圖表檔，並開始記錄之後的編輯
+     * @param snapshotPath 圖表檔路徑
+     * @param canvas 畫布
+     * @return 編輯日誌，已註冊為畫布的編輯監聽器
+     * @throws IOException 寫入失敗
+     */
+    public static DiagramJournal create(Path snapshotPath, CanvasPanel canvas) throws IOException {
+        DiagramJournal journal = new DiagramJournal(snapshotPath, canvas);
+        Map<BaseShape, Integer> rows = new IdentityHashMap<>();
+        ShapeTable table = canvas.captureTable(rows);
+        int[] rowIds = journal.assignIds(table, rows);
+
+        Path snapshotTemp = sibling(snapshotPath, ".tmp");
+        Path journalTemp = sibling(journal.journalPath, ".tmp");
+        long[] base = writeSnapshot(table, snapshotTemp);
+        journal.channel = startJournal(journalTemp, 1, 0, base, rowIds);
+        journal.channel.force(true);
+        // 快照先取代，中斷時新快照配上舊日誌，舊日誌的檔頭不符而被忽略
+        Files.move(snapshotTemp, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(journalTemp, journal.journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(journal.nextPath);
+        journal.generation = 1;
+        journal.snapshotSize = base[0];
+        journal.committedSize = journal.channel.size();
+        canvas.addEditListener(journal);
+        return journal;
+    }
+
+    /**
+     * 以剛開啟的圖表檔為快照開始記錄之後的編輯，不重新寫入圖表檔
+     * @param snapshotPath 圖表檔路徑
+     * @param table 從圖表檔讀取的形狀表
+     * @param objects 畫布以形狀表建立的物件，第 row 個元素是第 row 列的物件
+     * @param canvas 畫布
+     * @return 編輯日誌，已註冊為畫布的編輯監聽器
+     * @throws IOException 寫入失敗
+     */
+    public static DiagramJournal attach(Path snapshotPath, ShapeTable table, BaseShape[] objects, CanvasPanel canvas)
+            throws IOException {
+        DiagramJournal journal = new DiagramJournal(snapshotPath, canvas);
+        int[] rowIds = new int[table.size()];
+        for (int row = 0; row < table.size(); row++) {
+            rowIds[row] = row;
+        }
+        journal.start(rowIds, objects, checksum(snapshotPath));
+        return journal;
+    }
+
+    /**
+     * 以目前的圖表檔為基準開始新的日誌並註冊為畫布的編輯監聽器
+     * @param rowIds 圖表檔每一列的元素編號
+     * @param objects 畫布上每一列的物件
+     * @param base 圖表檔的長度與 CRC
+     */
+    private void start(int[] rowIds, BaseShape[] objects, long[] base) throws IOException {
+        mapIds(rowIds, objects);
+        Path journalTemp = sibling(journalPath, ".tmp");
+        channel = startJournal(journalTemp, 1, 0, base, rowIds);
+        channel.force(true);
+        Files.move(journalTemp, journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(nextPath);
+        generation = 1;
+        snapshotSize = base[0];
+        committedSize = channel.size();
+        canvas.addEditListener(this);
+    }
+
+    /**
+     * 記錄畫布上每個物件的元素編號
+     */
+    private void mapIds(int[] rowIds, BaseShape[] objects) {
+        for (int row = 0; row < objects.length; row++) {
+            if (objects[row] != null) {
+                ids.put(objects[row], rowIds[row]);
+            }
+            nextId = Math.max(nextId, rowIds[row] + 1);
+        }
+    }
+
+    /**
+     * 取得正在記錄畫布編輯的日誌
+     * @param canvas 畫布
+     * @return 編輯日誌，沒有時回傳 null
+     */
+    public static DiagramJournal of(CanvasPanel canvas) {
+        for (EditListener listener : canvas.getEditListeners()) {
+            if (listener instanceof DiagramJournal journal) {
+                return journal;
+            }
+        }
+        return null;
+    }
+
+    public Path getSnapshotPath() {
+        return snapshotPath;
+    }
+
+    /**
+     * 將已附加的紀錄寫入磁碟，可以在任何執行緒呼叫
+     * 沒有儲存的編輯也會寫入，程式中斷後開啟圖表時可以選擇還原
+     * @throws IOException 寫入失敗，或先前的紀錄、背景壓縮曾經失敗
+     */
+    public void sync() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        FileChannel current = channel;
+        if (current != null) {
+            try {
+                current.force(false);
+            } catch (ClosedChannelException e) {
+                // 日誌已經關閉，關閉時已寫入磁碟
+            }
+        }
+    }
+
+    /**
+     * 儲存圖表：附加 COMMIT 紀錄並把日誌寫入磁碟，之前的編輯成為圖表檔的一部分
+     * 日誌超過快照大小的一半時接著在背景壓縮
+     * @throws IOException 寫入失敗，或先前的紀錄、背景壓縮曾經失敗
+     */
+    public void commit() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (pendingEdits) {
+            record.clear();
+            record.put(JournalFormat.COMMIT);
+            writeRecord(channel);
+        }
+        channel.force(false);
+        if (pendingEdits) {
+            committedSize = channel.size();
+            committedEdits = true;
+            pendingEdits = false;
+            if (!compacting && committedSize > Math.max(MIN_COMPACT_SIZE, snapshotSize / 2)) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * 等待背景壓縮完成，之後圖表檔與日誌都是最後一次儲存時的內容
+     */
+    public void awaitCompaction() {
+        try {
+            compactor.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            // 日誌已經關閉，關閉時已等待壓縮完成
+        }
+    }
+
+    /**
+     * 等待背景壓縮完成並關閉日誌，之後的編輯不再記錄
+     * 上次儲存之後的編輯不屬於圖表檔，從日誌中截掉；日誌中沒有已儲存的編輯時刪除日誌，只留下圖表檔
+     */
+    public void close() {
+        canvas.removeEditListener(this);
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        FileChannel current = channel;
+        channel = null;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.truncate(committedSize);
+            current.force(false);
+            current.close();
+            // 壓縮失敗時目前的日誌還沒取代舊日誌，兩者都要留著
+            if (!committedEdits && failure == null) {
+                Files.deleteIfExists(journalPath);
+                Files.deleteIfExists(nextPath);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    @Override
+    public void edited(Edit edit, Collection<? extends BaseShape> changed, Collection<? extends BaseShape> removed) {
+        if (channel == null || failure != null) {
+            return;
+        }
+        record.clear();
+        record.put((byte) (JournalFormat.EDIT_BASE + edit.ordinal()));
+
+        List<BaseShape> elements = new ArrayList<>();
+        for (BaseShape shape : changed) {
+            collectSubtree(shape, elements);
+        }
+        ShapeTable scratch = new ShapeTable(elements.size());
+        List<BaseShape> written = new ArrayList<>(elements.size()); // 第 row 個元素在 scratch 的第 row 列
+        for (BaseShape shape : elements) {
+            if (scratch.addShape(shape) != ShapeTable.NONE) {
+                written.add(shape);
+            }
+        }
+        ensureSpace(5);
+        DiagramFormat.putVarint(record, written.size());
+        for (int row = 0; row < written.size(); row++) {
+            putElement(written.get(row), scratch, row);
+        }
+
+        List<BaseShape> removedElements = new ArrayList<>();
+        for (BaseShape shape : removed) {
+            collectSubtree(shape, removedElements);
+        }
+        List<Integer> removedIds = new ArrayList<>();
+        for (BaseShape shape : removedElements) {
+            Integer id = ids.remove(shape);
+            if (id != null) {
+                removedIds.add(id);
+            }
+        }
+        ensureSpace(5 + removedIds.size() * 5);
+        DiagramFormat.putVarint(record, removedIds.size());
+        for (int id : removedIds) {
+            DiagramFormat.putVarint(record, id);
+        }
+
+        try {
+            writeRecord(channel);
+            pendingEdits = true;
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private static void collectSubtree(BaseShape shape, List<BaseShape> result) {
+        result.add(shape);
+        if (shape instanceof CompositeShape group) {
+            for (BaseShape child : group.getShapes()) {
+                collectSubtree(child, result);
+            }
+        }
+    }
+
+    /**
+     * 寫入一個元素編輯後的狀態，種類、範圍與標籤取自 scratch 中的列
+     */
+    private void putElement(BaseShape shape, ShapeTable scratch, int row) {
+        byte kind = scratch.getKind(row);
+        byte[] name = ShapeTable.isLink(kind) || kind == ShapeTable.GROUP ? null
+                : scratch.getName(row).getBytes(StandardCharsets.UTF_8);
+        ensureSpace(DiagramFormat.MAX_RECORD_SIZE + (name == null ? 0 : name.length));
+        DiagramFormat.putVarint(record, idOf(shape));
+        record.put(kind);
+        // 選取狀態不是編輯，不寫入日誌
+        record.put((byte) (scratch.getFlags(row) & ~ShapeTable.FLAG_SELECTED));
+        DiagramFormat.putVarint(record, DiagramFormat.zigzag(scratch.getX(row)));
+        DiagramFormat.putVarint(record, DiagramFormat.zigzag(scratch.getY(row)));
+        DiagramFormat.putVarint(record, DiagramFormat.zigzag(scratch.getWidth(row)));
+        DiagramFormat.putVarint(record, DiagramFormat.zigzag(scratch.getHeight(row)));
+        DiagramFormat.putVarint(record, DiagramFormat.zigzag(scratch.getDepth(row)));
+        DiagramFormat.putVarint(record, shape.getParent() == null ? 0 : idOf(shape.getParent()) + 1);
+        if (shape instanceof Link link) {
+            DiagramFormat.putVarint(record, knownId(link.getStartShape()) + 1);
+            DiagramFormat.putVarint(record, knownId(link.getEndShape()) + 1);
+        } else if (name != null) {
+            DiagramFormat.putVarint(record, name.length);
+            record.put(name);
+            record.putInt(scratch.getLabelColor(row));
+            DiagramFormat.putVarint(record, scratch.getFontSize(row));
+        }
+    }
+
+    private int idOf(BaseShape shape) {
+        Integer id = ids.get(shape);
+        if (id == null) {
+            id = nextId++;
+            ids.put(shape, id);
+        }
+        return id;
+    }
+
+    private int knownId(BaseShape shape) {
+        Integer id = shape == null ? null : ids.get(shape);
+        return id == null ? ShapeTable.NONE : id;
+    }
+
+    /**
+     * 為擷取的形狀表中每一列的元素取得編號
+     */
+    private int[] assignIds(ShapeTable table, Map<BaseShape, Integer> rows) {
+        int[] rowIds = new int[table.size()];
+        for (Map.Entry<BaseShape, Integer> entry : rows.entrySet()) {
+            rowIds[entry.getValue()] = idOf(entry.getKey());
+        }
+        return rowIds;
+    }
+
+    private void ensureSpace(int bytes) {
+        if (record.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + bytes))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            record.flip();
+            larger.put(record);
+            record = larger;
+        }
+    }
+
+    /**
+     * 以長度與 CRC 包住 record 的內容並附加到日誌
+     */
+    private void writeRecord(FileChannel target) throws IOException {
+        record.flip();
+        crc.reset();
+        crc.update(record.duplicate());
+        frame.clear();
+        frame.putInt(record.remaining());
+        frame.putInt((int) crc.getValue());
+        frame.flip();
+        ByteBuffer[] buffers = {frame, record};
+        while (record.hasRemaining()) {
+            target.write(buffers);
+        }
+    }
+
+    /**
+     * 儲存後開始背景壓縮，之後的編輯寫入新日誌
+     */
+    private void compact() throws IOException {
+        Map<BaseShape, Integer> rows = new IdentityHashMap<>();
+        ShapeTable table = canvas.captureTable(rows);
+        int[] rowIds = assignIds(table, rows);
+        FileChannel next = startJournal(nextPath, generation + 1, generation, null, rowIds);
+        FileChannel previous = channel;
+        channel = next;
+        generation++;
+        committedSize = next.size();
+        committedEdits = false;
+        compacting = true;
+        compactor.execute(() -> finishCompaction(table, previous, next));
+    }
+
+    /**
+     * 在背景寫入快照並以新日誌取代舊日誌
+     */
+    private void finishCompaction(ShapeTable table, FileChannel previous, FileChannel next) {
+        try {
+            previous.force(false);
+            previous.close();
+            Path snapshotTemp = sibling(snapshotPath, ".tmp");
+            long[] base = writeSnapshot(table, snapshotTemp);
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(base[0]).putInt((int) base[1]).flip();
+            while (header.hasRemaining()) {
+                next.write(header, JournalFormat.BASE_OFFSET + header.position());
+            }
+            next.force(false);
+            Files.move(snapshotTemp, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(nextPath, journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            snapshotSize = base[0];
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            compacting = false;
+        }
+    }
+
+    /**
+     * 建立日誌檔並寫入檔頭與 ROW_IDS 紀錄
+     * @param base 基準圖表檔的長度與 CRC，尚未寫完時為 null
+     */
+    private static FileChannel startJournal(Path path, long generation, long previousGeneration, long[] base,
+                                            int[] rowIds) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(JournalFormat.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(JournalFormat.MAGIC);
+            header.putInt(JournalFormat.VERSION);
+            header.putLong(generation);
+            header.putLong(previousGeneration);
+            header.putLong(base == null ? JournalFormat.UNKNOWN_BASE : base[0]);
+            header.putInt(base == null ? 0 : (int) base[1]);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            boolean identity = true;
+            for (int row = 0; row < rowIds.length && identity; row++) {
+                identity = rowIds[row] == row;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(11 + (identity ? 0 : rowIds.length * 5)).order(ByteOrder.LITTLE_ENDIAN);
+            payload.put(JournalFormat.ROW_IDS);
+            DiagramFormat.putVarint(payload, rowIds.length);
+            payload.put((byte) (identity ? 1 : 0));
+            if (!identity) {
+                for (int id : rowIds) {
+                    DiagramFormat.putVarint(payload, id);
+                }
+            }
+            payload.flip();
+            CRC32 checksum = new CRC32();
+            checksum.update(payload.duplicate());
+            ByteBuffer frame = ByteBuffer.allocate(JournalFormat.FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            frame.putInt(payload.remaining()).putInt((int) checksum.getValue()).flip();
+            ByteBuffer[] buffers = {frame, payload};
+            while (payload.hasRemaining()) {
+                channel.write(buffers);
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 將形狀表寫入檔案並寫入磁碟
+     * @return 檔案的長度與 CRC
+     */
+    private static long[] writeSnapshot(ShapeTable table, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            new DiagramWriter().write(table, channel);
+            channel.force(true);
+        }
+        return checksum(path);
+    }
+
+    /**
+     * 計算檔案的長度與 CRC，用來確認日誌的基準就是目前的圖表檔
+     */
+    private static long[] checksum(Path path) throws IOException {
+        CRC32 checksum = new CRC32();
+        long length = 0;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DiagramFormat.BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                length += buffer.remaining();
+                checksum.update(buffer);
+                buffer.clear();
+            }
+        }
+        return new long[] {length, checksum.getValue()};
+    }
+
+    private static Path sibling(Path path, String suffix) {
+        return path.resolveSibling(path.getFileName() + suffix);
+    }
+
+    /**
+     * 讀取圖表檔並重播編輯日誌中已儲存的編輯
+     * 選取狀態不屬於日誌，讀取的圖表沒有選取的元素
+     * @param snapshotPath 圖表檔路徑
+     * @return 讀取的圖表；沒有以目前圖表檔為基準、含有編輯紀錄的日誌時回傳 null，直接開啟圖表檔即可
+     * @throws IOException 讀取失敗或檔案格式不正確
+     */
+    public static Recovery recover(Path snapshotPath) throws IOException {
+        JournalFile journal = JournalFile.open(sibling(snapshotPath, JournalFormat.SUFFIX));
+        JournalFile next = JournalFile.open(sibling(snapshotPath, JournalFormat.NEXT_SUFFIX));
+        if ((journal == null || !journal.hasEdits()) && (next == null || !next.hasEdits())) {
+            return null;
+        }
+
+        long[] sum = checksum(snapshotPath);
+        JournalFile active;
+        JournalFile chained = null;
+        if (next != null && next.isBasedOn(sum)) {
+            // 壓縮已取代快照，只差以新日誌取代舊日誌
+            active = next;
+        } else if (journal != null && journal.isBasedOn(sum)) {
+            active = journal;
+            if (next != null && next.previousGeneration == journal.generation) {
+                // 壓縮尚未取代快照，新日誌接在舊日誌之後，元素編號相同
+                chained = next;
+            }
+        } else {
+            return null;
+        }
+        if (!active.hasEdits() && (chained == null || !chained.hasEdits())) {
+            return null;
+        }
+
+        ShapeTable base = new DiagramReader().read(snapshotPath);
+        ElementTable elements = new ElementTable();
+        elements.load(base, active.rowIds(base.size()));
+        active.replay(elements, active.committedEnd);
+        if (chained != null) {
+            chained.replay(elements, chained.committedEnd);
+        }
+        return new Recovery(snapshotPath, sum, active, chained, elements);
+    }
+
+    /**
+     * 以圖表檔與編輯日誌讀取的圖表
+     * 畫布載入 getTable 的形狀表後，以 resume 接著原本的日誌記錄之後的編輯
+     */
+    public static final class Recovery {
+        private final Path snapshotPath;
+        private final long[] base; // 圖表檔的長度與 CRC
+        private final JournalFile active; // 以圖表檔為基準的日誌
+        private final JournalFile chained; // 壓縮在取代圖表檔之前中斷時，接在 active 之後的新日誌
+        private final JournalFile tail; // 最後一份日誌，沒有儲存的編輯在它的結尾
+        private final ElementTable elements;
+        private ElementTable saved; // 還原沒有儲存的編輯之前的狀態
+        private boolean restored = false;
+        private ShapeTable table;
+        private int[] rowIds; // table 每一列的元素編號
+
+        private Recovery(Path snapshotPath, long[] base, JournalFile active, JournalFile chained,
+                         ElementTable elements) {
+            this.snapshotPath = snapshotPath;
+            this.base = base;
+            this.active = active;
+            this.chained = chained;
+            this.tail = chained != null ? chained : active;
+            this.elements = elements;
+        }
+
+        /**
+         * 日誌在最後一次儲存之後是否還有編輯，表示程式上次沒有正常結束
+         */
+        public boolean hasUnsavedEdits() {
+            return tail.validEnd > tail.committedEnd;
+        }
+
+        /**
+         * 一併重播沒有儲存的編輯，它們在下次儲存之前仍然不屬於圖表檔
+         * 必須在 getTable 之前呼叫
+         */
+        public void restoreUnsavedEdits() throws IOException {
+            if (restored || !hasUnsavedEdits()) {
+                return;
+            }
+            saved = elements.copy();
+            tail.replay(elements, tail.validEnd);
+            restored = true;
+        }
+
+        /**
+         * @return 讀取的圖表
+         */
+        public ShapeTable getTable() {
+            if (table == null) {
+                rowIds = new int[elements.idLimit()];
+                table = elements.toTable(rowIds);
+            }
+            return table;
+        }
+
+        /**
+         * 接著原本的日誌記錄畫布之後的編輯，捨棄沒有還原的編輯
+         * 壓縮在取代圖表檔之前中斷時，以已儲存的圖表完成壓縮
+         * @param objects 畫布以 getTable 建立的物件，第 row 個元素是第 row 列的物件
+         * @param canvas 畫布
+         * @return 編輯日誌，已註冊為畫布的編輯監聽器
+         * @throws IOException 寫入失敗
+         */
+        public DiagramJournal resume(BaseShape[] objects, CanvasPanel canvas) throws IOException {
+            getTable();
+            DiagramJournal journal = new DiagramJournal(snapshotPath, canvas);
+            if (chained != null) {
+                journal.completeCompaction(restored ? saved : elements, restored ? tail.unsavedRecords() : null,
+                        chained.generation);
+            } else if (active.committedEnd > active.editsStart || restored) {
+                journal.reopen(active, restored ? active.validEnd : active.committedEnd, base);
+            } else {
+                // 日誌中沒有要保留的編輯，以圖表檔開始新的日誌
+                journal.start(rowIds, objects, base);
+                return journal;
+            }
+            journal.mapIds(rowIds, objects);
+            journal.nextId = Math.max(journal.nextId, elements.idLimit());
+            journal.pendingEdits = restored;
+            canvas.addEditListener(journal);
+            return journal;
+        }
+    }
+
+    /**
+     * 接著以圖表檔為基準的日誌附加紀錄
+     * @param file 日誌，壓縮已取代快照時是還沒改名的新日誌
+     * @param end 保留到此位置，之後的紀錄截掉
+     * @param base 圖表檔的長度與 CRC
+     */
+    private void reopen(JournalFile file, int end, long[] base) throws IOException {
+        if (file.path.equals(nextPath)) {
+            Files.move(nextPath, journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            // 沒有接上這份日誌的新日誌是壓縮開始前留下的，已經沒有用處
+            Files.deleteIfExists(nextPath);
+        }
+        channel = FileChannel.open(journalPath, StandardOpenOption.WRITE);
+        channel.truncate(end);
+        channel.position(end);
+        channel.force(false);
+        generation = file.generation;
+        snapshotSize = base[0];
+        committedSize = file.committedEnd;
+        committedEdits = file.committedEnd > file.editsStart;
+    }
+
+    /**
+     * 完成在取代圖表檔之前中斷的壓縮：將已儲存的圖表寫入圖表檔，並開始新的日誌
+     * @param saved 已儲存的圖表
+     * @param unsaved 要還原的編輯紀錄（含長度與 CRC），不還原時為 null
+     * @param previousGeneration 中斷的壓縮開始的日誌世代
+     */
+    private void completeCompaction(ElementTable saved, ByteBuffer unsaved, long previousGeneration)
+            throws IOException {
+        int[] savedIds = new int[saved.idLimit()];
+        ShapeTable table = saved.toTable(savedIds);
+        Path snapshotTemp = sibling(snapshotPath, ".tmp");
+        Path journalTemp = sibling(journalPath, ".tmp");
+        long[] base = writeSnapshot(table, snapshotTemp);
+        channel = startJournal(journalTemp, previousGeneration + 1, previousGeneration, base,
+                Arrays.copyOf(savedIds, table.size()));
+        committedSize = channel.size();
+        if (unsaved != null) {
+            // 紀錄以元素編號描述，新日誌沿用相同的編號，可以原樣複製
+            while (unsaved.hasRemaining()) {
+                channel.write(unsaved);
+            }
+        }
+        channel.force(true);
+        Files.move(snapshotTemp, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(journalTemp, journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(nextPath);
+        generation = previousGeneration + 1;
+        snapshotSize = base[0];
+    }
+
+    /**
+     * 讀取中的日誌檔
+     */
+    private static class JournalFile {
+        private final Path path;
+        private final ByteBuffer content;
+        private final long generation;
+        private final long previousGeneration;
+        private final long baseLength;
+        private final int baseCrc;
+        private int editsStart; // ROW_IDS 紀錄的結尾
+        private int committedEnd; // 最後一筆 COMMIT 紀錄的結尾，沒有時等於 editsStart
+        private int validEnd; // 最後一筆完整紀錄的結尾
+
+        private JournalFile(Path path, ByteBuffer content) {
+            this.path = path;
+            this.content = content;
+            generation = content.getLong(8);
+            previousGeneration = content.getLong(16);
+            baseLength = content.getLong(JournalFormat.BASE_OFFSET);
+            baseCrc = content.getInt(JournalFormat.BASE_OFFSET + 8);
+            scan();
+        }
+
+        /**
+         * 找出 ROW_IDS 紀錄、最後一筆 COMMIT 與最後一筆完整紀錄的位置，之後從第一筆紀錄開始讀取
+         */
+        private void scan() {
+            content.position(JournalFormat.HEADER_SIZE);
+            nextRecord();
+            editsStart = content.position();
+            committedEnd = editsStart;
+            for (ByteBuffer payload = nextRecord(); payload != null; payload = nextRecord()) {
+                if (payload.get(0) == JournalFormat.COMMIT) {
+                    committedEnd = content.position();
+                }
+            }
+            validEnd = content.position();
+            content.position(JournalFormat.HEADER_SIZE);
+        }
+
+        /**
+         * @return 日誌檔，不存在或不是日誌檔時回傳 null
+         */
+        static JournalFile open(Path path) throws IOException {
+            if (!Files.exists(path)) {
+                return null;
+            }
+            ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+            if (content.limit() < JournalFormat.HEADER_SIZE || content.getInt(0) != JournalFormat.MAGIC
+                    || content.getInt(4) != JournalFormat.VERSION) {
+                return null;
+            }
+            return new JournalFile(path, content);
+        }
+
+        boolean isBasedOn(long[] sum) {
+            return baseLength != JournalFormat.UNKNOWN_BASE && baseLength == sum[0] && baseCrc == (int) sum[1];
+        }
+
+        /**
+         * ROW_IDS 之後是否有紀錄
+         */
+        boolean hasEdits() {
+            return validEnd > editsStart;
+        }
+
+        /**
+         * 最後一筆 COMMIT 之後的完整紀錄，含長度與 CRC
+         */
+        ByteBuffer unsavedRecords() {
+            return content.slice(committedEnd, validEnd - committedEnd);
+        }
+
+        /**
+         * 讀取下一筆完整的紀錄
+         * @return 紀錄內容，日誌結束或遇到寫到一半的紀錄時回傳 null
+         */
+        ByteBuffer nextRecord() {
+            if (content.remaining() < JournalFormat.FRAME_SIZE) {
+                return null;
+            }
+            int length = content.getInt(content.position());
+            int expected = content.getInt(content.position() + 4);
+            if (length < 1 || length > content.remaining() - JournalFormat.FRAME_SIZE) {
+                return null;
+            }
+            ByteBuffer payload = content.slice(content.position() + JournalFormat.FRAME_SIZE, length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            CRC32 checksum = new CRC32();
+            checksum.update(payload.duplicate());
+            if ((int) checksum.getValue() != expected) {
+                return null;
+            }
+            content.position(content.position() + JournalFormat.FRAME_SIZE + length);
+            return payload;
+        }
+
+        /**
+         * 讀取第一筆紀錄中基準圖表檔每一列的元素編號
+         */
+        int[] rowIds(int rowCount) throws IOException {
+            ByteBuffer payload = nextRecord();
+            if (payload == null || payload.get() != JournalFormat.ROW_IDS) {
+                throw new IOException("編輯日誌已損毀");
+            }
+            int count = DiagramFormat.getVarint(payload);
+            if (count != rowCount) {
+                throw new IOException("編輯日誌與圖表檔不符");
+            }
+            if (payload.get() != 0) {
+                return null;
+            }
+            int[] rowIds = new int[count];
+            for (int row = 0; row < count; row++) {
+                rowIds[row] = DiagramFormat.getVarint(payload);
+            }
+            return rowIds;
+        }
+
+        /**
+         * 重播到指定位置為止的編輯紀錄；新日誌的 ROW_IDS 紀錄描述的是還沒取代的快照，略過
+         * @param end 紀錄的結尾位置，通常是 committedEnd 或 validEnd
+         */
+        void replay(ElementTable elements, int end) throws IOException {
+            while (content.position() < end) {
+                ByteBuffer payload = nextRecord();
+                byte kind = payload.get();
+                if (kind == JournalFormat.ROW_IDS || kind == JournalFormat.COMMIT) {
+                    continue;
+                }
+                int count = DiagramFormat.getVarint(payload);
+                for (int i = 0; i < count; i++) {
+                    upsert(payload, elements);
+                }
+                int removed = DiagramFormat.getVarint(payload);
+                for (int i = 0; i < removed; i++) {
+                    elements.remove(DiagramFormat.getVarint(payload));
+                }
+            }
+        }
+
+        /**
+         * 讀取一個元素編輯後的狀態並覆蓋 elements 中的狀態
+         */
+        private static void upsert(ByteBuffer payload, ElementTable elements) throws IOException {
+            int id = DiagramFormat.getVarint(payload);
+            byte kind = payload.get();
+            byte flags = payload.get();
+            int x = DiagramFormat.unzigzag(DiagramFormat.getVarint(payload));
+            int y = DiagramFormat.unzigzag(DiagramFormat.getVarint(payload));
+            int width = DiagramFormat.unzigzag(DiagramFormat.getVarint(payload));
+            int height = DiagramFormat.unzigzag(DiagramFormat.getVarint(payload));
+            int depth = DiagramFormat.unzigzag(DiagramFormat.getVarint(payload));
+            int parent = DiagramFormat.getVarint(payload) - 1;
+            if (id < 0 || kind < ShapeTable.RECT || kind > ShapeTable.GROUP) {
+                throw new IOException("編輯日誌已損毀");
+            }
+            elements.put(id, kind, flags, x, y, width, height, depth, parent);
+            if (ShapeTable.isLink(kind)) {
+                int source = DiagramFormat.getVarint(payload) - 1;
+                int target = DiagramFormat.getVarint(payload) - 1;
+                elements.setEndpoints(id, source, target);
+            } else if (kind != ShapeTable.GROUP) {
+                int length = DiagramFormat.getVarint(payload);
+                if (length < 0 || length > payload.remaining()) {
+                    throw new IOException("編輯日誌已損毀");
+                }
+                byte[] name = new byte[length];
+                payload.get(name);
+                int labelColor = payload.getInt();
+                elements.setLabel(id, new String(name, StandardCharsets.UTF_8), labelColor,
+                        DiagramFormat.getVarint(payload));
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package Persistence;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import Shapes.ShapeTable;
+
+/**
+ * 圖表檔案讀取器
+ * 讀取 DiagramFormat 格式的檔案並建立形狀表，透過固定大小的緩衝區分批讀取檔案通道
+ * 同一個類別也負責解碼記憶體映射的檔案，供 LazyDiagram 只讀取需要的頂層元素
+ */
+public class DiagramReader {
+    private final ByteBuffer streamBuffer = ByteBuffer.allocateDirect(DiagramFormat.BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer buffer; // 目前讀取的緩衝區：串流讀取時為 streamBuffer，否則為映射的檔案內容
+    private FileChannel channel;
+    private boolean endOfFile;
+    private long sizeLimit; // 檔案大小，用來檢查損毀的長度欄位
+    private int version;
+    private int elementCount;
+
+    /**
+     * 讀取圖表檔案
+     * @param path 檔案路徑
+     * @return 形狀表
+     * @throws IOException 讀取失敗或檔案格式不正確
+     */
+    public ShapeTable read(Path path) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(fileChannel);
+        }
+    }
+
+    /**
+     * 從已開啟的檔案通道目前的位置讀取圖表，不關閉通道
+     * @param fileChannel 檔案通道
+     * @return 形狀表
+     * @throws IOException 讀取失敗或檔案格式不正確
+     */
+    public ShapeTable read(FileChannel fileChannel) throws IOException {
+        channel = fileChannel;
+        buffer = streamBuffer;
+        endOfFile = false;
+        buffer.clear().flip();
+        try {
+            ShapeTable table = readHeader(channel.size());
+            readRecords(table, 0, elementCount);
+            return table;
+        } finally {
+            channel = null;
+        }
+    }
+
+    /**
+     * 從映射的檔案開頭讀取檔頭與字串表
+     * @param source 整個檔案的內容，讀取後位置停在第一筆元素紀錄
+     * @return 只有字串表、沒有任何列的形狀表
+     * @throws IOException 檔案格式不正確
+     */
+    ShapeTable readHeader(ByteBuffer source) throws IOException {
+        buffer = source.order(ByteOrder.LITTLE_ENDIAN);
+        endOfFile = true;
+        return readHeader(source.limit());
+    }
+
+    /**
+     * 從映射的檔案解碼連續的元素紀錄，加到形狀表的最後
+     * 所屬群組轉換為形狀表中的列號；連結端點維持檔案中的列號，由呼叫者轉換
+     * @param source 檔案內容，位置必須在 firstRow 的紀錄
+     * @param table 形狀表，字串表必須與檔案相同
+     * @param firstRow 第一筆紀錄在檔案中的列號
+     * @param count 紀錄數量
+     * @throws IOException 檔案格式不正確
+     */
+    void readRecords(ByteBuffer source, ShapeTable table, int firstRow, int count) throws IOException {
+        buffer = source.order(ByteOrder.LITTLE_ENDIAN);
+        endOfFile = true;
+        readRecords(table, firstRow, count);
+    }
+
+    int version() {
+        return version;
+    }
+
+    int elementCount() {
+        return elementCount;
+    }
+
+    private ShapeTable readHeader(long size) throws IOException {
+        sizeLimit = size;
+        require(4);
+        if (getInt() != DiagramFormat.MAGIC) {
+            throw new IOException("不是圖表檔案");
+        }
+        require(15);
+        version = getVarint();
+        if (version < 1 || version > DiagramFormat.VERSION) {
+            throw new IOException("不支援的圖表檔案版本：" + version);
+        }
+        elementCount = getVarint();
+        int nameCount = getVarint();
+        if (elementCount < 0 || nameCount < 1) {
+            throw new IOException("圖表檔案已損毀");
+        }
+
+        // 每筆紀錄至少佔一個位元組，損毀的元素數量不會配置超過檔案大小的空間
+        ShapeTable table = new ShapeTable((int) Math.min(elementCount, size));
+        readStrings(table, nameCount);
+        return table;
+    }
+
+    private void readStrings(ShapeTable table, int nameCount) throws IOException {
+        for (int id = 1; id < nameCount; id++) {
+            require(5);
+            int length = getVarint();
+            if (length < 0 || length > sizeLimit) {
+                throw new IOException("圖表檔案已損毀");
+            }
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                require(1);
+                int chunk = Math.min(buffer.remaining(), length - offset);
+                buffer.get(bytes, offset, chunk);
+                offset += chunk;
+            }
+            if (table.internName(new String(bytes, StandardCharsets.UTF_8)) != id) {
+                throw new IOException("圖表檔案的字串表有重複的字串");
+            }
+        }
+    }
+
+    /**
+     * 解碼從 firstRow 開始的 count 筆紀錄
+     * 版本 2 起頂層元素的座標與深度是直接記錄的數值，其餘紀錄相對於上一筆紀錄
+     */
+    private void readRecords(ShapeTable table, int firstRow, int count) throws IOException {
+        int nameCount = table.nameCount();
+        int base = table.size() - firstRow; // 檔案列號 + base = 形狀表中的列號
+        boolean absoluteRoots = version >= DiagramFormat.FIRST_INDEXED_VERSION;
+        int x = 0;
+        int y = 0;
+        int depth = 0;
+        for (int row = firstRow; row < firstRow + count; row++) {
+            require(DiagramFormat.MAX_RECORD_SIZE);
+            byte kind = getByte();
+            byte flags = getByte();
+            int dx = DiagramFormat.unzigzag(getVarint());
+            int dy = DiagramFormat.unzigzag(getVarint());
+            int width = DiagramFormat.unzigzag(getVarint());
+            int height = DiagramFormat.unzigzag(getVarint());
+            int ddepth = DiagramFormat.unzigzag(getVarint());
+            int parent = getVarint() - 1;
+
+            if (kind < ShapeTable.RECT || kind > ShapeTable.GROUP) {
+                throw new IOException("圖表檔案包含未知的元素種類：" + kind);
+            }
+            // 群組一定寫在子元素之前
+            if (parent != ShapeTable.NONE && (parent < firstRow || parent >= row
+                    || table.getKind(parent + base) != ShapeTable.GROUP)) {
+                throw new IOException("圖表檔案已損毀");
+            }
+            if (absoluteRoots && parent == ShapeTable.NONE) {
+                x = 0;
+                y = 0;
+                depth = 0;
+            }
+            x += dx;
+            y += dy;
+            depth += ddepth;
+
+            int local = table.add(kind, x, y, width, height);
+            table.setFlags(local, flags);
+            table.setDepth(local, depth);
+            table.setParent(local, parent == ShapeTable.NONE ? ShapeTable.NONE : parent + base);
+
+            if (ShapeTable.isLink(kind)) {
+                int source = checkReference(getVarint() - 1, elementCount);
+                int target = checkReference(getVarint() - 1, elementCount);
+                table.setEndpoints(local, source, target);
+            } else if (kind != ShapeTable.GROUP) {
+                int nameId = getVarint();
+                if (nameId < 0 || nameId >= nameCount) {
+                    throw new IOException("圖表檔案已損毀");
+                }
+                table.setNameId(local, nameId);
+                int labelColor = getInt();
+                table.setLabelStyle(local, labelColor, getVarint());
+            }
+        }
+    }
+
+    private static int checkReference(int row, int elementCount) throws IOException {
+        if (row < ShapeTable.NONE || row >= elementCount) {
+            throw new IOException("圖表檔案已損毀");
+        }
+        return row;
+    }
+
+    private byte getByte() throws IOException {
+        if (!buffer.hasRemaining()) {
+            throw new EOFException("圖表檔案不完整");
+        }
+        return buffer.get();
+    }
+
+    private int getInt() throws IOException {
+        if (buffer.remaining() < 4) {
+            throw new EOFException("圖表檔案不完整");
+        }
+        return buffer.getInt();
+    }
+
+    private int getVarint() throws IOException {
+        return DiagramFormat.getVarint(buffer);
+    }
+
+    /**
+     * 確保緩衝區中至少有指定的位元組數，檔案結尾前不足時只保證讀到檔案結尾
+     */
+    private void require(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes || endOfFile) {
+            if (!buffer.hasRemaining()) {
+                throw new EOFException("圖表檔案不完整");
+            }
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                endOfFile = true;
+                break;
+            }
+        }
+        buffer.flip();
+        if (!buffer.hasRemaining()) {
+            throw new EOFException("圖表檔案不完整");
+        }
+    }
+}
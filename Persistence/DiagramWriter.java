@@ -0,0 +1,223 @@
+package Persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import Shapes.ShapeTable;
+
+/**
+ * 圖表檔案寫入器
+ * 將形狀表以 DiagramFormat 描述的格式寫入檔案，透過固定大小的緩衝區分批寫入檔案通道
+ * 寫入元素紀錄的同時收集每個頂層元素的位置與範圍，最後寫入頂層元素索引
+ */
+public class DiagramWriter {
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(DiagramFormat.BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private FileChannel channel;
+
+    // 頂層元素索引，每個頂層元素一個項目
+    private int rootCount;
+    private int[] rootRows;
+    private long[] rootOffsets;
+    private int[] rootDepths;
+    private int[] rootBounds; // 每個頂層元素依序為 minX、minY、maxX、maxY
+
+    /**
+     * 寫入圖表檔案，檔案已存在時覆寫
+     * @param table 形狀表
+     * @param path 檔案路徑
+     * @throws IOException 寫入失敗
+     */
+    public void write(ShapeTable table, Path path) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(table, fileChannel);
+        }
+    }
+
+    /**
+     * 將圖表寫入已開啟的檔案通道，不關閉通道
+     * @param table 形狀表
+     * @param fileChannel 檔案通道
+     * @throws IOException 寫入失敗
+     */
+    public void write(ShapeTable table, FileChannel fileChannel) throws IOException {
+        channel = fileChannel;
+        buffer.clear();
+        long start = fileChannel.position();
+        try {
+            buffer.putInt(DiagramFormat.MAGIC);
+            putVarint(DiagramFormat.VERSION);
+            putVarint(table.size());
+            putVarint(table.nameCount());
+            writeStrings(table);
+            writeRecords(table, start);
+            writeIndex(start);
+            flush();
+        } finally {
+            channel = null;
+            rootRows = null;
+            rootOffsets = null;
+            rootDepths = null;
+            rootBounds = null;
+        }
+    }
+
+    private void writeStrings(ShapeTable table) throws IOException {
+        for (int id = 1; id < table.nameCount(); id++) {
+            byte[] bytes = table.nameOf(id).getBytes(StandardCharsets.UTF_8);
+            ensureSpace(5);
+            putVarint(bytes.length);
+            // 字串可能比緩衝區長，分段寫入
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+    }
+
+    /**
+     * 寫入元素紀錄，頂層元素的座標與深度直接寫入數值，其餘紀錄寫入相對於上一筆紀錄的差
+     * @param start 檔案開頭在通道中的位置
+     */
+    private void writeRecords(ShapeTable table, long start) throws IOException {
+        allocateIndex(table);
+        int previousX = 0;
+        int previousY = 0;
+        int previousDepth = 0;
+        for (int row = 0; row < table.size(); row++) {
+            ensureSpace(DiagramFormat.MAX_RECORD_SIZE);
+            byte kind = table.getKind(row);
+            int x = table.getX(row);
+            int y = table.getY(row);
+            int depth = table.getDepth(row);
+            int parent = table.getParent(row);
+
+            if (parent == ShapeTable.NONE) {
+                startRoot(row, depth, start);
+                previousX = 0;
+                previousY = 0;
+                previousDepth = 0;
+            } else if (rootCount == 0 || parent < rootRows[rootCount - 1] || parent >= row) {
+                // 頂層元素連同子元素必須是連續的列，才能單獨解碼
+                throw new IllegalArgumentException("群組的子元素必須緊接在群組之後：第 " + row + " 列");
+            }
+            includeInRoot(x, y, table.getWidth(row), table.getHeight(row));
+
+            buffer.put(kind);
+            buffer.put(table.getFlags(row));
+            putVarint(DiagramFormat.zigzag(x - previousX));
+            putVarint(DiagramFormat.zigzag(y - previousY));
+            putVarint(DiagramFormat.zigzag(table.getWidth(row)));
+            putVarint(DiagramFormat.zigzag(table.getHeight(row)));
+            putVarint(DiagramFormat.zigzag(depth - previousDepth));
+            putVarint(parent + 1);
+
+            if (ShapeTable.isLink(kind)) {
+                putVarint(table.getSource(row) + 1);
+                putVarint(table.getTarget(row) + 1);
+            } else if (kind != ShapeTable.GROUP) {
+                putVarint(table.getNameId(row));
+                buffer.putInt(table.getLabelColor(row));
+                putVarint(table.getFontSize(row));
+            }
+
+            previousX = x;
+            previousY = y;
+            previousDepth = depth;
+        }
+    }
+
+    private void allocateIndex(ShapeTable table) {
+        int roots = 0;
+        for (int row = 0; row < table.size(); row++) {
+            if (table.getParent(row) == ShapeTable.NONE) {
+                roots++;
+            }
+        }
+        rootCount = 0;
+        rootRows = new int[roots];
+        rootOffsets = new long[roots];
+        rootDepths = new int[roots];
+        rootBounds = new int[roots * 4];
+    }
+
+    private void startRoot(int row, int depth, long start) throws IOException {
+        int root = rootCount++;
+        rootRows[root] = row;
+        rootOffsets[root] = position() - start;
+        rootDepths[root] = depth;
+        rootBounds[root * 4] = Integer.MAX_VALUE;
+        rootBounds[root * 4 + 1] = Integer.MAX_VALUE;
+        rootBounds[root * 4 + 2] = Integer.MIN_VALUE;
+        rootBounds[root * 4 + 3] = Integer.MIN_VALUE;
+    }
+
+    /**
+     * 將一列的範圍併入目前頂層元素的外接範圍，連結的寬高是終點的位移，可能是負數
+     */
+    private void includeInRoot(int x, int y, int width, int height) {
+        int i = (rootCount - 1) * 4;
+        int x2 = x + width;
+        int y2 = y + height;
+        rootBounds[i] = Math.min(rootBounds[i], Math.min(x, x2));
+        rootBounds[i + 1] = Math.min(rootBounds[i + 1], Math.min(y, y2));
+        rootBounds[i + 2] = Math.max(rootBounds[i + 2], Math.max(x, x2));
+        rootBounds[i + 3] = Math.max(rootBounds[i + 3], Math.max(y, y2));
+    }
+
+    /**
+     * 寫入頂層元素索引與檔尾
+     * @param start 檔案開頭在通道中的位置
+     */
+    private void writeIndex(long start) throws IOException {
+        long indexOffset = position() - start;
+        ensureSpace(4);
+        buffer.putInt(rootCount);
+        for (int root = 0; root < rootCount; root++) {
+            ensureSpace(DiagramFormat.INDEX_ENTRY_SIZE);
+            buffer.putInt(rootRows[root]);
+            buffer.putLong(rootOffsets[root]);
+            buffer.putInt(rootDepths[root]);
+            for (int i = root * 4; i < root * 4 + 4; i++) {
+                buffer.putInt(rootBounds[i]);
+            }
+        }
+        ensureSpace(DiagramFormat.FOOTER_SIZE);
+        buffer.putLong(indexOffset);
+        buffer.putInt(DiagramFormat.INDEX_MAGIC);
+    }
+
+    /**
+     * 下一個位元組在通道中的位置
+     */
+    private long position() throws IOException {
+        return channel.position() + buffer.position();
+    }
+
+    private void putVarint(int value) {
+        DiagramFormat.putVarint(buffer, value);
+    }
+
+    private void ensureSpace(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,193 @@
+package Persistence;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import Shapes.ShapeTable;
+
+/**
+ * 以元素編號索引的元素狀態表
+ * 每個元素的狀態存在列號等於元素編號的列，所屬群組與連結端點也記錄元素編號而不是列號
+ * 元素編號在整個編輯過程中不變，因此更新單一元素不需要重新排列其他元素，用來重播編輯日誌與保存自動儲存的快照
+ * 同一個群組的子元素依加入群組的順序排列，order 記錄每個元素最後一次改變所屬群組的順序
+ */
+final class ElementTable {
+    private final ShapeTable elements;
+    private final BitSet alive;
+    private int[] order;
+    private int orderCounter;
+
+    ElementTable() {
+        this(new ShapeTable(), new BitSet(), new int[16], 0);
+    }
+
+    private ElementTable(ShapeTable elements, BitSet alive, int[] order, int orderCounter) {
+        this.elements = elements;
+        this.alive = alive;
+        this.order = order;
+        this.orderCounter = orderCounter;
+    }
+
+    /**
+     * 複製目前的狀態，之後對任一方的修改不影響另一方
+     * 只複製欄位陣列，成本與元素編號的數量成正比，不需要走訪物件模型
+     */
+    ElementTable copy() {
+        return new ElementTable(elements.copy(), (BitSet) alive.clone(),
+                Arrays.copyOf(order, elements.size()), orderCounter);
+    }
+
+    /**
+     * 載入形狀表的每一列
+     * @param base 形狀表
+     * @param rowIds 每一列的元素編號，null 表示列號就是元素編號
+     */
+    void load(ShapeTable base, int[] rowIds) {
+        for (int row = 0; row < base.size(); row++) {
+            int id = rowIds == null ? row : rowIds[row];
+            put(id, base, row, idOf(base.getParent(row), rowIds));
+            setEndpoints(id, idOf(base.getSource(row), rowIds), idOf(base.getTarget(row), rowIds));
+        }
+    }
+
+    private static int idOf(int row, int[] rowIds) {
+        return row == ShapeTable.NONE || rowIds == null ? row : rowIds[row];
+    }
+
+    /**
+     * 以形狀表中一列的種類、範圍、旗標、深度與標籤覆蓋元素的狀態
+     * @param id 元素編號
+     * @param source 形狀表
+     * @param row 列號
+     * @param parent 所屬群組的元素編號，沒有時為 ShapeTable.NONE
+     */
+    void put(int id, ShapeTable source, int row, int parent) {
+        put(id, source.getKind(row), source.getFlags(row), source.getX(row), source.getY(row), source.getWidth(row),
+                source.getHeight(row), source.getDepth(row), parent);
+        setLabel(id, source.getName(row), source.getLabelColor(row), source.getFontSize(row));
+    }
+
+    /**
+     * 覆蓋元素的狀態，元素不存在時加入
+     * 選取狀態不屬於圖表，不保存
+     */
+    void put(int id, byte kind, byte flags, int x, int y, int width, int height, int depth, int parent) {
+        while (elements.size() <= id) {
+            elements.add(ShapeTable.RECT, 0, 0, 0, 0);
+        }
+        if (order.length < elements.size()) {
+            order = Arrays.copyOf(order, Math.max(order.length * 2, elements.size()));
+        }
+        if (!alive.get(id) || elements.getParent(id) != parent) {
+            order[id] = orderCounter++;
+        }
+        alive.set(id);
+        elements.setKind(id, kind);
+        elements.setFlags(id, (byte) (flags & ~ShapeTable.FLAG_SELECTED));
+        elements.setBounds(id, x, y, width, height);
+        elements.setDepth(id, depth);
+        elements.setParent(id, parent);
+    }
+
+    void setLabel(int id, String name, int labelColor, int fontSize) {
+        elements.setName(id, name);
+        elements.setLabelStyle(id, labelColor, fontSize);
+    }
+
+    /**
+     * @param source 起點形狀的元素編號，沒有時為 ShapeTable.NONE
+     * @param target 終點形狀的元素編號，沒有時為 ShapeTable.NONE
+     */
+    void setEndpoints(int id, int source, int target) {
+        elements.setEndpoints(id, source, target);
+    }
+
+    void remove(int id) {
+        alive.clear(id);
+    }
+
+    /**
+     * 元素編號的上限，所有使用過的編號都小於此值
+     */
+    int idLimit() {
+        return elements.size();
+    }
+
+    /**
+     * 依頂層元素的深度與群組子元素的順序排出形狀表，群組的子元素緊接在群組之後
+     */
+    ShapeTable toTable() {
+        return toTable(null);
+    }
+
+    /**
+     * @param rowIds 不是 null 時寫入形狀表每一列的元素編號，長度至少為 idLimit()
+     */
+    ShapeTable toTable(int[] rowIds) {
+        int size = elements.size();
+        long[] roots = new long[alive.cardinality()];
+        long[] children = new long[roots.length];
+        int rootCount = 0;
+        int childCount = 0;
+        for (int id = alive.nextSetBit(0); id >= 0; id = alive.nextSetBit(id + 1)) {
+            int parent = elements.getParent(id);
+            if (parent < 0 || parent >= size || !alive.get(parent) || elements.getKind(parent) != ShapeTable.GROUP) {
+                roots[rootCount++] = ((long) elements.getDepth(id) << 32) | id;
+            } else {
+                children[childCount++] = ((long) order[id] << 32) | id;
+            }
+        }
+        Arrays.sort(roots, 0, rootCount);
+        Arrays.sort(children, 0, childCount);
+
+        // 依順序串成每個群組的子元素鏈結串列
+        int[] firstChild = new int[size];
+        int[] nextSibling = new int[size];
+        Arrays.fill(firstChild, ShapeTable.NONE);
+        for (int i = childCount - 1; i >= 0; i--) {
+            int id = (int) children[i];
+            int parent = elements.getParent(id);
+            nextSibling[id] = firstChild[parent];
+            firstChild[parent] = id;
+        }
+
+        ShapeTable table = new ShapeTable(rootCount + childCount);
+        int[] rowOf = new int[size];
+        Arrays.fill(rowOf, ShapeTable.NONE);
+        for (int i = 0; i < rootCount; i++) {
+            emit((int) roots[i], ShapeTable.NONE, table, rowOf, firstChild, nextSibling);
+        }
+        if (rowIds != null) {
+            for (int id = 0; id < size; id++) {
+                if (rowOf[id] != ShapeTable.NONE) {
+                    rowIds[rowOf[id]] = id;
+                }
+            }
+        }
+        for (int row = 0; row < table.size(); row++) {
+            if (ShapeTable.isLink(table.getKind(row))) {
+                table.setEndpoints(row, rowIn(table.getSource(row), rowOf), rowIn(table.getTarget(row), rowOf));
+            }
+        }
+        return table;
+    }
+
+    private void emit(int id, int parentRow, ShapeTable table, int[] rowOf, int[] firstChild, int[] nextSibling) {
+        int row = table.add(elements.getKind(id), elements.getX(id), elements.getY(id), elements.getWidth(id),
+                elements.getHeight(id));
+        rowOf[id] = row;
+        table.setFlags(row, elements.getFlags(id));
+        table.setDepth(row, elements.getDepth(id));
+        table.setParent(row, parentRow);
+        table.setName(row, elements.getName(id));
+        table.setLabelStyle(row, elements.getLabelColor(id), elements.getFontSize(id));
+        // 暫時保存端點的元素編號，所有列都排好後再換成列號
+        table.setEndpoints(row, elements.getSource(id), elements.getTarget(id));
+        for (int child = firstChild[id]; child != ShapeTable.NONE; child = nextSibling[child]) {
+            emit(child, row, table, rowOf, firstChild, nextSibling);
+        }
+    }
+
+    private static int rowIn(int id, int[] rowOf) {
+        return id < 0 || id >= rowOf.length ? ShapeTable.NONE : rowOf[id];
+    }
+}
@@ -0,0 +1,40 @@
+package Persistence;
+
+/**
+ * 編輯日誌檔案格式
+ *
+ * 日誌檔與圖表檔放在同一個目錄，檔名為圖表檔名加上 SUFFIX；壓縮進行中的新日誌加上 NEXT_SUFFIX
+ * 檔頭（HEADER_SIZE 位元組，little-endian）：MAGIC (4 bytes)、VERSION (4 bytes)、世代 (8 bytes)、
+ *   上一個世代 (8 bytes)、基準圖表檔長度 (8 bytes)、基準圖表檔 CRC32 (4 bytes)
+ *   基準圖表檔是這份日誌開始時的快照；背景壓縮時快照寫完才填入長度與 CRC，之前長度為 UNKNOWN_BASE
+ * 紀錄：payload 長度 (4 bytes)、payload 的 CRC32 (4 bytes)、payload
+ *   長度或 CRC 不符的紀錄是寫到一半就中斷的紀錄，它和之後的內容都會被忽略
+ *   payload 的第一個位元組是紀錄種類：
+ *   ROW_IDS：日誌的第一筆紀錄，基準圖表檔每一列對應的元素編號
+ *     列數 (varint)、是否為 0 到列數減一 (1 byte)，不是時接著每列的編號 (varint)
+ *   COMMIT：使用者儲存圖表，沒有其他內容；之前的編輯紀錄屬於已儲存的圖表
+ *   EDIT_BASE + EditListener.Edit 的序數：一次編輯
+ *     更新的元素數量 (varint) 與元素，移除的元素數量 (varint) 與編號 (varint)
+ *     元素：編號 (varint)、種類 (1 byte)、旗標 (1 byte)、x、y、寬、高、深度 (zigzag varint)、所屬群組編號 + 1 (varint)
+ *       形狀另有名稱（UTF-8 位元組長度 varint 加內容）、標籤顏色 ARGB (4 bytes)、字體大小 (varint)
+ *       連結另有起點與終點形狀編號 + 1 (varint)
+ * 元素編號在整個編輯過程中不變，與圖表檔中的列號無關；元素記錄的是編輯後的完整狀態，重播時直接覆蓋
+ * 開啟圖表時只重播到最後一筆 COMMIT；之後的紀錄是沒有儲存的編輯，正常關閉時會被截掉，
+ * 還留在日誌中表示程式上次沒有正常結束，由使用者決定是否還原
+ */
+final class JournalFormat {
+    static final int MAGIC = 0x4A4C4D55; // "UMLJ"
+    static final int VERSION = 2;
+    static final String SUFFIX = ".journal";
+    static final String NEXT_SUFFIX = ".journal.next";
+    static final int HEADER_SIZE = 36;
+    static final int BASE_OFFSET = 24; // 基準圖表檔長度與 CRC 在檔頭中的位置
+    static final long UNKNOWN_BASE = -1;
+    static final int FRAME_SIZE = 8; // 每筆紀錄前的長度與 CRC
+    static final byte ROW_IDS = 0;
+    static final byte COMMIT = 1;
+    static final byte EDIT_BASE = 2;
+
+    private JournalFormat() {
+    }
+}
@@ -0,0 +1,449 @@
+package Persistence;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+import Canvas.GridKey;
+import Shapes.BaseShape;
+import Shapes.BasicShape;
+import Shapes.Link;
+import Shapes.ShapeTable;
+
+/**
+ * 延遲載入的圖表
+ * 以記憶體映射開啟圖表檔案，開啟時只讀取字串表與頂層元素索引，並依頂層元素的範圍建立格狀索引
+ * 畫面捲到某個格子時才解碼格子內的頂層元素並建立 BaseShape，其餘部分一直留在檔案中
+ * 頂層元素連同子元素一起建立；連結的端點形狀在其他頂層元素中時，也會一併建立該頂層元素
+ */
+public class LazyDiagram {
+    private static final int TILE_SIZE = 1024; // 格子大小（世界座標）
+    private static final int TILE_MARGIN = 64; // 標籤與箭頭可能超出元素範圍的距離
+    private static final int MAX_TILES_PER_ROOT = 64; // 跨越更多格子的頂層元素另外保存，每次查詢都檢查
+
+    private final ByteBuffer mapped; // 整個檔案的內容
+    private final int indexOffset; // 元素紀錄的結尾，也就是索引的位置
+    private final DiagramReader reader; // 已讀取檔頭的讀取器，用來解碼元素紀錄
+    private final ShapeTable names; // 只有字串表，解碼時建立的形狀表共用它
+    private final int elementCount;
+
+    // 頂層元素索引，依列號排列
+    private final int[] rootRows; // 第一列的列號
+    private final long[] rootOffsets; // 紀錄在檔案中的位置
+    private final int[] rootDepths; // 依檔案中的深度排名，0 為最下層
+    private final int[] rootBounds; // 每個頂層元素依序為 minX、minY、maxX、maxY
+    private final Rectangle extent;
+
+    private final Map<Long, int[]> tiles = new HashMap<>(); // 格子座標 -> 範圍與格子相交的頂層元素
+    private final int[] largeRoots; // 跨越太多格子的頂層元素
+    private final Set<Long> loadedTiles = new HashSet<>();
+    private final BitSet materialized = new BitSet(); // 已建立的頂層元素
+    private final BasicShape[] shapes; // 列號 -> 已建立的基本形狀，用來連接之後才建立的連結
+    private final long[] origins; // 列號 -> 基本形狀在檔案中的左上角（x 在高 32 位元），換算移動後的連結端點
+    private int materializedCount = 0;
+
+    private LazyDiagram(ByteBuffer mapped, int indexOffset, DiagramReader reader, ShapeTable names, int rootCount) {
+        this.mapped = mapped;
+        this.indexOffset = indexOffset;
+        this.reader = reader;
+        this.elementCount = reader.elementCount();
+        this.names = names;
+        rootRows = new int[rootCount];
+        rootOffsets = new long[rootCount];
+        rootDepths = new int[rootCount];
+        rootBounds = new int[rootCount * 4];
+        shapes = new BasicShape[elementCount];
+        origins = new long[elementCount];
+        extent = new Rectangle();
+        largeRoots = readIndex();
+    }
+
+    /**
+     * 檢查檔案是否有頂層元素索引，可以延遲載入
+     * @param path 檔案路徑
+     * @return 是否可以延遲載入
+     * @throws IOException 讀取失敗
+     */
+    public static boolean isIndexed(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+            header.flip();
+            // 版本號碼小於 128，只佔一個位元組
+            return header.remaining() == 5 && header.getInt() == DiagramFormat.MAGIC
+                    && header.get() >= DiagramFormat.FIRST_INDEXED_VERSION;
+        }
+    }
+
+    /**
+     * 以記憶體映射開啟圖表檔案，只讀取字串表與頂層元素索引
+     * @param path 檔案路徑
+     * @return 延遲載入的圖表
+     * @throws IOException 讀取失敗或檔案格式不正確
+     */
+    public static LazyDiagram open(Path path) throws IOException {
+        ByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("圖表檔案太大，無法延遲載入");
+            }
+            // 映射在通道關閉後仍然有效
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        DiagramReader reader = new DiagramReader();
+        ShapeTable names = reader.readHeader(mapped.duplicate());
+        if (reader.version() < DiagramFormat.FIRST_INDEXED_VERSION) {
+            throw new IOException("圖表檔案沒有索引，無法延遲載入");
+        }
+        int size = mapped.limit();
+        if (size < DiagramFormat.FOOTER_SIZE || mapped.getInt(size - 4) != DiagramFormat.INDEX_MAGIC) {
+            throw new IOException("圖表檔案已損毀");
+        }
+        long indexOffset = mapped.getLong(size - DiagramFormat.FOOTER_SIZE);
+        if (indexOffset < 0 || indexOffset > size - DiagramFormat.FOOTER_SIZE - 4) {
+            throw new IOException("圖表檔案已損毀");
+        }
+        int rootCount = mapped.getInt((int) indexOffset);
+        int elementCount = reader.elementCount();
+        if (rootCount < 0 || rootCount > elementCount || (elementCount > 0 && rootCount == 0)
+                || (long) rootCount * DiagramFormat.INDEX_ENTRY_SIZE != size - DiagramFormat.FOOTER_SIZE - 4 - indexOffset) {
+            throw new IOException("圖表檔案已損毀");
+        }
+        LazyDiagram diagram = new LazyDiagram(mapped, (int) indexOffset, reader, names, rootCount);
+        diagram.validateIndex();
+        return diagram;
+    }
+
+    /**
+     * 讀取頂層元素索引並建立格狀索引
+     * @return 跨越太多格子的頂層元素
+     */
+    private int[] readIndex() {
+        int rootCount = rootRows.length;
+        int position = indexOffset + 4;
+        int[] depthOrder = new int[rootCount];
+        for (int root = 0; root < rootCount; root++) {
+            rootRows[root] = mapped.getInt(position);
+            rootOffsets[root] = mapped.getLong(position + 4);
+            depthOrder[root] = mapped.getInt(position + 12);
+            for (int i = 0; i < 4; i++) {
+                rootBounds[root * 4 + i] = mapped.getInt(position + 16 + i * 4);
+            }
+            position += DiagramFormat.INDEX_ENTRY_SIZE;
+        }
+        rankDepths(depthOrder);
+
+        // 先計算每個格子的元素數量，再配置剛好大小的陣列
+        Map<Long, int[]> counts = new HashMap<>();
+        List<Integer> large = new ArrayList<>();
+        for (int root = 0; root < rootCount; root++) {
+            includeInExtent(root);
+            if (tileCount(root) > MAX_TILES_PER_ROOT) {
+                large.add(root);
+                continue;
+            }
+            forEachTile(root, key -> counts.computeIfAbsent(key, k -> new int[1])[0]++);
+        }
+        for (Map.Entry<Long, int[]> entry : counts.entrySet()) {
+            tiles.put(entry.getKey(), new int[entry.getValue()[0]]);
+            entry.getValue()[0] = 0;
+        }
+        for (int root = 0; root < rootCount; root++) {
+            if (tileCount(root) <= MAX_TILES_PER_ROOT) {
+                int current = root;
+                forEachTile(root, key -> tiles.get(key)[counts.get(key)[0]++] = current);
+            }
+        }
+        return large.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * 將檔案中的深度換成排名，之後在畫布上建立的形狀可以放在所有檔案中的形狀之上
+     */
+    private void rankDepths(int[] fileDepths) {
+        // 高 32 位元放深度、低 32 位元放頂層元素編號，排序長整數就是依深度排序
+        long[] order = new long[fileDepths.length];
+        for (int root = 0; root < order.length; root++) {
+            order[root] = ((long) fileDepths[root] << 32) | root;
+        }
+        Arrays.sort(order);
+        for (int rank = 0; rank < order.length; rank++) {
+            rootDepths[(int) order[rank]] = rank;
+        }
+    }
+
+    private void includeInExtent(int root) {
+        int i = root * 4;
+        Rectangle bounds = new Rectangle(rootBounds[i] - TILE_MARGIN, rootBounds[i + 1] - TILE_MARGIN,
+                rootBounds[i + 2] - rootBounds[i] + TILE_MARGIN * 2, rootBounds[i + 3] - rootBounds[i + 1] + TILE_MARGIN * 2);
+        if (root == 0) {
+            extent.setBounds(bounds);
+        } else {
+            extent.add(bounds);
+        }
+    }
+
+    private void validateIndex() throws IOException {
+        for (int root = 0; root < rootRows.length; root++) {
+            int i = root * 4;
+            boolean ordered = root == 0 ? rootRows[root] == 0
+                    : rootRows[root] > rootRows[root - 1] && rootOffsets[root] > rootOffsets[root - 1];
+            if (!ordered || rootRows[root] >= elementCount || rootOffsets[root] < 0 || rootOffsets[root] >= indexOffset
+                    || rootBounds[i] > rootBounds[i + 2] || rootBounds[i + 1] > rootBounds[i + 3]) {
+                throw new IOException("圖表檔案已損毀");
+            }
+        }
+    }
+
+    private long tileCount(int root) {
+        int i = root * 4;
+        long columns = Math.floorDiv(rootBounds[i + 2], TILE_SIZE) - (long) Math.floorDiv(rootBounds[i], TILE_SIZE) + 1;
+        long rows = Math.floorDiv(rootBounds[i + 3], TILE_SIZE) - (long) Math.floorDiv(rootBounds[i + 1], TILE_SIZE) + 1;
+        return columns * rows;
+    }
+
+    private void forEachTile(int root, LongConsumer action) {
+        int i = root * 4;
+        for (int tileX = Math.floorDiv(rootBounds[i], TILE_SIZE); tileX <= Math.floorDiv(rootBounds[i + 2], TILE_SIZE); tileX++) {
+            for (int tileY = Math.floorDiv(rootBounds[i + 1], TILE_SIZE); tileY <= Math.floorDiv(rootBounds[i + 3], TILE_SIZE); tileY++) {
+                action.accept(GridKey.of(tileX, tileY));
+            }
+        }
+    }
+
+    /**
+     * 取得包住所有元素（含標籤與箭頭的預留空間）的範圍
+     * @return 範圍矩形的複本
+     */
+    public Rectangle getExtent() {
+        return new Rectangle(extent);
+    }
+
+    /**
+     * 取得頂層元素數量，建立的頂層形狀深度介於 0 與此數量之間
+     * @return 頂層元素數量
+     */
+    public int getRootCount() {
+        return rootRows.length;
+    }
+
+    /**
+     * 是否所有頂層元素都已建立
+     * @return 是否已全部建立
+     */
+    public boolean isComplete() {
+        return materializedCount == rootRows.length;
+    }
+
+    /**
+     * 建立與區域相交的格子中尚未建立的頂層元素
+     * @param area 區域（世界座標）
+     * @param alive 檢查先前建立的形狀是否仍在畫布上，連到已刪除形狀的頂層連結不會建立
+     * @return 新建立的頂層形狀，依深度由下而上排列，深度為檔案中的排名
+     * @throws IOException 檔案內容損毀
+     */
+    public List<BaseShape> materialize(Rectangle area, Predicate<BaseShape> alive) throws IOException {
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        int minTileX = Math.floorDiv(area.x - TILE_MARGIN, TILE_SIZE);
+        int maxTileX = Math.floorDiv(area.x + area.width + TILE_MARGIN, TILE_SIZE);
+        int minTileY = Math.floorDiv(area.y - TILE_MARGIN, TILE_SIZE);
+        int maxTileY = Math.floorDiv(area.y + area.height + TILE_MARGIN, TILE_SIZE);
+        for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+            for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+                long key = GridKey.of(tileX, tileY);
+                int[] roots = tiles.get(key);
+                if (roots != null && loadedTiles.add(key)) {
+                    for (int root : roots) {
+                        enqueue(root, pending);
+                    }
+                }
+            }
+        }
+        for (int root : largeRoots) {
+            int i = root * 4;
+            if (!materialized.get(root) && rootBounds[i] - TILE_MARGIN <= area.x + area.width
+                    && rootBounds[i + 2] + TILE_MARGIN >= area.x && rootBounds[i + 1] - TILE_MARGIN <= area.y + area.height
+                    && rootBounds[i + 3] + TILE_MARGIN >= area.y) {
+                enqueue(root, pending);
+            }
+        }
+        return build(pending, alive);
+    }
+
+    /**
+     * 建立所有尚未建立的頂層元素
+     * @param alive 檢查先前建立的形狀是否仍在畫布上
+     * @return 新建立的頂層形狀，依深度由下而上排列
+     * @throws IOException 檔案內容損毀
+     */
+    public List<BaseShape> materializeAll(Predicate<BaseShape> alive) throws IOException {
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        for (int root = materialized.nextClearBit(0); root < rootRows.length; root = materialized.nextClearBit(root + 1)) {
+            enqueue(root, pending);
+        }
+        return build(pending, alive);
+    }
+
+    private void enqueue(int root, ArrayDeque<Integer> pending) {
+        if (!materialized.get(root)) {
+            materialized.set(root);
+            materializedCount++;
+            pending.add(root);
+        }
+    }
+
+    /**
+     * 解碼並建立排隊中的頂層元素，連結端點所在的頂層元素也會加入這一批
+     */
+    private List<BaseShape> build(ArrayDeque<Integer> pending, Predicate<BaseShape> alive) throws IOException {
+        if (pending.isEmpty()) {
+            return List.of();
+        }
+
+        ShapeTable batch = names.withSharedNames(pending.size());
+        List<Integer> batchRoots = new ArrayList<>();
+        List<Integer> batchStarts = new ArrayList<>(); // 每個頂層元素在 batch 中的第一列
+        BitSet inBatch = new BitSet();
+        while (!pending.isEmpty()) {
+            int root = pending.poll();
+            int first = rootRows[root];
+            int count = rowEnd(root) - first;
+            int start = batch.size();
+            // 索引之前的部分才是元素紀錄，損毀的紀錄不會讀到索引
+            ByteBuffer source = mapped.duplicate();
+            source.limit(indexOffset).position((int) rootOffsets[root]);
+            reader.readRecords(source, batch, first, count);
+            if (batch.getParent(start) != ShapeTable.NONE) {
+                throw new IOException("圖表檔案已損毀");
+            }
+            batchRoots.add(root);
+            batchStarts.add(start);
+            inBatch.set(root);
+
+            for (int row = start; row < batch.size(); row++) {
+                if (ShapeTable.isLink(batch.getKind(row))) {
+                    enqueueEndpoint(batch.getSource(row), pending);
+                    enqueueEndpoint(batch.getTarget(row), pending);
+                }
+            }
+        }
+
+        // 連結的端點是檔案中的列號，先取出再清除，建立物件後自行連接
+        int[] globalRows = new int[batch.size()];
+        List<Integer> linkRows = new ArrayList<>();
+        List<int[]> endpoints = new ArrayList<>();
+        for (int b = 0; b < batchRoots.size(); b++) {
+            int start = batchStarts.get(b);
+            int end = b + 1 < batchStarts.size() ? batchStarts.get(b + 1) : batch.size();
+            for (int row = start; row < end; row++) {
+                globalRows[row] = rootRows[batchRoots.get(b)] + row - start;
+                if (ShapeTable.isLink(batch.getKind(row))) {
+                    linkRows.add(row);
+                    endpoints.add(new int[] {batch.getSource(row), batch.getTarget(row)});
+                    batch.setEndpoints(row, ShapeTable.NONE, ShapeTable.NONE);
+                }
+            }
+        }
+
+        BaseShape[] objects = new BaseShape[batch.size()];
+        batch.materialize(objects);
+        for (int row = 0; row < objects.length; row++) {
+            if (objects[row] instanceof BasicShape basicShape) {
+                shapes[globalRows[row]] = basicShape;
+                origins[globalRows[row]] = ((long) batch.getX(row) << 32) | (batch.getY(row) & 0xFFFFFFFFL);
+            }
+        }
+
+        Set<BaseShape> deadLinks = new HashSet<>();
+        for (int i = 0; i < linkRows.size(); i++) {
+            Link link = (Link) objects[linkRows.get(i)];
+            int source = endpoints.get(i)[0];
+            int target = endpoints.get(i)[1];
+            if (isDeleted(source, inBatch, alive) || isDeleted(target, inBatch, alive)) {
+                // 端點形狀已經在畫布上被刪除，刪除形狀時這條連結還沒有建立，因此在這裡捨棄
+                deadLinks.add(link);
+                continue;
+            }
+            if (source != ShapeTable.NONE && shapes[source] != null) {
+                link.setStartPoint(translateEndpoint(source, link.getStartPoint()));
+                link.setStartShape(shapes[source]);
+            }
+            if (target != ShapeTable.NONE && shapes[target] != null) {
+                link.setEndPoint(translateEndpoint(target, link.getEndPoint()));
+                link.setEndShape(shapes[target]);
+            }
+        }
+        for (BaseShape link : deadLinks) {
+            if (link.getParent() != null) {
+                // 群組內的連結不會出現在回傳的頂層形狀中，要另外從群組移除
+                link.getParent().removeShape(link);
+            }
+        }
+
+        List<BaseShape> result = new ArrayList<>();
+        for (int b = 0; b < batchRoots.size(); b++) {
+            BaseShape shape = objects[batchStarts.get(b)];
+            if (!deadLinks.contains(shape)) {
+                shape.setDepth(rootDepths[batchRoots.get(b)]);
+                result.add(shape);
+            }
+        }
+        result.sort(Comparator.comparingInt(BaseShape::getDepth));
+        return result;
+    }
+
+    /**
+     * 將連結在檔案中的端點座標換算到端點形狀目前的位置
+     * 端點形狀可能在先前的批次建立、之後在畫布上被移動，端點要跟著平移，設定端點形狀時才找得到原本的連接埠
+     * @param row 端點形狀的列號
+     * @param fileEndpoint 檔案中的端點座標
+     */
+    private Point translateEndpoint(int row, Point fileEndpoint) {
+        Rectangle bounds = shapes[row].getBounds();
+        long origin = origins[row];
+        return new Point(fileEndpoint.x + bounds.x - (int) (origin >> 32), fileEndpoint.y + bounds.y - (int) origin);
+    }
+
+    private void enqueueEndpoint(int row, ArrayDeque<Integer> pending) {
+        if (row != ShapeTable.NONE) {
+            enqueue(rootOf(row), pending);
+        }
+    }
+
+    /**
+     * 連結端點的形狀是否在先前的批次建立、之後已從畫布上刪除
+     */
+    private boolean isDeleted(int row, BitSet inBatch, Predicate<BaseShape> alive) {
+        return row != ShapeTable.NONE && shapes[row] != null && !inBatch.get(rootOf(row)) && !alive.test(shapes[row]);
+    }
+
+    private int rowEnd(int root) {
+        return root + 1 < rootRows.length ? rootRows[root + 1] : elementCount;
+    }
+
+    /**
+     * 取得列所屬的頂層元素
+     */
+    private int rootOf(int row) {
+        int index = Arrays.binarySearch(rootRows, row);
+        return index >= 0 ? index : -index - 2;
+    }
+}
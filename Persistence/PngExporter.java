@@ -0,0 +1,245 @@
+package Persistence;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import Canvas.RTree;
+import Shapes.BaseShape;
+import Shapes.LevelOfDetail;
+import Shapes.ShapeTable;
+
+/**
+ * 以圖塊匯出整張圖表的 PNG
+ * 在事件執行緒上擷取的形狀表交給匯出器後，建立物件、繪製與編碼都在背景執行緒進行，畫布可以繼續編輯
+ * 影像分成 TILE_SIZE 見方的圖塊，每塊只繪製 R-tree 查到與它相交的形狀，由執行緒池同時繪製；
+ * 一列圖塊繪製完成後過濾並壓縮成一條，依序寫入檔案，同時存在的只有正在處理的幾條，不需要整張影像的記憶體
+ */
+public class PngExporter {
+    public static final double SCREEN_DPI = 96; // 縮放比例 1 時每英吋的像素數
+    public static final int MARGIN = 20; // 圖表四周留白（世界座標）
+    private static final int TILE_SIZE = 256;
+    private static final long BAND_MEMORY = 64L * 1024 * 1024; // 同時處理中的橫條最多使用的像素記憶體
+    private static final Comparator<BaseShape> DEPTH_ORDER = Comparator.comparingInt(BaseShape::getDepth);
+
+    private final ShapeTable table;
+    private final double dpi;
+    private final double scale;
+    private final Rectangle extent; // 匯出範圍（世界座標）
+    private final int width;
+    private final int height;
+
+    /**
+     * 匯出過程的進度通知，在背景執行緒上呼叫
+     */
+    public interface ProgressListener {
+        /**
+         * @param done 已寫入的橫條數
+         * @param total 橫條總數
+         */
+        void progress(int done, int total);
+    }
+
+    /**
+     * @param table 要匯出的圖表，之後不可再修改
+     * @param dpi 每英吋的像素數，SCREEN_DPI 為與畫布縮放比例 1 相同的大小
+     */
+    public PngExporter(ShapeTable table, double dpi) {
+        this.table = table;
+        this.dpi = dpi;
+        this.scale = dpi / SCREEN_DPI;
+        this.extent = extentOf(table);
+        long pixelWidth = (long) Math.ceil(extent.width * scale);
+        long pixelHeight = (long) Math.ceil(extent.height * scale);
+        // 每一列過濾後是 1 + 寬 * 3 個位元組，必須放得進陣列
+        if (pixelWidth > (Integer.MAX_VALUE - 1) / 3 || pixelHeight > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("匯出的影像太大：" + pixelWidth + " x " + pixelHeight);
+        }
+        this.width = (int) Math.max(1, pixelWidth);
+        this.height = (int) Math.max(1, pixelHeight);
+    }
+
+    /**
+     * 圖表中所有元素的範圍加上留白，包含形狀的標籤與連結的箭頭
+     */
+    private static Rectangle extentOf(ShapeTable table) {
+        Rectangle extent = null;
+        for (int row = 0; row < table.size(); row++) {
+            Rectangle bounds = new Rectangle(table.getX(row), table.getY(row), table.getWidth(row), table.getHeight(row));
+            if (bounds.width < 0) {
+                bounds.x += bounds.width;
+                bounds.width = -bounds.width;
+            }
+            if (bounds.height < 0) {
+                bounds.y += bounds.height;
+                bounds.height = -bounds.height;
+            }
+            if (extent == null) {
+                extent = bounds;
+            } else {
+                extent.add(bounds);
+            }
+        }
+        if (extent == null) {
+            extent = new Rectangle();
+        }
+        extent.grow(MARGIN, MARGIN);
+        return extent;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * 將圖表寫入 PNG 檔案，先寫入暫存檔，完成後才取代目標檔案
+     * 執行緒被中斷時停止匯出並刪除暫存檔
+     * @param file 目標檔案
+     * @param listener 進度通知
+     * @throws IOException 寫入失敗
+     * @throws InterruptedException 匯出被取消
+     */
+    public void export(Path file, ProgressListener listener) throws IOException, InterruptedException {
+        // 匯出器自己的物件模型，背景執行緒可以自由讀取，不受畫布上的編輯影響
+        ShapeTable unselected = table.copy();
+        for (int row = 0; row < unselected.size(); row++) {
+            unselected.setFlags(row, (byte) (unselected.getFlags(row) & ~ShapeTable.FLAG_SELECTED));
+        }
+        List<BaseShape> shapes = unselected.materialize();
+        RTree<BaseShape> index = new RTree<>();
+        index.load(shapes, BaseShape::getPaintBounds);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "png-export-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        int bandCount = (height + TILE_SIZE - 1) / TILE_SIZE;
+        long bandBytes = (long) width * TILE_SIZE * Integer.BYTES;
+        int maxInFlight = (int) Math.max(2, Math.min(threads * 2L, BAND_MEMORY / bandBytes));
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        boolean completed = false;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            PngWriter writer = new PngWriter(channel, width, height);
+            writer.writeHeader(dpi);
+            Deque<CompletableFuture<PngWriter.Band>> inFlight = new ArrayDeque<>();
+            int submitted = 0;
+            for (int written = 0; written < bandCount; written++) {
+                while (submitted < bandCount && inFlight.size() < maxInFlight) {
+                    inFlight.add(submitBand(submitted++, bandCount, index, pool));
+                }
+                writer.writeBand(await(inFlight.poll()));
+                listener.progress(written + 1, bandCount);
+            }
+            writer.finish();
+            channel.force(true);
+            completed = true;
+        } finally {
+            pool.shutdownNow();
+            if (!completed) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static PngWriter.Band await(CompletableFuture<PngWriter.Band> band) throws IOException, InterruptedException {
+        try {
+            return band.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IOException("匯出時發生錯誤", e.getCause());
+        }
+    }
+
+    /**
+     * 將一列圖塊交給執行緒池繪製，全部完成後再交給執行緒池編碼成一條
+     * 圖塊要繪製的形狀在這裡查好，R-tree 只在呼叫端的執行緒上使用
+     */
+    private CompletableFuture<PngWriter.Band> submitBand(int band, int bandCount, RTree<BaseShape> index,
+                                                          ExecutorService pool) {
+        int top = band * TILE_SIZE;
+        int rows = Math.min(TILE_SIZE, height - top);
+        int tileCount = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int[] tileWidths = new int[tileCount];
+        List<CompletableFuture<int[]>> tiles = new ArrayList<>(tileCount);
+        for (int t = 0; t < tileCount; t++) {
+            int left = t * TILE_SIZE;
+            tileWidths[t] = Math.min(TILE_SIZE, width - left);
+            Rectangle pixels = new Rectangle(left, top, tileWidths[t], rows);
+            List<BaseShape> visible = new ArrayList<>();
+            index.search(toWorld(pixels), visible);
+            visible.sort(DEPTH_ORDER);
+            tiles.add(CompletableFuture.supplyAsync(() -> renderTile(pixels, visible), pool));
+        }
+        return CompletableFuture.allOf(tiles.toArray(new CompletableFuture<?>[0])).thenApplyAsync(done -> {
+            int[][] pixels = new int[tileCount][];
+            for (int t = 0; t < tileCount; t++) {
+                pixels[t] = tiles.get(t).join();
+            }
+            return PngWriter.encode(pixels, tileWidths, rows, band == bandCount - 1);
+        }, pool);
+    }
+
+    /**
+     * 像素範圍對應的世界座標範圍，向外多取一個單位避免邊緣的形狀因捨入被漏掉
+     */
+    private Rectangle toWorld(Rectangle pixels) {
+        int x = (int) Math.floor(pixels.x / scale) + extent.x;
+        int y = (int) Math.floor(pixels.y / scale) + extent.y;
+        int right = (int) Math.ceil((pixels.x + pixels.width) / scale) + extent.x;
+        int bottom = (int) Math.ceil((pixels.y + pixels.height) / scale) + extent.y;
+        Rectangle world = new Rectangle(x, y, right - x, bottom - y);
+        world.grow(1, 1);
+        return world;
+    }
+
+    /**
+     * 繪製一個圖塊
+     * @param pixels 圖塊的像素範圍
+     * @param shapes 與圖塊相交的形狀，依繪製順序排列
+     * @return 圖塊的像素（0xRRGGBB），由上而下逐列排列
+     */
+    private int[] renderTile(Rectangle pixels, List<BaseShape> shapes) {
+        BufferedImage image = new BufferedImage(pixels.width, pixels.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = image.createGraphics();
+        g2d.setColor(Color.WHITE);
+        g2d.fillRect(0, 0, pixels.width, pixels.height);
+        g2d.translate(-pixels.x, -pixels.y);
+        g2d.scale(scale, scale);
+        g2d.translate(-extent.x, -extent.y);
+        LevelOfDetail.setScaleHint(g2d);
+        for (BaseShape shape : shapes) {
+            shape.draw(g2d);
+        }
+        g2d.dispose();
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+}
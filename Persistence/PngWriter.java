@@ -0,0 +1,229 @@
+package Persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 串流 PNG 編碼器
+ * 影像由上而下分成橫條，每條獨立以 Sub 過濾並壓縮成 raw deflate 區塊，因此各條可以在不同執行緒上同時編碼
+ * 各條以 SYNC_FLUSH 結束在位元組邊界上，依序串接起來就是一個完整的 zlib 串流；
+ * 最後的 Adler-32 由各條的 Adler-32 合併而來，不需要保留任何一條的原始資料
+ * 檔案結構：簽章、IHDR（8 位元 RGB）、pHYs（解析度）、zlib 標頭、每條一個 IDAT、Adler-32、IEND
+ */
+final class PngWriter {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] ZLIB_HEADER = {0x78, 0x01}; // deflate、32K 視窗、最快壓縮
+    private static final byte COLOR_TYPE_RGB = 2;
+    private static final byte FILTER_SUB = 1;
+    private static final int ADLER_BASE = 65521;
+    private static final double METERS_PER_INCH = 0.0254;
+    private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED; // 圖表多半是大片的底色，較高的壓縮等級幾乎沒有差別
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final CRC32 crc = new CRC32();
+    private long adler = 1; // 已寫入的各條合併後的 Adler-32
+    private int rowsWritten = 0;
+
+    /**
+     * @param channel 輸出檔案
+     * @param width 影像寬度（像素）
+     * @param height 影像高度（像素）
+     */
+    PngWriter(FileChannel channel, int width, int height) {
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * 寫入簽章、IHDR、pHYs 與 zlib 標頭
+     * @param dpi 每英吋的像素數，記錄在 pHYs 讓其他程式以正確的實體大小顯示或列印
+     */
+    void writeHeader(double dpi) throws IOException {
+        write(ByteBuffer.wrap(SIGNATURE));
+
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(width).putInt(height);
+        header.put((byte) 8).put(COLOR_TYPE_RGB).put((byte) 0).put((byte) 0).put((byte) 0); // 位元深度、色彩、壓縮、過濾、非交錯
+        writeChunk("IHDR", header.flip());
+
+        int pixelsPerMeter = (int) Math.round(dpi / METERS_PER_INCH);
+        ByteBuffer physical = ByteBuffer.allocate(9);
+        physical.putInt(pixelsPerMeter).putInt(pixelsPerMeter).put((byte) 1); // 單位為公尺
+        writeChunk("pHYs", physical.flip());
+
+        writeChunk("IDAT", ByteBuffer.wrap(ZLIB_HEADER));
+    }
+
+    /**
+     * 依序寫入編碼好的橫條
+     * @param band 由 encode 編碼的橫條
+     */
+    void writeBand(Band band) throws IOException {
+        if (band.rows <= 0 || rowsWritten + band.rows > height) {
+            throw new IllegalArgumentException("橫條超出影像範圍");
+        }
+        writeChunk("IDAT", ByteBuffer.wrap(band.data, 0, band.length));
+        adler = combineAdler(adler, band.adler, band.rawLength);
+        rowsWritten += band.rows;
+    }
+
+    /**
+     * 寫入 zlib 串流結尾與 IEND
+     */
+    void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException("影像尚未寫完");
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(4);
+        trailer.putInt((int) adler);
+        writeChunk("IDAT", trailer.flip());
+        writeChunk("IEND", ByteBuffer.allocate(0));
+    }
+
+    private void writeChunk(String type, ByteBuffer data) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data.duplicate());
+
+        ByteBuffer prefix = ByteBuffer.allocate(8);
+        prefix.putInt(data.remaining()).put(typeBytes).flip();
+        ByteBuffer suffix = ByteBuffer.allocate(4);
+        suffix.putInt((int) crc.getValue()).flip();
+        ByteBuffer[] buffers = {prefix, data, suffix};
+        while (suffix.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * 合併相鄰兩段資料的 Adler-32（與 zlib 的 adler32_combine 相同）
+     * @param first 前一段的 Adler-32
+     * @param second 後一段的 Adler-32
+     * @param secondLength 後一段的位元組數
+     */
+    static long combineAdler(long first, long second, long secondLength) {
+        long remainder = secondLength % ADLER_BASE;
+        long sum1 = first & 0xFFFF;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (second & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((first >>> 16) & 0xFFFF) + ((second >>> 16) & 0xFFFF) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= (ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * 將一條像素過濾並壓縮，可以在任何執行緒呼叫
+     * @param tiles 由左而右排列的圖塊像素（0xRRGGBB），每塊寬 tileWidths[i]、高 rows
+     * @param tileWidths 每塊的寬度
+     * @param rows 這條的列數
+     * @param last 是否為最後一條，最後一條會結束 deflate 串流
+     * @return 編碼好的橫條
+     */
+    static Band encode(int[][] tiles, int[] tileWidths, int rows, boolean last) {
+        int width = 0;
+        for (int tileWidth : tileWidths) {
+            width += tileWidth;
+        }
+        byte[] row = new byte[1 + width * 3];
+        row[0] = FILTER_SUB;
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL, true);
+        Adler32 checksum = new Adler32();
+        Band band = new Band(rows, (long) row.length * rows, Math.max(1024, row.length * rows / 8));
+        try {
+            for (int y = 0; y < rows; y++) {
+                // 以 Sub 過濾：每個位元組減去左邊像素的同一個色版，大片相同顏色都變成 0
+                int out = 1;
+                int previous = 0;
+                for (int t = 0; t < tiles.length; t++) {
+                    int[] pixels = tiles[t];
+                    int tileWidth = tileWidths[t];
+                    for (int i = y * tileWidth, end = i + tileWidth; i < end; i++) {
+                        int pixel = pixels[i];
+                        row[out++] = (byte) ((pixel >>> 16) - (previous >>> 16));
+                        row[out++] = (byte) ((pixel >>> 8) - (previous >>> 8));
+                        row[out++] = (byte) (pixel - previous);
+                        previous = pixel;
+                    }
+                }
+                checksum.update(row);
+                deflater.setInput(row);
+                while (!deflater.needsInput()) {
+                    band.deflate(deflater, Deflater.NO_FLUSH);
+                }
+            }
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    band.deflate(deflater, Deflater.NO_FLUSH);
+                }
+            } else {
+                // SYNC_FLUSH 讓這條結束在位元組邊界上，輸出緩衝區沒有填滿才表示已經全部輸出
+                while (band.deflate(deflater, Deflater.SYNC_FLUSH)) {
+                    // 繼續輸出
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        band.adler = checksum.getValue();
+        return band;
+    }
+
+    /**
+     * 編碼好的橫條
+     */
+    static final class Band {
+        final int rows;
+        final long rawLength; // 過濾後、壓縮前的位元組數
+        long adler; // 過濾後資料的 Adler-32
+        byte[] data;
+        int length;
+
+        private Band(int rows, long rawLength, int capacity) {
+            this.rows = rows;
+            this.rawLength = rawLength;
+            this.data = new byte[capacity];
+        }
+
+        /**
+         * 將壓縮結果接在 data 後面
+         * @return 輸出緩衝區是否被填滿，填滿時可能還有尚未輸出的資料
+         */
+        private boolean deflate(Deflater deflater, int flush) {
+            if (length == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int space = data.length - length;
+            int produced = deflater.deflate(data, length, space, flush);
+            length += produced;
+            return produced == space;
+        }
+    }
+}
@@ -26,7 +26,9 @@ public class AssociationLink extends Link {
 
         // 使用模板方法繪製連結
         drawLine(g2d);
-        drawArrowHead(g2d);
+        if (isArrowHeadVisible(g2d)) {
+            drawArrowHead(g2d);
+        }
     }
 
     /**
@@ -37,6 +39,6 @@ public class AssociationLink extends Link {
     @Override
     protected void drawArrowHead(Graphics2D g2d) {
         // 繪製簡單的實心三角形箭頭
-        drawArrow(g2d, endPoint, startPoint, 10);
+        drawArrow(g2d, endPoint, startPoint, ARROW_SIZE);
     }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package Shapes;
 
 import Interfaces.Shape;
+import java.awt.Rectangle;
 
 /**
  * 基本形狀Abstract Class
@@ -10,6 +11,8 @@ import Interfaces.Shape;
 public abstract class BaseShape implements Shape {
     protected boolean selected = false; // 是否被選中
     protected int depth = 0; // 深度值，用於繪製順序
+    protected static final int PAINT_MARGIN = 4; // 選取點、連接埠等超出邊界的繪製範圍
+    private CompositeShape parent; // 所屬的群組，頂層形狀為 null
 
     /**
      * 設定選取狀態
@@ -46,4 +49,93 @@ public abstract class BaseShape implements Shape {
     public int getDepth() {
         return depth;
     }
+
+    /**
+     * 取得所屬的群組
+     * @return 群組，頂層形狀回傳 null
+     */
+    public CompositeShape getParent() {
+        return parent;
+    }
+
+    // 由 CompositeShape 加入或解除子形狀時呼叫
+    void setParent(CompositeShape parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * 取得最外層的群組，沿著所屬群組往上走，時間與巢狀深度成正比
+     * @return 最外層的群組，不屬於任何群組時回傳自己
+     */
+    public BaseShape getRoot() {
+        BaseShape root = this;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        return root;
+    }
+
+    /**
+     * 檢查形狀是否位於指定群組內（包含巢狀的子群組）
+     * @param group 群組
+     * @return 是否位於群組內
+     */
+    public boolean isInside(CompositeShape group) {
+        for (CompositeShape ancestor = parent; ancestor != null; ancestor = ancestor.getParent()) {
+            if (ancestor == group) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 邊界或繪製範圍改變時呼叫，讓所屬群組的快取範圍失效
+     */
+    protected void boundsChanged() {
+        if (parent != null) {
+            parent.childBoundsChanged();
+        }
+    }
+
+    /**
+     * 形狀平移後呼叫，所屬群組正在整體平移時不需要重新計算範圍
+     */
+    protected void moved() {
+        if (parent != null) {
+            parent.childMoved();
+        }
+    }
+
+    /**
+     * 形狀一律以物件識別比較，讓選取集合與各種雜湊集合的查詢都是常數時間且不受形狀內容影響
+     * @param obj 要比較的物件
+     * @return 是否為同一個形狀
+     */
+    @Override
+    public final boolean equals(Object obj) {
+        return this == obj;
+    }
+
+    @Override
+    public final int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    /**
+     * 取得邊界，用於空間索引與碰撞偵測
+     * @return 包住整個形狀的矩形
+     */
+    public abstract Rectangle getBounds();
+
+    /**
+     * 取得繪製範圍
+     * 包含邊界以及選取點、連接埠等繪製時會超出邊界的部分，用於局部重繪
+     * @return 新的矩形，呼叫端可以自由修改
+     */
+    public Rectangle getPaintBounds() {
+        Rectangle paintBounds = new Rectangle(getBounds());
+        paintBounds.grow(PAINT_MARGIN, PAINT_MARGIN);
+        return paintBounds;
+    }
 }
\ No newline at end of file
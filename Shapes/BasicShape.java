@@ -2,8 +2,11 @@ package Shapes;
 
 import Interfaces.Connectable;
 import java.awt.*;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * 基本形狀類
@@ -14,8 +17,17 @@ import java.util.List;
 public abstract class BasicShape extends BaseShape implements Connectable {
     protected Rectangle bounds; // 形狀的邊界
     protected String name = ""; // 形狀的名稱
-    protected LabelRenderer labelRenderer; // 標籤渲染器
-    protected List<Point> ports = new ArrayList<>(); // 連接埠列表
+    protected LabelRenderer labelRenderer = RectangleLabelRenderer.INSTANCE; // 標籤渲染器，預設使用矩形標籤
+    protected Color labelColor = Color.LIGHT_GRAY; // 標籤底色
+    protected int fontSize = 12; // 標籤字體大小
+    private LabelLayout labelLayout; // 標籤排版快取，名稱、字體大小或標籤樣式改變時清除
+    private int[] portX = new int[0]; // 連接埠 x 座標，移動時原地更新
+    private int[] portY = new int[0]; // 連接埠 y 座標
+    private int portCount = 0; // 連接埠數量
+    private final List<Point> portView = new PortView(); // 提供給 Connectable 的唯讀檢視
+    private final List<Link> outgoingLinks = new ArrayList<>(); // 以此形狀為起點的連結
+    private final List<Link> incomingLinks = new ArrayList<>(); // 以此形狀為終點的連結
+    private int renderVersion = 0; // 外觀版本號，名稱、標籤樣式或大小改變時遞增
 
     /**
      * 建構函數
@@ -23,7 +35,6 @@ public abstract class BasicShape extends BaseShape implements Connectable {
      */
     public BasicShape(Point start) {
         bounds = new Rectangle(start.x, start.y, 0, 0);
-        labelRenderer = new RectangleLabelRenderer(); // 預設使用矩形標籤
     }
 
     /**
@@ -40,6 +51,47 @@ public abstract class BasicShape extends BaseShape implements Connectable {
 
         bounds = new Rectangle(x, y, width, height);
         updatePorts(); // 更新連接埠位置
+        appearanceChanged();
+    }
+
+    /**
+     * 繪製形狀
+     * 使用模板方法：過小時畫成實心矩形，否則繪製（或從快取貼上）主體後再畫連接埠
+     * @param g2d 圖形
+     */
+    @Override
+    public void draw(Graphics2D g2d) {
+        if (LevelOfDetail.isTiny(g2d, bounds)) {
+            LevelOfDetail.drawPlaceholder(g2d, this);
+            return;
+        }
+
+        if (!SpriteCache.getInstance().draw(g2d, this)) {
+            drawBody(g2d);
+        }
+        drawPorts(g2d);
+    }
+
+    /**
+     * 繪製不隨選取狀態改變的主體（背景、邊框、標籤），結果可以被快取成點陣圖
+     * @param g2d 圖形
+     */
+    protected abstract void drawBody(Graphics2D g2d);
+
+    /**
+     * 外觀改變時遞增版本號，讓快取的點陣圖與所屬群組的快取範圍失效
+     */
+    protected void appearanceChanged() {
+        renderVersion++;
+        boundsChanged();
+    }
+
+    /**
+     * 取得外觀版本號
+     * @return 版本號
+     */
+    public int getRenderVersion() {
+        return renderVersion;
     }
 
     /**
@@ -52,6 +104,7 @@ public abstract class BasicShape extends BaseShape implements Connectable {
         bounds.x += dx;
         bounds.y += dy;
         updatePorts(); // 更新連接埠位置
+        moved();
     }
 
     /**
@@ -71,44 +124,95 @@ public abstract class BasicShape extends BaseShape implements Connectable {
      */
     @Override
     public Point getNearestPort(Point p) {
-        if (ports.isEmpty()) return null;
-
-        Point nearest = ports.get(0);
-        double minDistance = calculateDistance(p, nearest);
+        int index = getNearestPortIndex(p.x, p.y);
+        return index < 0 ? null : new Point(portX[index], portY[index]);
+    }
 
-        for (Point port : ports) {
-            double dist = calculateDistance(p, port);
-            if (dist < minDistance) {
-                minDistance = dist;
-                nearest = port;
+    /**
+     * 取得最近的連接埠索引，以距離平方比較，不需要開根號
+     * @param x 參考點 x 座標
+     * @param y 參考點 y 座標
+     * @return 連接埠索引，沒有連接埠時回傳 -1
+     */
+    public int getNearestPortIndex(int x, int y) {
+        int nearest = -1;
+        long minDistanceSq = Long.MAX_VALUE;
+        for (int i = 0; i < portCount; i++) {
+            long dx = portX[i] - x;
+            long dy = portY[i] - y;
+            long distanceSq = dx * dx + dy * dy;
+            if (distanceSq < minDistanceSq) {
+                minDistanceSq = distanceSq;
+                nearest = i;
             }
         }
-
         return nearest;
     }
 
     /**
-     * 計算兩點之間的距離
-     * @param p1 第一個點
-     * @param p2 第二個點
-     * @return 距離
+     * 取得位於指定座標的連接埠索引
+     * @param x x 座標
+     * @param y y 座標
+     * @return 連接埠索引，沒有則回傳 -1
      */
-    private double calculateDistance(Point p1, Point p2) {
-        return Math.sqrt(Math.pow(p2.x - p1.x, 2) + Math.pow(p2.y - p1.y, 2));
+    public int findPortIndex(int x, int y) {
+        for (int i = 0; i < portCount; i++) {
+            if (portX[i] == x && portY[i] == y) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     /**
      * 取得所有連接埠
-     * @return 連接埠列表
+     * @return 唯讀的連接埠檢視，每次取值都會建立新的 Point，修改它不會影響形狀
      */
     @Override
     public List<Point> getPorts() {
-        return ports;
+        return portView;
+    }
+
+    public int getPortCount() {
+        return portCount;
+    }
+
+    public int getPortX(int index) {
+        return portX[index];
+    }
+
+    public int getPortY(int index) {
+        return portY[index];
+    }
+
+    /**
+     * 設定連接埠數量，只在容量不足時重新配置陣列
+     * 由 updatePorts 呼叫，之後再以 setPort 填入座標
+     * @param count 連接埠數量
+     */
+    protected void setPortCount(int count) {
+        if (portX.length < count) {
+            portX = new int[count];
+            portY = new int[count];
+        }
+        portCount = count;
+    }
+
+    /**
+     * 設定連接埠座標
+     * @param index 連接埠索引
+     * @param x x 座標
+     * @param y y 座標
+     */
+    protected void setPort(int index, int x, int y) {
+        portX[index] = x;
+        portY[index] = y;
     }
 
     // Getter 和 Setter 方法
     public void setName(String name) {
         this.name = name;
+        labelChanged();
     }
 
     public String getName() {
@@ -117,31 +221,118 @@ public abstract class BasicShape extends BaseShape implements Connectable {
 
     public void setLabelShape(String shape) {
         if ("oval".equals(shape)) {
-            labelRenderer = new OvalLabelRenderer();
+            labelRenderer = OvalLabelRenderer.INSTANCE;
         } else {
-            labelRenderer = new RectangleLabelRenderer();
+            labelRenderer = RectangleLabelRenderer.INSTANCE;
         }
+        labelChanged();
+    }
+
+    /**
+     * 取得標籤樣式
+     * @return "oval" 或 "rect"
+     */
+    public String getLabelShape() {
+        return labelRenderer == OvalLabelRenderer.INSTANCE ? "oval" : "rect";
+    }
+
+    public Color getLabelColor() {
+        return labelColor;
+    }
+
+    public int getFontSize() {
+        return fontSize;
     }
 
     public void setLabelColor(Color color) {
-        labelRenderer.setColor(color);
+        this.labelColor = color;
+        appearanceChanged();
     }
 
     public void setFontSize(int fontSize) {
-        labelRenderer.setFontSize(fontSize);
+        this.fontSize = fontSize;
+        labelChanged();
+    }
+
+    /**
+     * 標籤內容或樣式改變時清除排版快取
+     */
+    private void labelChanged() {
+        labelLayout = null;
+        appearanceChanged();
     }
 
+    /**
+     * 取得標籤排版，只在文字或字體大小改變後重新量測
+     * @return 排版結果
+     */
+    private LabelLayout getLabelLayout() {
+        LabelLayout layout = labelLayout;
+        if (layout == null || !layout.matches(name, fontSize)) {
+            layout = LabelLayout.measure(name, fontSize);
+            labelLayout = layout;
+        }
+        return layout;
+    }
+
+    @Override
     public Rectangle getBounds() {
         return bounds;
     }
 
+    /**
+     * 取得繪製範圍，標籤超出形狀邊界時一併包含
+     * @return 繪製範圍
+     */
+    @Override
+    public Rectangle getPaintBounds() {
+        Rectangle paintBounds = super.getPaintBounds();
+        if (!name.isEmpty()) {
+            paintBounds.add(labelRenderer.getLabelBounds(getLabelLayout(), bounds));
+        }
+        return paintBounds;
+    }
+
+    /**
+     * 取得以此形狀為起點的連結
+     * @return 唯讀的連結列表
+     */
+    public List<Link> getOutgoingLinks() {
+        return Collections.unmodifiableList(outgoingLinks);
+    }
+
+    /**
+     * 取得以此形狀為終點的連結
+     * @return 唯讀的連結列表
+     */
+    public List<Link> getIncomingLinks() {
+        return Collections.unmodifiableList(incomingLinks);
+    }
+
+    // 連結索引維護，由 Link 設定或解除端點時呼叫
+    void addOutgoingLink(Link link) {
+        outgoingLinks.add(link);
+    }
+
+    void removeOutgoingLink(Link link) {
+        outgoingLinks.remove(link);
+    }
+
+    void addIncomingLink(Link link) {
+        incomingLinks.add(link);
+    }
+
+    void removeIncomingLink(Link link) {
+        incomingLinks.remove(link);
+    }
+
     /**
      * 繪製標籤
      * @param g2d
      */
     protected void drawLabel(Graphics2D g2d) {
-        if (!name.isEmpty()) {
-            labelRenderer.renderLabel(g2d, name, bounds);
+        if (!name.isEmpty() && LevelOfDetail.isLabelReadable(g2d, fontSize)) {
+            labelRenderer.renderLabel(g2d, getLabelLayout(), bounds, labelColor);
         }
     }
 
@@ -153,53 +344,67 @@ public abstract class BasicShape extends BaseShape implements Connectable {
         if (!selected) return;
 
         g2d.setColor(Color.BLACK);
-        for (Point port : ports) {
-            g2d.fillRect(port.x - 2, port.y - 2, 5, 5);
+        for (int i = 0; i < portCount; i++) {
+            g2d.fillRect(portX[i] - 2, portY[i] - 2, 5, 5);
+        }
+    }
+
+    /**
+     * 連接埠的唯讀列表檢視
+     */
+    private class PortView extends AbstractList<Point> {
+        @Override
+        public Point get(int index) {
+            Objects.checkIndex(index, portCount);
+            return new Point(portX[index], portY[index]);
+        }
+
+        @Override
+        public int size() {
+            return portCount;
         }
     }
 
     /**
      * 標籤渲染器 interface
      * 使用策略模式處理不同的標籤樣式
+     * 渲染器不保存狀態，排版結果與顏色由形狀提供，因此所有形狀共用同一個實例
      */
     private interface LabelRenderer {
-        void renderLabel(Graphics2D g2d, String text, Rectangle bounds);
-        void setColor(Color color);
-        void setFontSize(int fontSize);
+        void renderLabel(Graphics2D g2d, LabelLayout layout, Rectangle bounds, Color color);
+        Rectangle getLabelBounds(LabelLayout layout, Rectangle bounds);
+    }
+
+    /**
+     * 計算置中標籤框的範圍（與 renderLabel 繪製的外框相同，外加一個像素的邊框寬度）
+     */
+    private static Rectangle centerLabel(LabelLayout layout, Rectangle bounds) {
+        int x = bounds.x + (bounds.width - layout.width) / 2;
+        int y = bounds.y + (bounds.height - layout.height) / 2;
+        return new Rectangle(x - 5, y, layout.width + 11, layout.height + 1);
     }
 
     /**
      * 實作矩形標籤
      */
     private static class RectangleLabelRenderer implements LabelRenderer {
-        private Color color = Color.LIGHT_GRAY; //標籤外筐顏色固定
-        private int fontSize = 12;
+        static final RectangleLabelRenderer INSTANCE = new RectangleLabelRenderer();
 
         @Override
-        public void renderLabel(Graphics2D g2d, String text, Rectangle bounds) {
-            g2d.setFont(new Font("Arial", Font.PLAIN, fontSize));
-            FontMetrics metrics = g2d.getFontMetrics();
-            int textWidth = metrics.stringWidth(text);
-            int textHeight = metrics.getHeight();
-
-            int x = bounds.x + (bounds.width - textWidth) / 2;
-            int y = bounds.y + (bounds.height - textHeight) / 2 + metrics.getAscent();
+        public void renderLabel(Graphics2D g2d, LabelLayout layout, Rectangle bounds, Color color) {
+            int x = bounds.x + (bounds.width - layout.width) / 2;
+            int y = bounds.y + (bounds.height - layout.height) / 2 + layout.ascent;
 
             g2d.setColor(color);
-            g2d.fillRect(x - 5, y - metrics.getAscent(), textWidth + 10, textHeight);
+            g2d.fillRect(x - 5, y - layout.ascent, layout.width + 10, layout.height);
             g2d.setColor(Color.BLACK);
-            g2d.drawRect(x - 5, y - metrics.getAscent(), textWidth + 10, textHeight);
-            g2d.drawString(text, x, y);
+            g2d.drawRect(x - 5, y - layout.ascent, layout.width + 10, layout.height);
+            g2d.drawGlyphVector(layout.glyphs, x, y);
         }
 
         @Override
-        public void setColor(Color color) {
-            this.color = color;
-        }
-
-        @Override
-        public void setFontSize(int fontSize) {
-            this.fontSize = fontSize;
+        public Rectangle getLabelBounds(LabelLayout layout, Rectangle bounds) {
+            return centerLabel(layout, bounds);
         }
     }
 
@@ -207,34 +412,23 @@ public abstract class BasicShape extends BaseShape implements Connectable {
      * 橢圓標籤渲染器
      */
     private static class OvalLabelRenderer implements LabelRenderer {
-        private Color color = Color.LIGHT_GRAY;
-        private int fontSize = 12;
+        static final OvalLabelRenderer INSTANCE = new OvalLabelRenderer();
 
         @Override
-        public void renderLabel(Graphics2D g2d, String text, Rectangle bounds) {
-            g2d.setFont(new Font("Arial", Font.PLAIN, fontSize));
-            FontMetrics metrics = g2d.getFontMetrics();
-            int textWidth = metrics.stringWidth(text);
-            int textHeight = metrics.getHeight();
-
-            int x = bounds.x + (bounds.width - textWidth) / 2;
-            int y = bounds.y + (bounds.height - textHeight) / 2 + metrics.getAscent();
+        public void renderLabel(Graphics2D g2d, LabelLayout layout, Rectangle bounds, Color color) {
+            int x = bounds.x + (bounds.width - layout.width) / 2;
+            int y = bounds.y + (bounds.height - layout.height) / 2 + layout.ascent;
 
             g2d.setColor(color);
-            g2d.fillOval(x - 5, y - metrics.getAscent(), textWidth + 10, textHeight);
+            g2d.fillOval(x - 5, y - layout.ascent, layout.width + 10, layout.height);
             g2d.setColor(Color.BLACK);
-            g2d.drawOval(x - 5, y - metrics.getAscent(), textWidth + 10, textHeight);
-            g2d.drawString(text, x, y);
-        }
-
-        @Override
-        public void setColor(Color color) {
-            this.color = color;
+            g2d.drawOval(x - 5, y - layout.ascent, layout.width + 10, layout.height);
+            g2d.drawGlyphVector(layout.glyphs, x, y);
         }
 
         @Override
-        public void setFontSize(int fontSize) {
-            this.fontSize = fontSize;
+        public Rectangle getLabelBounds(LabelLayout layout, Rectangle bounds) {
+            return centerLabel(layout, bounds);
         }
     }
-}
\ No newline at end of file
+}
@@ -3,6 +3,8 @@ package Shapes;
 import Interfaces.Shape;
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -11,16 +13,22 @@ import java.util.List;
  * 實現了 Shape interface，可以像單一形狀一樣被操作
  */
 public class CompositeShape extends BaseShape {
-    private List<BaseShape> shapes = new ArrayList<>();
-    private Rectangle bounds = new Rectangle();
+    private final List<BaseShape> shapes = new ArrayList<>();
+    private final List<BaseShape> shapesView = Collections.unmodifiableList(shapes); // 不複製的唯讀檢視
+    private Rectangle bounds = new Rectangle(); // 快取的邊界
+    private boolean boundsValid = true; // 快取的邊界是否有效
+    private Rectangle paintBounds; // 快取的繪製範圍，null 表示需要重新計算
+    private boolean translating = false; // 是否正在整體平移，此時子形狀的平移不需要讓快取失效
     private BoundsCalculator boundsCalculator;
+    private static final BoundsCalculator STANDARD_BOUNDS_CALCULATOR = new StandardBoundsCalculator();
+    private static final SelectionBorderRenderer SELECTION_BORDER_RENDERER = new SelectionBorderRenderer();
     private int GAP_Value = 5;
 
     /**
      * 建構函數
      */
     public CompositeShape() {
-        this.boundsCalculator = new StandardBoundsCalculator();
+        this.boundsCalculator = STANDARD_BOUNDS_CALCULATOR;
     }
 
     /**
@@ -30,8 +38,8 @@ public class CompositeShape extends BaseShape {
     @Override
     public void draw(Graphics2D g2d) {
         // 繪製所有子形狀
-        for (BaseShape shape : shapes) {
-            shape.draw(g2d);
+        for (int i = 0; i < shapes.size(); i++) {
+            shapes.get(i).draw(g2d);
         }
 
         // 如果被選取，繪製群組邊界框
@@ -45,8 +53,7 @@ public class CompositeShape extends BaseShape {
      * @param g2d 圖形
      */
     private void drawSelectionBorder(Graphics2D g2d) {
-        SelectionBorderRenderer renderer = new SelectionBorderRenderer();
-        renderer.renderBorder(g2d, bounds);
+        SELECTION_BORDER_RENDERER.renderBorder(g2d, getBounds());
     }
 
     /**
@@ -57,7 +64,7 @@ public class CompositeShape extends BaseShape {
     @Override
     public boolean contains(Point p) {
         // 首先檢查是否在整個群組的邊界內
-        if (!bounds.contains(p)) {
+        if (!getBounds().contains(p)) {
             return false;
         }
 
@@ -79,6 +86,7 @@ public class CompositeShape extends BaseShape {
      */
     private boolean isOnGroupBorder(Point p) {
         int borderWidth = GAP_Value; // 邊框寬度容差
+        Rectangle bounds = getBounds();
 
         // 檢查是否在上下邊框附近
         if ((Math.abs(p.y - bounds.y) <= borderWidth ||
@@ -104,17 +112,46 @@ public class CompositeShape extends BaseShape {
      */
     @Override
     public void move(int dx, int dy) {
+        // 整體平移時直接平移快取的範圍，不需要重新計算
+        if (boundsValid) {
+            bounds.translate(dx, dy);
+        }
+        if (paintBounds != null) {
+            paintBounds.translate(dx, dy);
+        }
+
         // 移動所有子形狀，包括連結
-        for (BaseShape shape : shapes) {
-            shape.move(dx, dy);
+        translating = true;
+        for (int i = 0; i < shapes.size(); i++) {
+            shapes.get(i).move(dx, dy);
         }
+        translating = false;
 
         // 更新連結線位置，確保兩個形狀之間的連結線跟著移動
+        // 連到群組外形狀的連結端點會改變，此時連結會讓快取失效
         updateChildLinks();
+        moved();
+    }
+
+    /**
+     * 子形狀的邊界或繪製範圍改變，讓快取失效並往上層群組傳遞
+     * 快取已經失效時上層也已經失效，不需要再傳遞
+     */
+    void childBoundsChanged() {
+        if (boundsValid || paintBounds != null) {
+            boundsValid = false;
+            paintBounds = null;
+            boundsChanged();
+        }
+    }
 
-        // 更新邊界
-        bounds.x += dx;
-        bounds.y += dy;
+    /**
+     * 子形狀平移，群組本身整體平移時已經處理過快取
+     */
+    void childMoved() {
+        if (!translating) {
+            childBoundsChanged();
+        }
     }
 
     /**
@@ -144,18 +181,58 @@ public class CompositeShape extends BaseShape {
      * @param shape 要添加的形狀
      */
     public void addShape(BaseShape shape) {
-        if (shape != this && !shapes.contains(shape)) { // 防止自我包含和重複添加
+        if (shape != this && shape.getParent() != this) { // 防止自我包含和重複添加
             shapes.add(shape);
-            updateBounds();
+            shape.setParent(this);
+            childBoundsChanged();
+        }
+    }
+
+    /**
+     * 一次添加多個形狀到群組，只在最後重新計算一次邊界
+     * @param toAdd 要添加的形狀
+     */
+    public void addShapes(Collection<? extends BaseShape> toAdd) {
+        for (BaseShape shape : toAdd) {
+            if (shape != this && shape.getParent() != this) { // 防止自我包含和重複添加
+                shapes.add(shape);
+                shape.setParent(this);
+            }
+        }
+        childBoundsChanged();
+    }
+
+    /**
+     * 從群組移除一個子形狀
+     * @param shape 要移除的形狀，不是這個群組的子形狀時不做任何事
+     */
+    public void removeShape(BaseShape shape) {
+        if (shape.getParent() == this && shapes.remove(shape)) {
+            shape.setParent(null);
+            childBoundsChanged();
+        }
+    }
+
+    /**
+     * 解散群組，移除所有子形狀並解除它們與群組的關聯
+     * @return 原本的子形狀，依加入順序排列
+     */
+    public List<BaseShape> ungroup() {
+        List<BaseShape> children = new ArrayList<>(shapes);
+        for (BaseShape shape : children) {
+            shape.setParent(null);
         }
+        shapes.clear();
+        childBoundsChanged();
+        return children;
     }
 
     /**
      * 取得群組中的所有形狀
-     * @return 形狀列表的副本
+     * @return 唯讀的形狀列表檢視，不會複製
      */
     public List<BaseShape> getShapes() {
-        return new ArrayList<>(shapes);
+        return shapesView;
     }
 
 
@@ -168,18 +245,32 @@ public class CompositeShape extends BaseShape {
     }
 
     /**
-     * 更新邊界
+     * 取得邊界，快取失效時才重新計算
+     * @return 邊界矩形
      */
-    private void updateBounds() {
-        bounds = boundsCalculator.calculateBounds(shapes);
+    @Override
+    public Rectangle getBounds() {
+        if (!boundsValid) {
+            bounds = boundsCalculator.calculateBounds(shapes);
+            boundsValid = true;
+        }
+        return bounds;
     }
 
     /**
-     * 取得邊界
-     * @return 邊界矩形
+     * 取得繪製範圍，包含群組選取框與所有子形狀的繪製範圍，快取失效時才重新計算
+     * @return 繪製範圍
      */
-    public Rectangle getBounds() {
-        return bounds;
+    @Override
+    public Rectangle getPaintBounds() {
+        if (paintBounds == null) {
+            Rectangle union = super.getPaintBounds();
+            for (BaseShape shape : shapes) {
+                union.add(shape.getPaintBounds());
+            }
+            paintBounds = union;
+        }
+        return new Rectangle(paintBounds);
     }
 
     /**
@@ -202,8 +293,10 @@ public class CompositeShape extends BaseShape {
      * @return 是否相關
      */
     public boolean isRelatedToLink(Link link) {
-        RelationshipChecker checker = new RelationshipChecker();
-        return checker.isGroupRelatedToLink(this, link);
+        // 從連結的端點形狀往上找所屬群組，不需要走訪整個群組
+        BasicShape startShape = link.getStartShape();
+        BasicShape endShape = link.getEndShape();
+        return (startShape != null && startShape.isInside(this)) || (endShape != null && endShape.isInside(this));
     }
 
     /**
@@ -231,38 +324,32 @@ public class CompositeShape extends BaseShape {
             int maxY = Integer.MIN_VALUE;
 
             for (BaseShape shape : shapes) {
-                Rectangle shapeBounds = getShapeBounds(shape);
-
-                minX = Math.min(minX, shapeBounds.x);
-                minY = Math.min(minY, shapeBounds.y);
-                maxX = Math.max(maxX, shapeBounds.x + shapeBounds.width);
-                maxY = Math.max(maxY, shapeBounds.y + shapeBounds.height);
+                if (shape instanceof Link link) {
+                    // 對於連結，取其起點和終點的邊界
+                    Point startPoint = link.getStartPoint();
+                    Point endPoint = link.getEndPoint();
+                    minX = Math.min(minX, Math.min(startPoint.x, endPoint.x));
+                    minY = Math.min(minY, Math.min(startPoint.y, endPoint.y));
+                    maxX = Math.max(maxX, Math.max(startPoint.x, endPoint.x));
+                    maxY = Math.max(maxY, Math.max(startPoint.y, endPoint.y));
+                } else if (shape instanceof BasicShape || shape instanceof CompositeShape) {
+                    // 基本形狀與子群組（子群組的邊界也是快取）直接使用現有的邊界
+                    Rectangle shapeBounds = shape.getBounds();
+                    minX = Math.min(minX, shapeBounds.x);
+                    minY = Math.min(minY, shapeBounds.y);
+                    maxX = Math.max(maxX, shapeBounds.x + shapeBounds.width);
+                    maxY = Math.max(maxY, shapeBounds.y + shapeBounds.height);
+                } else {
+                    // 對於其他類型，使用一個預設的小矩形
+                    minX = Math.min(minX, 0);
+                    minY = Math.min(minY, 0);
+                    maxX = Math.max(maxX, 10);
+                    maxY = Math.max(maxY, 10);
+                }
             }
 
             return new Rectangle(minX, minY, maxX - minX, maxY - minY);
         }
-
-        private Rectangle getShapeBounds(BaseShape shape) {
-            if (shape instanceof BasicShape) {
-                return ((BasicShape) shape).getBounds();
-            } else if (shape instanceof Link) {
-                // 對於連結，取其起點和終點的邊界
-                Link link = (Link) shape;
-                Point startPoint = link.getStartPoint();
-                Point endPoint = link.getEndPoint();
-                int x = Math.min(startPoint.x, endPoint.x);
-                int y = Math.min(startPoint.y, endPoint.y);
-                int width = Math.abs(endPoint.x - startPoint.x);
-                int height = Math.abs(endPoint.y - startPoint.y);
-                return new Rectangle(x, y, width, height);
-            } else if (shape instanceof CompositeShape) {
-                // 遞迴處理複合形狀
-                return ((CompositeShape) shape).getBounds();
-            } else {
-                // 對於其他類型，使用一個預設的小矩形
-                return new Rectangle(0, 0, 10, 10);
-            }
-        }
     }
 
     /**
@@ -271,14 +358,13 @@ public class CompositeShape extends BaseShape {
     private static class SelectionBorderRenderer {
         public void renderBorder(Graphics2D g2d, Rectangle bounds) {
             g2d.setColor(Color.BLACK);
-            g2d.setStroke(new BasicStroke(1.0f, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER,
-                    10.0f, new float[]{5.0f}, 0.0f));
+            g2d.setStroke(RenderResources.DASHED_STROKE);
             g2d.drawRect(bounds.x, bounds.y, bounds.width, bounds.height);
 
             // 繪製選取點
             renderSelectionHandles(g2d, bounds);
 
-            g2d.setStroke(new BasicStroke());
+            g2d.setStroke(RenderResources.DEFAULT_STROKE);
         }
 
         private void renderSelectionHandles(Graphics2D g2d, Rectangle bounds) {
@@ -288,26 +374,4 @@ public class CompositeShape extends BaseShape {
             g2d.fillRect(bounds.x + bounds.width - 3, bounds.y + bounds.height - 3, 6, 6); // 右下
         }
     }
-
-    /**
-     * Shape 是否與 Link 有關聯，避免Shape移動 Link還在原位
-     */
-    private static class RelationshipChecker {
-        public boolean isGroupRelatedToLink(CompositeShape group, Link link) {
-            for (BaseShape shape : group.shapes) {
-                if (shape instanceof BasicShape) {
-                    if (link.isRelatedTo(shape)) {
-                        return true;
-                    }
-                } else if (shape instanceof CompositeShape) {
-                    // 遞迴檢查子群組
-                    CompositeShape cs = (CompositeShape) shape;
-                    if (cs.isRelatedToLink(link)) {
-                        return true;
-                    }
-                }
-            }
-            return false;
-        }
-    }
-}
\ No newline at end of file
+}
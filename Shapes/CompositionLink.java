@@ -8,6 +8,7 @@ import java.awt.*;
  * 使用模板方法模式實現特定的實心菱形箭頭樣式
  */
 public class CompositionLink extends Link {
+    private static final DiamondArrowRenderer DIAMOND_ARROW_RENDERER = new DiamondArrowRenderer();
 
     /**
      * 建構函數
@@ -27,7 +28,9 @@ public class CompositionLink extends Link {
 
         // 使用父類別方法繪製連結
         drawLine(g2d);
-        drawArrowHead(g2d);
+        if (isArrowHeadVisible(g2d)) {
+            drawArrowHead(g2d);
+        }
     }
 
     /**
@@ -38,8 +41,7 @@ public class CompositionLink extends Link {
     @Override
     protected void drawArrowHead(Graphics2D g2d) {
         // 繪製實心菱形箭頭
-        DiamondArrowRenderer renderer = new DiamondArrowRenderer();
-        renderer.renderSolidDiamond(g2d, endPoint, startPoint, 10);
+        DIAMOND_ARROW_RENDERER.renderSolidDiamond(g2d, endPoint, startPoint, ARROW_SIZE);
     }
 
     /**
@@ -73,8 +75,11 @@ public class CompositionLink extends Link {
             int x3 = (int) (tip.x - size * unitDx - size * unitDy / 2);
             int y3 = (int) (tip.y - size * unitDy + size * unitDx / 2);
 
-            int[] xPoints = {tip.x, x1, x2, x3};
-            int[] yPoints = {tip.y, y1, y2, y3};
+            int[][] polygon = RenderResources.polygonBuffer();
+            int[] xPoints = polygon[0];
+            int[] yPoints = polygon[1];
+            xPoints[0] = tip.x; xPoints[1] = x1; xPoints[2] = x2; xPoints[3] = x3;
+            yPoints[0] = tip.y; yPoints[1] = y1; yPoints[2] = y2; yPoints[3] = y3;
 
             // 繪製實心菱形
             g2d.fillPolygon(xPoints, yPoints, 4);
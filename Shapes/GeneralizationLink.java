@@ -7,6 +7,7 @@ import java.awt.*;
  * 繼承 Link，實現Generalization Link的具體繪製邏輯
  */
 public class GeneralizationLink extends Link {
+    private static final TriangleArrowRenderer TRIANGLE_ARROW_RENDERER = new TriangleArrowRenderer();
 
     /**
      * 建構函數
@@ -26,7 +27,9 @@ public class GeneralizationLink extends Link {
 
         // 使用父節點繪製連結
         drawLine(g2d);
-        drawArrowHead(g2d);
+        if (isArrowHeadVisible(g2d)) {
+            drawArrowHead(g2d);
+        }
     }
 
     /**
@@ -37,8 +40,7 @@ public class GeneralizationLink extends Link {
     @Override
     protected void drawArrowHead(Graphics2D g2d) {
         // 繪製空心三角形箭頭
-        TriangleArrowRenderer renderer = new TriangleArrowRenderer();
-        renderer.renderHollowTriangle(g2d, endPoint, startPoint, 10);
+        TRIANGLE_ARROW_RENDERER.renderHollowTriangle(g2d, endPoint, startPoint, ARROW_SIZE);
     }
 
     /**
@@ -69,8 +71,11 @@ public class GeneralizationLink extends Link {
             int x2 = (int) (tip.x - size * unitDx - size * unitDy / 2);
             int y2 = (int) (tip.y - size * unitDy + size * unitDx / 2);
 
-            int[] xPoints = {tip.x, x1, x2};
-            int[] yPoints = {tip.y, y1, y2};
+            int[][] polygon = RenderResources.polygonBuffer();
+            int[] xPoints = polygon[0];
+            int[] yPoints = polygon[1];
+            xPoints[0] = tip.x; xPoints[1] = x1; xPoints[2] = x2;
+            yPoints[0] = tip.y; yPoints[1] = y1; yPoints[2] = y2;
 
             // 先填充白色背景，再繪製黑色邊框
             g2d.setColor(Color.WHITE);
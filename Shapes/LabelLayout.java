@@ -0,0 +1,63 @@
+package Shapes;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.image.BufferedImage;
+
+/**
+ * 標籤排版結果
+ * 保存標籤文字量測後的寬度、基線高度與字形，名稱、字體大小或標籤樣式改變前都可以重複使用
+ * 建立後不再改變，可以安全地交給其他執行緒讀取
+ */
+final class LabelLayout {
+    final String text; // 標籤文字
+    final int fontSize; // 字體大小
+    final int width; // 文字寬度
+    final int ascent; // 基線以上的高度
+    final int height; // 文字行高
+    final GlyphVector glyphs; // 排版好的字形，繪製時不需要重新排版
+
+    private LabelLayout(String text, int fontSize, int width, int ascent, int height, GlyphVector glyphs) {
+        this.text = text;
+        this.fontSize = fontSize;
+        this.width = width;
+        this.ascent = ascent;
+        this.height = height;
+        this.glyphs = glyphs;
+    }
+
+    /**
+     * 量測標籤文字
+     * 使用離屏圖形取得字型度量，不需要畫布的 Graphics
+     * @param text 標籤文字
+     * @param fontSize 字體大小
+     * @return 排版結果
+     */
+    static LabelLayout measure(String text, int fontSize) {
+        Font font = RenderResources.labelFont(fontSize);
+        FontMetrics metrics;
+        FontRenderContext context;
+        synchronized (Metrics.GRAPHICS) {
+            metrics = Metrics.GRAPHICS.getFontMetrics(font);
+            context = Metrics.GRAPHICS.getFontRenderContext();
+        }
+        return new LabelLayout(text, fontSize, metrics.stringWidth(text), metrics.getAscent(), metrics.getHeight(),
+                font.createGlyphVector(context, text));
+    }
+
+    /**
+     * 排版結果是否仍然適用於指定的文字與字體大小
+     */
+    boolean matches(String text, int fontSize) {
+        return this.fontSize == fontSize && this.text.equals(text);
+    }
+
+    /**
+     * 量測標籤文字用的離屏圖形
+     */
+    private static class Metrics {
+        private static final Graphics2D GRAPHICS =
+                new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+    }
+}
@@ -0,0 +1,93 @@
+package Shapes;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+
+/**
+ * 細節層級
+ * 依照形狀在畫面上的實際像素大小決定要繪製多少細節
+ * 縮小檢視大型圖表時，省略看不清楚的分隔線、標籤、連接埠與箭頭
+ */
+public final class LevelOfDetail {
+    private static final int MIN_DETAIL_SIZE = 12; // 形狀在畫面上小於此像素時只畫實心矩形
+    private static final int MIN_LABEL_HEIGHT = 6; // 文字在畫面上低於此像素時不畫標籤
+    private static final int MIN_ARROW_SIZE = 4; // 箭頭在畫面上小於此像素時不畫
+
+    /**
+     * 縮放比例的繪製提示
+     * 畫布在開始繪製時設定一次，之後每個形狀直接讀取，不需要每次複製 Graphics 的轉換矩陣
+     */
+    public static final RenderingHints.Key SCALE_HINT = new RenderingHints.Key(0x5CA1E) {
+        @Override
+        public boolean isCompatibleValue(Object value) {
+            return value instanceof Double;
+        }
+    };
+
+    private LevelOfDetail() {
+    }
+
+    /**
+     * 取得圖形目前的縮放比例（世界座標一單位對應的畫面像素數）
+     * @param g2d 圖形
+     * @return 縮放比例
+     */
+    public static double scaleOf(Graphics2D g2d) {
+        Object hint = g2d.getRenderingHint(SCALE_HINT);
+        if (hint instanceof Double scale) {
+            return scale;
+        }
+        AffineTransform transform = g2d.getTransform();
+        return Math.max(Math.abs(transform.getScaleX()), Math.abs(transform.getShearX()));
+    }
+
+    /**
+     * 記錄圖形目前的縮放比例，轉換矩陣改變後都要重新設定
+     * @param g2d 圖形
+     */
+    public static void setScaleHint(Graphics2D g2d) {
+        AffineTransform transform = g2d.getTransform();
+        g2d.setRenderingHint(SCALE_HINT, Math.max(Math.abs(transform.getScaleX()), Math.abs(transform.getShearX())));
+    }
+
+    /**
+     * 形狀在畫面上是否小到只需要畫成實心矩形
+     * @param g2d 圖形
+     * @param bounds 形狀邊界（世界座標）
+     * @return 是否過小
+     */
+    public static boolean isTiny(Graphics2D g2d, Rectangle bounds) {
+        return Math.max(bounds.width, bounds.height) * scaleOf(g2d) < MIN_DETAIL_SIZE;
+    }
+
+    /**
+     * 指定字體大小的文字在畫面上是否可以閱讀
+     * @param g2d 圖形
+     * @param fontSize 字體大小（世界座標）
+     * @return 是否可閱讀
+     */
+    public static boolean isLabelReadable(Graphics2D g2d, int fontSize) {
+        return fontSize * scaleOf(g2d) >= MIN_LABEL_HEIGHT;
+    }
+
+    /**
+     * 指定大小的箭頭在畫面上是否需要繪製
+     * @param g2d 圖形
+     * @param arrowSize 箭頭大小（世界座標）
+     * @return 是否繪製
+     */
+    public static boolean isArrowVisible(Graphics2D g2d, int arrowSize) {
+        return arrowSize * scaleOf(g2d) >= MIN_ARROW_SIZE;
+    }
+
+    /**
+     * 將過小的形狀畫成實心矩形，被選取時使用較深的顏色
+     * @param g2d 圖形
+     * @param shape 形狀
+     */
+    public static void drawPlaceholder(Graphics2D g2d, BasicShape shape) {
+        Rectangle bounds = shape.getBounds();
+        g2d.setColor(shape.isSelected() ? Color.DARK_GRAY : Color.LIGHT_GRAY);
+        g2d.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+    }
+}
@@ -2,7 +2,7 @@ package Shapes;
 
 import java.awt.Graphics2D;
 import java.awt.Point;
-import java.util.List;
+import java.awt.Rectangle;
 
 /**
  * 連結的Abstract Class
@@ -19,18 +19,24 @@ public abstract class Link extends BaseShape {
     protected int startPortIndex = -1;
     protected int endPortIndex = -1;
     int Distance_GAP = 5;
+    protected static final int ARROW_SIZE = 10; // 箭頭大小
 
     // 處理距離計算
     protected DistanceCalculator distanceCalculator;
 
+    // 渲染器與計算器都不保存狀態，所有連結共用同一個實例
+    private static final DistanceCalculator LINE_DISTANCE_CALCULATOR = new LineDistanceCalculator();
+    private static final ArrowRenderer STANDARD_ARROW_RENDERER = new StandardArrowRenderer();
+
     /**
      * 建構函數
      * @param start 起始點
      */
     public Link(Point start) {
-        this.startPoint = start;
-        this.endPoint = start; // 初始時終點與起點相同
-        this.distanceCalculator = new LineDistanceCalculator();
+        // 端點由連結自己持有，不與形狀或呼叫端共用，移動時原地更新座標
+        this.startPoint = new Point(start);
+        this.endPoint = new Point(start); // 初始時終點與起點相同
+        this.distanceCalculator = LINE_DISTANCE_CALCULATOR;
     }
 
     /**
@@ -40,8 +46,8 @@ public abstract class Link extends BaseShape {
      */
     @Override
     public boolean contains(Point p) {
-        double distance = distanceCalculator.calculateDistance(p, startPoint, endPoint);
-        return distance < Distance_GAP;
+        double distanceSquared = distanceCalculator.calculateDistanceSquared(p, startPoint, endPoint);
+        return distanceSquared < Distance_GAP * Distance_GAP;
     }
 
     /**
@@ -56,6 +62,7 @@ public abstract class Link extends BaseShape {
         startPoint.y += dy;
         endPoint.x += dx;
         endPoint.y += dy;
+        moved();
     }
 
     /**
@@ -70,11 +77,13 @@ public abstract class Link extends BaseShape {
 
     // Getter 和 Setter 方法
     public void setStartPoint(Point start) {
-        this.startPoint = start;
+        this.startPoint.setLocation(start);
+        boundsChanged();
     }
 
     public void setEndPoint(Point end) {
-        this.endPoint = end;
+        this.endPoint.setLocation(end);
+        boundsChanged();
     }
 
     public Point getStartPoint() {
@@ -85,6 +94,42 @@ public abstract class Link extends BaseShape {
         return endPoint;
     }
 
+    public BasicShape getStartShape() {
+        return startShape;
+    }
+
+    public BasicShape getEndShape() {
+        return endShape;
+    }
+
+    /**
+     * 取得連結線的邊界
+     * 以起點和終點的外接矩形向外擴張 Distance_GAP，涵蓋 contains 判斷為命中的範圍
+     * @return 邊界矩形
+     */
+    @Override
+    public Rectangle getBounds() {
+        int x = Math.min(startPoint.x, endPoint.x);
+        int y = Math.min(startPoint.y, endPoint.y);
+        int width = Math.abs(endPoint.x - startPoint.x);
+        int height = Math.abs(endPoint.y - startPoint.y);
+        Rectangle bounds = new Rectangle(x, y, width, height);
+        bounds.grow(Distance_GAP, Distance_GAP);
+        return bounds;
+    }
+
+    /**
+     * 取得繪製範圍
+     * 菱形箭頭最長會從終點往回延伸兩倍箭頭大小，因此以此範圍擴張
+     * @return 繪製範圍
+     */
+    @Override
+    public Rectangle getPaintBounds() {
+        Rectangle paintBounds = getBounds();
+        paintBounds.grow(2 * ARROW_SIZE + 1, 2 * ARROW_SIZE + 1);
+        return paintBounds;
+    }
+
     /**
      * 設定終點形狀
      * @param shape 終點形狀
@@ -94,7 +139,13 @@ public abstract class Link extends BaseShape {
         if (this.startShape != null && !LinkValidator.isValidLink(this.startShape, shape)) {
             throw new IllegalArgumentException("無效的連接，不能同一個 port 自己連到自己啦！！！");
         }
+        if (this.endShape != null) {
+            this.endShape.removeIncomingLink(this);
+        }
         this.endShape = shape;
+        if (shape != null) {
+            shape.addIncomingLink(this);
+        }
         // 找到並記錄對應的連接點索引
         if (shape != null && endPoint != null) {
             findAndSetEndPortIndex();
@@ -110,25 +161,40 @@ public abstract class Link extends BaseShape {
             throw new IllegalArgumentException("無效的連接，不能同一個 port 自己連到自己啦！！！");
         }
 
+        if (this.startShape != null) {
+            this.startShape.removeOutgoingLink(this);
+        }
         this.startShape = shape;
+        if (shape != null) {
+            shape.addOutgoingLink(this);
+        }
         // 找到並記錄對應的連接點索引
         if (shape != null && startPoint != null) {
             findAndSetStartPortIndex();
         }
     }
 
+    /**
+     * 將連結從起點與終點形狀的連結索引中移除
+     * 連結被刪除或建立失敗時呼叫
+     */
+    public void disconnect() {
+        if (startShape != null) {
+            startShape.removeOutgoingLink(this);
+        }
+        if (endShape != null) {
+            endShape.removeIncomingLink(this);
+        }
+    }
+
     /**
      * 記錄起始連接點的索引
      */
     private void findAndSetStartPortIndex() {
         if (startShape != null && startPoint != null) {
-            List<Point> ports = startShape.getPorts();
-            for (int i = 0; i < ports.size(); i++) {
-                Point port = ports.get(i);
-                if (port.x == startPoint.x && port.y == startPoint.y) {
-                    startPortIndex = i;
-                    break;
-                }
+            int index = startShape.findPortIndex(startPoint.x, startPoint.y);
+            if (index >= 0) {
+                startPortIndex = index;
             }
         }
     }
@@ -138,13 +204,9 @@ public abstract class Link extends BaseShape {
      */
     private void findAndSetEndPortIndex() {
         if (endShape != null && endPoint != null) {
-            List<Point> ports = endShape.getPorts();
-            for (int i = 0; i < ports.size(); i++) {
-                Point port = ports.get(i);
-                if (port.x == endPoint.x && port.y == endPoint.y) {
-                    endPortIndex = i;
-                    break;
-                }
+            int index = endShape.findPortIndex(endPoint.x, endPoint.y);
+            if (index >= 0) {
+                endPortIndex = index;
             }
         }
     }
@@ -154,13 +216,24 @@ public abstract class Link extends BaseShape {
      * 當連接的形狀移動時，應該調用此方法更新連結的位置
      */
     public void updatePosition() {
+        int startX = startPoint.x, startY = startPoint.y, endX = endPoint.x, endY = endPoint.y;
         // 當形狀移動時，我們使用索引來找到相同的連接點
-        if (startShape != null && startPortIndex >= 0 && startPortIndex < startShape.getPorts().size()) {
-            startPoint = startShape.getPorts().get(startPortIndex);
+        if (startShape != null && startPortIndex >= 0 && startPortIndex < startShape.getPortCount()) {
+            startPoint.setLocation(startShape.getPortX(startPortIndex), startShape.getPortY(startPortIndex));
+        }
+
+        if (endShape != null && endPortIndex >= 0 && endPortIndex < endShape.getPortCount()) {
+            endPoint.setLocation(endShape.getPortX(endPortIndex), endShape.getPortY(endPortIndex));
         }
+        notifyIfEndpointsChanged(startX, startY, endX, endY);
+    }
 
-        if (endShape != null && endPortIndex >= 0 && endPortIndex < endShape.getPorts().size()) {
-            endPoint = endShape.getPorts().get(endPortIndex);
+    /**
+     * 端點實際改變時才通知所屬群組，群組整體移動後重新對齊連接埠不會改變端點
+     */
+    private void notifyIfEndpointsChanged(int startX, int startY, int endX, int endY) {
+        if (startPoint.x != startX || startPoint.y != startY || endPoint.x != endX || endPoint.y != endY) {
+            boundsChanged();
         }
     }
 
@@ -171,6 +244,7 @@ public abstract class Link extends BaseShape {
      * @param dy y軸位移量
      */
     public void updateEndpointForShape(BaseShape shape, int dx, int dy) {
+        int startX = startPoint.x, startY = startPoint.y, endX = endPoint.x, endY = endPoint.y;
         // 使用記錄的連接點索引來更新端點位置
         if (startShape == shape) {
             updateStartPoint(dx, dy);
@@ -179,6 +253,7 @@ public abstract class Link extends BaseShape {
         if (endShape == shape) {
             updateEndPoint(dx, dy);
         }
+        notifyIfEndpointsChanged(startX, startY, endX, endY);
     }
 
     /**
@@ -193,8 +268,8 @@ public abstract class Link extends BaseShape {
         }
 
         // 使用索引獲取更新後的連接點位置
-        if (startPortIndex >= 0 && startPortIndex < startShape.getPorts().size()) {
-            startPoint = startShape.getPorts().get(startPortIndex);
+        if (startPortIndex >= 0 && startPortIndex < startShape.getPortCount()) {
+            startPoint.setLocation(startShape.getPortX(startPortIndex), startShape.getPortY(startPortIndex));
         } else {
             // 如果找不到索引，則使用偏移
             startPoint.x += dx;
@@ -214,8 +289,8 @@ public abstract class Link extends BaseShape {
         }
 
         // 使用索引獲取更新後的連接點位置
-        if (endPortIndex >= 0 && endPortIndex < endShape.getPorts().size()) {
-            endPoint = endShape.getPorts().get(endPortIndex);
+        if (endPortIndex >= 0 && endPortIndex < endShape.getPortCount()) {
+            endPoint.setLocation(endShape.getPortX(endPortIndex), endShape.getPortY(endPortIndex));
         } else {
             // 如果找不到索引，則使用偏移
             endPoint.x += dx;
@@ -239,6 +314,15 @@ public abstract class Link extends BaseShape {
      */
     protected abstract void drawArrowHead(Graphics2D g2d);
 
+    /**
+     * 箭頭在畫面上是否大到需要繪製
+     * @param g2d 圖形上下文
+     * @return 是否繪製箭頭
+     */
+    protected boolean isArrowHeadVisible(Graphics2D g2d) {
+        return LevelOfDetail.isArrowVisible(g2d, ARROW_SIZE);
+    }
+
     /**
      * 繪製連結線主體
      * @param g2d 圖形上下文
@@ -255,15 +339,14 @@ public abstract class Link extends BaseShape {
      * @param size 箭頭大小
      */
     protected void drawArrow(Graphics2D g2d, Point tip, Point tail, int size) {
-        ArrowRenderer renderer = new StandardArrowRenderer();
-        renderer.renderArrow(g2d, tip, tail, size);
+        STANDARD_ARROW_RENDERER.renderArrow(g2d, tip, tail, size);
     }
     /**
      * 距離計算interface
-     * 處理距離計算
+     * 處理距離計算，回傳距離的平方，比較時不需要開根號
      */
     private interface DistanceCalculator {
-        double calculateDistance(Point p, Point start, Point end);
+        double calculateDistanceSquared(Point p, Point start, Point end);
     }
 
     /**
@@ -272,28 +355,30 @@ public abstract class Link extends BaseShape {
     private static class LineDistanceCalculator implements DistanceCalculator {
         //向量內積計算
         @Override
-        public double calculateDistance(Point p, Point start, Point end) {
-
-            // 單一條線的長度，使用畢氏定理
-            double normalLength = Math.sqrt((end.x - start.x) * (end.x - start.x) +
-                    (end.y - start.y) * (end.y - start.y));
-            if (normalLength == 0) return Double.MAX_VALUE;
+        public double calculateDistanceSquared(Point p, Point start, Point end) {
+            double dx = end.x - start.x;
+            double dy = end.y - start.y;
+            double px = p.x - start.x;
+            double py = p.y - start.y;
 
-            // 點到start end 這條直線的距離
-            double distance = Math.abs((p.x - start.x) * (end.y - start.y) -
-                    (p.y - start.y) * (end.x - start.x)) / normalLength;
+            // 線段長度的平方
+            double lengthSquared = dx * dx + dy * dy;
+            if (lengthSquared == 0) return Double.MAX_VALUE;
 
             // 檢查點是否在線段的投影範圍內
-            double dot = (p.x - start.x) * (end.x - start.x) + (p.y - start.y) * (end.y - start.y);
+            double dot = px * dx + py * dy;
             if (dot < 0) {
-                return Math.sqrt((p.x - start.x) * (p.x - start.x) + (p.y - start.y) * (p.y - start.y));
-            }//在 start 的左邊
-            double lengthSquared = normalLength * normalLength;
+                return px * px + py * py;
+            }// 在 start 的左邊
             if (dot > lengthSquared) {
-                return Math.sqrt((p.x - end.x) * (p.x - end.x) + (p.y - end.y) * (p.y - end.y));
+                double ex = p.x - end.x;
+                double ey = p.y - end.y;
+                return ex * ex + ey * ey;
             }// 在end 的右邊
 
-            return distance;
+            // 點到 start end 這條直線的距離平方：外積平方除以長度平方
+            double cross = px * dy - py * dx;
+            return cross * cross / lengthSquared;
         }
     }
 
@@ -326,8 +411,11 @@ public abstract class Link extends BaseShape {
             int x2 = (int) (tip.x - size * unitDx - size * unitDy / 2);
             int y2 = (int) (tip.y - size * unitDy + size * unitDx / 2);
 
-            int[] xPoints = {tip.x, x1, x2};
-            int[] yPoints = {tip.y, y1, y2};
+            int[][] polygon = RenderResources.polygonBuffer();
+            int[] xPoints = polygon[0];
+            int[] yPoints = polygon[1];
+            xPoints[0] = tip.x; xPoints[1] = x1; xPoints[2] = x2;
+            yPoints[0] = tip.y; yPoints[1] = y1; yPoints[2] = y2;
 
             g2d.fillPolygon(xPoints, yPoints, 3);
         }
@@ -22,16 +22,15 @@ public class OvalShape extends BasicShape {
     }
 
     /**
-     * 繪製橢圓
+     * 繪製橢圓主體
      * @param g2d 圖形
      */
     @Override
-    public void draw(Graphics2D g2d) {
+    protected void drawBody(Graphics2D g2d) {
         // 使用組合模式繪製橢圓的各個部分
         drawBackground(g2d);
         drawBorder(g2d);
         drawLabel(g2d);
-        drawPorts(g2d);
     }
 
     /**
@@ -88,7 +87,7 @@ public class OvalShape extends BasicShape {
      * 更新橢圓幾何形狀
      */
     private void updateEllipseGeometry() {
-        ellipse = new Ellipse2D.Double(bounds.x, bounds.y, bounds.width, bounds.height);
+        ellipse.setFrame(bounds.x, bounds.y, bounds.width, bounds.height);
     }
 
     /**
@@ -97,11 +96,11 @@ public class OvalShape extends BasicShape {
      */
     @Override
     public void updatePorts() {
-        ports.clear();
         // 4個連接埠 - 橢圓的上下左右中點
-        ports.add(new Point(bounds.x + bounds.width / 2, bounds.y)); // 上
-        ports.add(new Point(bounds.x, bounds.y + bounds.height / 2)); // 左
-        ports.add(new Point(bounds.x + bounds.width, bounds.y + bounds.height / 2)); // 右
-        ports.add(new Point(bounds.x + bounds.width / 2, bounds.y + bounds.height)); // 下
+        setPortCount(4);
+        setPort(0, bounds.x + bounds.width / 2, bounds.y); // 上
+        setPort(1, bounds.x, bounds.y + bounds.height / 2); // 左
+        setPort(2, bounds.x + bounds.width, bounds.y + bounds.height / 2); // 右
+        setPort(3, bounds.x + bounds.width / 2, bounds.y + bounds.height); // 下
     }
 }
\ No newline at end of file
@@ -19,16 +19,15 @@ public class RectShape extends BasicShape {
     }
 
     /**
-     * 繪製矩形
+     * 繪製矩形主體
      * @param g2d 圖形上下文
      */
     @Override
-    public void draw(Graphics2D g2d) {
+    protected void drawBody(Graphics2D g2d) {
         // 使用組合模式繪製矩形的各個部分
         drawBackground(g2d);
         drawBorder(g2d);
         drawLabel(g2d);
-        drawPorts(g2d);
     }
 
     /**
@@ -55,15 +54,15 @@ public class RectShape extends BasicShape {
      */
     @Override
     public void updatePorts() {
-        ports.clear();
         // 8個連接埠 - 矩形的四個角落和四條邊的中點
-        ports.add(new Point(bounds.x, bounds.y)); // 左上
-        ports.add(new Point(bounds.x + bounds.width / 2, bounds.y)); // 上中
-        ports.add(new Point(bounds.x + bounds.width, bounds.y)); // 右上
-        ports.add(new Point(bounds.x, bounds.y + bounds.height / 2)); // 左中
-        ports.add(new Point(bounds.x + bounds.width, bounds.y + bounds.height / 2)); // 右中
-        ports.add(new Point(bounds.x, bounds.y + bounds.height)); // 左下
-        ports.add(new Point(bounds.x + bounds.width / 2, bounds.y + bounds.height)); // 下中
-        ports.add(new Point(bounds.x + bounds.width, bounds.y + bounds.height)); // 右下
+        setPortCount(8);
+        setPort(0, bounds.x, bounds.y); // 左上
+        setPort(1, bounds.x + bounds.width / 2, bounds.y); // 上中
+        setPort(2, bounds.x + bounds.width, bounds.y); // 右上
+        setPort(3, bounds.x, bounds.y + bounds.height / 2); // 左中
+        setPort(4, bounds.x + bounds.width, bounds.y + bounds.height / 2); // 右中
+        setPort(5, bounds.x, bounds.y + bounds.height); // 左下
+        setPort(6, bounds.x + bounds.width / 2, bounds.y + bounds.height); // 下中
+        setPort(7, bounds.x + bounds.width, bounds.y + bounds.height); // 右下
     }
 }
\ No newline at end of file
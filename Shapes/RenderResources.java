@@ -0,0 +1,58 @@
+package Shapes;
+
+import java.awt.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 繪製資源登錄表
+ * 以享元模式共用不可變的字型、筆觸與顏色，繪製時不再每次建立新的物件
+ * 所有資源都是不可變的，可以在任何執行緒上共用
+ */
+public final class RenderResources {
+    public static final String LABEL_FONT_NAME = "Arial"; // 標籤字型
+    private static final int MAX_CACHED_FONT_SIZE = 256; // 超過此大小的字型不快取
+
+    // 筆觸
+    public static final Stroke DEFAULT_STROKE = new BasicStroke();
+    public static final Stroke DASHED_STROKE = new BasicStroke(1.0f, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER,
+            10.0f, new float[]{5.0f}, 0.0f);
+
+    // 顏色
+    public static final Color SELECTION_FILL = new Color(0, 0, 255, 30); // 框選的半透明藍色
+
+    private static final AtomicReferenceArray<Font> LABEL_FONTS = new AtomicReferenceArray<>(MAX_CACHED_FONT_SIZE + 1);
+
+    // 繪製箭頭時重複使用的頂點陣列，每個執行緒各一份
+    private static final ThreadLocal<int[][]> POLYGON_BUFFER = ThreadLocal.withInitial(() -> new int[2][4]);
+
+    private RenderResources() {
+    }
+
+    /**
+     * 取得指定大小的標籤字型
+     * @param size 字體大小
+     * @return 共用的字型物件
+     */
+    public static Font labelFont(int size) {
+        if (size < 1 || size > MAX_CACHED_FONT_SIZE) {
+            return new Font(LABEL_FONT_NAME, Font.PLAIN, size);
+        }
+        Font font = LABEL_FONTS.get(size);
+        if (font == null) {
+            font = new Font(LABEL_FONT_NAME, Font.PLAIN, size);
+            if (!LABEL_FONTS.compareAndSet(size, null, font)) {
+                font = LABEL_FONTS.get(size);
+            }
+        }
+        return font;
+    }
+
+    /**
+     * 取得目前執行緒的多邊形頂點暫存陣列，[0] 為 x 座標，[1] 為 y 座標，最多四個頂點
+     * 只能在單次繪製呼叫內使用，不可保留
+     * @return 頂點陣列
+     */
+    static int[][] polygonBuffer() {
+        return POLYGON_BUFFER.get();
+    }
+}
@@ -17,7 +17,7 @@ public class SelectionRectangle extends BaseShape {
      * @param end 結束點
      */
     public SelectionRectangle(Point start, Point end) {
-        this.selectionStyle = new DefaultSelectionStyle();
+        this.selectionStyle = DefaultSelectionStyle.INSTANCE;
         updateRectangle(start, end);
     }
 
@@ -83,6 +83,15 @@ public class SelectionRectangle extends BaseShape {
         return rectangle;
     }
 
+    /**
+     * 取得邊界
+     * @return 選取矩形
+     */
+    @Override
+    public Rectangle getBounds() {
+        return rectangle;
+    }
+
     /**
      * 選取樣式interface
      * 處理不同的選取框繪製方式
@@ -101,18 +110,19 @@ public class SelectionRectangle extends BaseShape {
      * 半透明藍色填充加虛線邊框
      */
     private static class DefaultSelectionStyle implements SelectionStyle {
+        static final DefaultSelectionStyle INSTANCE = new DefaultSelectionStyle();
+
         @Override
         public void drawSelection(Graphics2D g2d, Rectangle rect) {
             // 繪製半透明的藍色填充
-            g2d.setColor(new Color(0, 0, 255, 30));
+            g2d.setColor(RenderResources.SELECTION_FILL);
             g2d.fill(rect);
 
             // 繪製虛線邊框
             g2d.setColor(Color.BLUE);
-            g2d.setStroke(new BasicStroke(1.0f, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER,
-                    10.0f, new float[]{5.0f}, 0.0f));
+            g2d.setStroke(RenderResources.DASHED_STROKE);
             g2d.draw(rect);
-            g2d.setStroke(new BasicStroke());
+            g2d.setStroke(RenderResources.DEFAULT_STROKE);
         }
     }
 
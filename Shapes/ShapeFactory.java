@@ -120,11 +120,11 @@ public class ShapeFactory {
         }
 
         /**
-         * 繪製自定義矩形
+         * 繪製自定義矩形主體
          * @param g2d 圖形上下文
          */
         @Override
-        public void draw(Graphics2D g2d) {
+        protected void drawBody(Graphics2D g2d) {
             drawingStrategy.draw(g2d, bounds, this);
         }
 
@@ -141,6 +141,7 @@ public class ShapeFactory {
             bounds.width = RECT_WIDTH;
             bounds.height = RECT_HEIGHT;
             updatePorts();
+            appearanceChanged();
         }
 
         /**
@@ -148,10 +149,8 @@ public class ShapeFactory {
          */
         @Override
         public void updatePorts() {
-            ports.clear();
             // 8個連接埠
-            PortGenerator generator = new RectanglePortGenerator();
-            ports.addAll(generator.generatePorts(bounds));
+            RectanglePortGenerator.INSTANCE.generatePorts(bounds, this);
         }
 
         /**
@@ -177,9 +176,8 @@ public class ShapeFactory {
                 // 繪製兩條橫線（UML類別圖的分隔線）
                 drawSeparatorLines(g2d, bounds);
 
-                // 繪製標籤和連接埠
+                // 繪製標籤
                 shape.drawLabel(g2d);
-                shape.drawPorts(g2d);
             }
 
             private void drawSeparatorLines(Graphics2D g2d, Rectangle bounds) {
@@ -221,8 +219,9 @@ public class ShapeFactory {
             bounds.y = start.y;
             bounds.width = OVAL_WIDTH;
             bounds.height = OVAL_HEIGHT;
-            ellipse = new java.awt.geom.Ellipse2D.Double(bounds.x, bounds.y, bounds.width, bounds.height);
+            ellipse.setFrame(bounds.x, bounds.y, bounds.width, bounds.height);
             updatePorts();
+            appearanceChanged();
         }
 
         /**
@@ -230,36 +229,35 @@ public class ShapeFactory {
          */
         @Override
         public void updatePorts() {
-            ports.clear();
-            PortGenerator generator = new OvalPortGenerator();
-            ports.addAll(generator.generatePorts(bounds));
+            OvalPortGenerator.INSTANCE.generatePorts(bounds, this);
         }
     }
 
     /**
      * 連接埠生成 interface
-     * 處理不同形狀的連接埠生成
+     * 處理不同形狀的連接埠生成，直接寫入形狀的連接埠陣列，不建立新的物件
      */
     private interface PortGenerator {
-        java.util.List<Point> generatePorts(Rectangle bounds);
+        void generatePorts(Rectangle bounds, BasicShape shape);
     }
 
     /**
      * 實際矩形連接埠生成器
      */
     private static class RectanglePortGenerator implements PortGenerator {
+        static final RectanglePortGenerator INSTANCE = new RectanglePortGenerator();
+
         @Override
-        public java.util.List<Point> generatePorts(Rectangle bounds) {
-            java.util.List<Point> ports = new java.util.ArrayList<>();
-            ports.add(new Point(bounds.x, bounds.y)); // 左上
-            ports.add(new Point(bounds.x + bounds.width / 2, bounds.y)); // 上中
-            ports.add(new Point(bounds.x + bounds.width, bounds.y)); // 右上
-            ports.add(new Point(bounds.x, bounds.y + bounds.height / 2)); // 左中
-            ports.add(new Point(bounds.x + bounds.width, bounds.y + bounds.height / 2)); // 右中
-            ports.add(new Point(bounds.x, bounds.y + bounds.height)); // 左下
-            ports.add(new Point(bounds.x + bounds.width / 2, bounds.y + bounds.height)); // 下中
-            ports.add(new Point(bounds.x + bounds.width, bounds.y + bounds.height)); // 右下
-            return ports;
+        public void generatePorts(Rectangle bounds, BasicShape shape) {
+            shape.setPortCount(8);
+            shape.setPort(0, bounds.x, bounds.y); // 左上
+            shape.setPort(1, bounds.x + bounds.width / 2, bounds.y); // 上中
+            shape.setPort(2, bounds.x + bounds.width, bounds.y); // 右上
+            shape.setPort(3, bounds.x, bounds.y + bounds.height / 2); // 左中
+            shape.setPort(4, bounds.x + bounds.width, bounds.y + bounds.height / 2); // 右中
+            shape.setPort(5, bounds.x, bounds.y + bounds.height); // 左下
+            shape.setPort(6, bounds.x + bounds.width / 2, bounds.y + bounds.height); // 下中
+            shape.setPort(7, bounds.x + bounds.width, bounds.y + bounds.height); // 右下
         }
     }
 
@@ -267,14 +265,15 @@ public class ShapeFactory {
      * 橢圓連接埠生成器
      */
     private static class OvalPortGenerator implements PortGenerator {
+        static final OvalPortGenerator INSTANCE = new OvalPortGenerator();
+
         @Override
-        public java.util.List<Point> generatePorts(Rectangle bounds) {
-            java.util.List<Point> ports = new java.util.ArrayList<>();
-            ports.add(new Point(bounds.x + bounds.width / 2, bounds.y)); // 上
-            ports.add(new Point(bounds.x, bounds.y + bounds.height / 2)); // 左
-            ports.add(new Point(bounds.x + bounds.width, bounds.y + bounds.height / 2)); // 右
-            ports.add(new Point(bounds.x + bounds.width / 2, bounds.y + bounds.height)); // 下
-            return ports;
+        public void generatePorts(Rectangle bounds, BasicShape shape) {
+            shape.setPortCount(4);
+            shape.setPort(0, bounds.x + bounds.width / 2, bounds.y); // 上
+            shape.setPort(1, bounds.x, bounds.y + bounds.height / 2); // 左
+            shape.setPort(2, bounds.x + bounds.width, bounds.y + bounds.height / 2); // 右
+            shape.setPort(3, bounds.x + bounds.width / 2, bounds.y + bounds.height); // 下
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,491 @@
+package Shapes;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import Canvas.CanvasPanel.Mode;
+
+/**
+ * 欄式形狀表
+ * 以平行的基本型別陣列保存圖表模型，每個元素（形狀、連結、群組）佔一列，不需要為每個元素建立一組物件
+ * 名稱放在字串表中，相同的名稱只保存一次，列中只記錄字串編號
+ * 需要繪製或編輯時再以 materialize 建立對應的 BaseShape
+ *
+ * 各欄位的意義：
+ * 形狀的 x、y、width、height 為邊界；連結的 x、y 為起點，width、height 為終點相對於起點的位移；
+ * 群組的 x、y、width、height 為擷取當下的邊界，建立群組物件時不使用
+ * parent、source、target 記錄其他列的列號，沒有時為 -1
+ */
+public final class ShapeTable {
+    // 元素種類
+    public static final byte RECT = 0;
+    public static final byte OVAL = 1;
+    public static final byte ASSOCIATION = 2;
+    public static final byte GENERALIZATION = 3;
+    public static final byte COMPOSITION = 4;
+    public static final byte GROUP = 5;
+
+    // 旗標
+    public static final byte FLAG_SELECTED = 1; // 被選取
+    public static final byte FLAG_OVAL_LABEL = 2; // 使用橢圓標籤
+
+    public static final int NONE = -1; // 沒有關聯的列
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final int DEFAULT_LABEL_COLOR = Color.LIGHT_GRAY.getRGB();
+    private static final short DEFAULT_FONT_SIZE = 12;
+
+    private int size = 0;
+    private byte[] kind;
+    private byte[] flags;
+    private int[] x;
+    private int[] y;
+    private int[] width;
+    private int[] height;
+    private int[] depth;
+    private int[] parent;
+    private int[] nameId;
+    private int[] labelColor; // ARGB
+    private short[] fontSize;
+    private int[] source; // 連結起點形狀的列號
+    private int[] target; // 連結終點形狀的列號
+
+    private final List<String> names; // 字串表，編號 0 固定為空字串
+    private final Map<String, Integer> nameIds;
+
+    public ShapeTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 建構函數
+     * @param capacity 預先配置的列數
+     */
+    public ShapeTable(int capacity) {
+        this(capacity, new ArrayList<>(), new HashMap<>());
+        internName("");
+    }
+
+    private ShapeTable(int capacity, List<String> names, Map<String, Integer> nameIds) {
+        allocate(Math.max(capacity, 1));
+        this.names = names;
+        this.nameIds = nameIds;
+    }
+
+    /**
+     * 建立沒有任何列、與此表共用字串表的形狀表
+     * 兩個表的字串編號互通，任一個表加入的字串另一個表也看得到
+     * @param capacity 預先配置的列數
+     * @return 新的形狀表
+     */
+    public ShapeTable withSharedNames(int capacity) {
+        return new ShapeTable(capacity, names, nameIds);
+    }
+
+    private void allocate(int capacity) {
+        kind = new byte[capacity];
+        flags = new byte[capacity];
+        x = new int[capacity];
+        y = new int[capacity];
+        width = new int[capacity];
+        height = new int[capacity];
+        depth = new int[capacity];
+        parent = new int[capacity];
+        nameId = new int[capacity];
+        labelColor = new int[capacity];
+        fontSize = new short[capacity];
+        source = new int[capacity];
+        target = new int[capacity];
+    }
+
+    /**
+     * 容量不足時將所有欄位擴充為兩倍
+     */
+    private void ensureCapacity(int required) {
+        if (required <= kind.length) {
+            return;
+        }
+        int capacity = Math.max(required, kind.length * 2);
+        kind = Arrays.copyOf(kind, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        width = Arrays.copyOf(width, capacity);
+        height = Arrays.copyOf(height, capacity);
+        depth = Arrays.copyOf(depth, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        nameId = Arrays.copyOf(nameId, capacity);
+        labelColor = Arrays.copyOf(labelColor, capacity);
+        fontSize = Arrays.copyOf(fontSize, capacity);
+        source = Arrays.copyOf(source, capacity);
+        target = Arrays.copyOf(target, capacity);
+    }
+
+    /**
+     * 新增一列，其餘欄位為預設值
+     * @param elementKind 元素種類
+     * @param x 形狀左上角或連結起點 x 座標
+     * @param y 形狀左上角或連結起點 y 座標
+     * @param width 形狀寬度或連結終點的 x 位移
+     * @param height 形狀高度或連結終點的 y 位移
+     * @return 新列的列號
+     */
+    public int add(byte elementKind, int x, int y, int width, int height) {
+        ensureCapacity(size + 1);
+        int row = size++;
+        this.kind[row] = elementKind;
+        this.flags[row] = 0;
+        this.x[row] = x;
+        this.y[row] = y;
+        this.width[row] = width;
+        this.height[row] = height;
+        this.depth[row] = row;
+        this.parent[row] = NONE;
+        this.nameId[row] = 0;
+        this.labelColor[row] = DEFAULT_LABEL_COLOR;
+        this.fontSize[row] = DEFAULT_FONT_SIZE;
+        this.source[row] = NONE;
+        this.target[row] = NONE;
+        return row;
+    }
+
+    /**
+     * 取得字串的編號，字串表中沒有時加入
+     * @param name 字串
+     * @return 字串編號
+     */
+    public int internName(String name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    public String nameOf(int id) {
+        return names.get(id);
+    }
+
+    public int nameCount() {
+        return names.size();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public static boolean isLink(byte elementKind) {
+        return elementKind == ASSOCIATION || elementKind == GENERALIZATION || elementKind == COMPOSITION;
+    }
+
+    // 欄位存取
+    public byte getKind(int row) {
+        return kind[checkRow(row)];
+    }
+
+    public void setKind(int row, byte value) {
+        kind[checkRow(row)] = value;
+    }
+
+    public byte getFlags(int row) {
+        return flags[checkRow(row)];
+    }
+
+    public void setFlags(int row, byte value) {
+        flags[checkRow(row)] = value;
+    }
+
+    public int getX(int row) {
+        return x[checkRow(row)];
+    }
+
+    public int getY(int row) {
+        return y[checkRow(row)];
+    }
+
+    public int getWidth(int row) {
+        return width[checkRow(row)];
+    }
+
+    public int getHeight(int row) {
+        return height[checkRow(row)];
+    }
+
+    public void setBounds(int row, int x, int y, int width, int height) {
+        checkRow(row);
+        this.x[row] = x;
+        this.y[row] = y;
+        this.width[row] = width;
+        this.height[row] = height;
+    }
+
+    public int getDepth(int row) {
+        return depth[checkRow(row)];
+    }
+
+    public void setDepth(int row, int value) {
+        depth[checkRow(row)] = value;
+    }
+
+    public int getParent(int row) {
+        return parent[checkRow(row)];
+    }
+
+    public void setParent(int row, int parentRow) {
+        parent[checkRow(row)] = parentRow;
+    }
+
+    public int getNameId(int row) {
+        return nameId[checkRow(row)];
+    }
+
+    public void setNameId(int row, int id) {
+        Objects.checkIndex(id, names.size());
+        nameId[checkRow(row)] = id;
+    }
+
+    public String getName(int row) {
+        return names.get(getNameId(row));
+    }
+
+    public void setName(int row, String name) {
+        nameId[checkRow(row)] = internName(name);
+    }
+
+    public int getLabelColor(int row) {
+        return labelColor[checkRow(row)];
+    }
+
+    public int getFontSize(int row) {
+        return fontSize[checkRow(row)];
+    }
+
+    public void setLabelStyle(int row, int argb, int size) {
+        checkRow(row);
+        labelColor[row] = argb;
+        fontSize[row] = (short) size;
+    }
+
+    public int getSource(int row) {
+        return source[checkRow(row)];
+    }
+
+    public int getTarget(int row) {
+        return target[checkRow(row)];
+    }
+
+    public void setEndpoints(int row, int sourceRow, int targetRow) {
+        checkRow(row);
+        source[row] = sourceRow;
+        target[row] = targetRow;
+    }
+
+    private int checkRow(int row) {
+        return Objects.checkIndex(row, size);
+    }
+
+    /**
+     * 複製形狀表，複本與原本的表互不影響
+     * @return 複本
+     */
+    public ShapeTable copy() {
+        ShapeTable copy = new ShapeTable(size);
+        copy.size = size;
+        System.arraycopy(kind, 0, copy.kind, 0, size);
+        System.arraycopy(flags, 0, copy.flags, 0, size);
+        System.arraycopy(x, 0, copy.x, 0, size);
+        System.arraycopy(y, 0, copy.y, 0, size);
+        System.arraycopy(width, 0, copy.width, 0, size);
+        System.arraycopy(height, 0, copy.height, 0, size);
+        System.arraycopy(depth, 0, copy.depth, 0, size);
+        System.arraycopy(parent, 0, copy.parent, 0, size);
+        System.arraycopy(nameId, 0, copy.nameId, 0, size);
+        System.arraycopy(labelColor, 0, copy.labelColor, 0, size);
+        System.arraycopy(fontSize, 0, copy.fontSize, 0, size);
+        System.arraycopy(source, 0, copy.source, 0, size);
+        System.arraycopy(target, 0, copy.target, 0, size);
+        for (int i = 1; i < names.size(); i++) {
+            copy.internName(names.get(i));
+        }
+        return copy;
+    }
+
+    /**
+     * 從物件模型擷取形狀表
+     * 群組的子元素緊接在群組之後（深度優先），同一個群組的子元素依原本的順序排列
+     * @param shapes 頂層形狀，依繪製順序排列
+     * @return 形狀表
+     */
+    public static ShapeTable capture(Collection<? extends BaseShape> shapes) {
+        return capture(shapes, new IdentityHashMap<>());
+    }
+
+    /**
+     * 從物件模型擷取形狀表，並記錄每個元素所在的列
+     * @param shapes 頂層形狀，依繪製順序排列
+     * @param rows 擷取時寫入元素 -> 列號，必須以物件識別比較
+     * @return 形狀表
+     */
+    public static ShapeTable capture(Collection<? extends BaseShape> shapes, Map<BaseShape, Integer> rows) {
+        ShapeTable table = new ShapeTable(shapes.size());
+        List<Link> links = new ArrayList<>();
+        for (BaseShape shape : shapes) {
+            table.captureShape(shape, NONE, rows, links);
+        }
+
+        // 所有形狀都有列號之後才能填入連結的端點
+        for (Link link : links) {
+            table.setEndpoints(rows.get(link), rowOf(link.getStartShape(), rows), rowOf(link.getEndShape(), rows));
+        }
+        return table;
+    }
+
+    private static int rowOf(BaseShape shape, Map<BaseShape, Integer> rows) {
+        Integer row = shape == null ? null : rows.get(shape);
+        return row == null ? NONE : row;
+    }
+
+    private void captureShape(BaseShape shape, int parentRow, Map<BaseShape, Integer> rows, List<Link> links) {
+        int row = addShape(shape);
+        if (row == NONE) {
+            return;
+        }
+        if (shape instanceof Link link) {
+            links.add(link);
+        }
+        depth[row] = shape.getDepth();
+        parent[row] = parentRow;
+        rows.put(shape, row);
+
+        if (shape instanceof CompositeShape group) {
+            for (BaseShape child : group.getShapes()) {
+                captureShape(child, row, rows, links);
+            }
+        }
+    }
+
+    /**
+     * 新增一列記錄單一元素的種類、範圍、旗標與標籤，不包含子元素
+     * 所屬群組與連結端點需要其他元素的列號，由呼叫者設定
+     * @param shape 元素
+     * @return 新列的列號，選取框等不屬於模型的形狀回傳 NONE
+     */
+    public int addShape(BaseShape shape) {
+        int row;
+        if (shape instanceof BasicShape basicShape) {
+            Rectangle bounds = basicShape.getBounds();
+            row = add(shape instanceof OvalShape ? OVAL : RECT, bounds.x, bounds.y, bounds.width, bounds.height);
+            setName(row, basicShape.getName());
+            setLabelStyle(row, basicShape.getLabelColor().getRGB(), basicShape.getFontSize());
+            if ("oval".equals(basicShape.getLabelShape())) {
+                flags[row] |= FLAG_OVAL_LABEL;
+            }
+        } else if (shape instanceof Link link) {
+            Point start = link.getStartPoint();
+            Point end = link.getEndPoint();
+            row = add(kindOf(link), start.x, start.y, end.x - start.x, end.y - start.y);
+        } else if (shape instanceof CompositeShape group) {
+            Rectangle bounds = group.getBounds();
+            row = add(GROUP, bounds.x, bounds.y, bounds.width, bounds.height);
+        } else {
+            return NONE; // 選取框等暫時性的形狀不屬於模型
+        }
+
+        if (shape.isSelected()) {
+            flags[row] |= FLAG_SELECTED;
+        }
+        depth[row] = shape.getDepth();
+        return row;
+    }
+
+    private static byte kindOf(Link link) {
+        if (link instanceof GeneralizationLink) {
+            return GENERALIZATION;
+        } else if (link instanceof CompositionLink) {
+            return COMPOSITION;
+        }
+        return ASSOCIATION;
+    }
+
+    /**
+     * 依形狀表建立物件模型
+     * 先建立基本形狀，再建立連結並連到端點形狀，最後把子元素依列的順序加入群組
+     * @return 頂層形狀，依深度由下而上排列
+     */
+    public List<BaseShape> materialize() {
+        return materialize(new BaseShape[size]);
+    }
+
+    /**
+     * 依形狀表建立物件模型，並將每一列建立的物件寫入陣列
+     * @param objects 長度至少為列數的陣列，第 row 個元素會是第 row 列的物件
+     * @return 頂層形狀，依深度由下而上排列
+     */
+    public List<BaseShape> materialize(BaseShape[] objects) {
+        ShapeFactory factory = new ShapeFactory();
+        Point point = new Point();
+
+        for (int row = 0; row < size; row++) {
+            byte elementKind = kind[row];
+            if (elementKind == RECT || elementKind == OVAL) {
+                point.setLocation(x[row], y[row]);
+                BasicShape shape = (BasicShape) factory.createShape(elementKind == OVAL ? Mode.OVAL : Mode.RECT, point);
+                shape.resize(point, new Point(x[row] + width[row], y[row] + height[row]));
+                shape.setName(names.get(nameId[row]));
+                shape.setLabelShape((flags[row] & FLAG_OVAL_LABEL) != 0 ? "oval" : "rect");
+                shape.setLabelColor(new Color(labelColor[row], true));
+                shape.setFontSize(fontSize[row]);
+                objects[row] = shape;
+            } else if (elementKind == GROUP) {
+                objects[row] = new CompositeShape();
+            }
+        }
+
+        for (int row = 0; row < size; row++) {
+            if (isLink(kind[row])) {
+                objects[row] = materializeLink(row, factory, objects);
+            }
+        }
+
+        List<BaseShape> topLevel = new ArrayList<>();
+        for (int row = 0; row < size; row++) {
+            BaseShape shape = objects[row];
+            if (shape == null) {
+                continue;
+            }
+            shape.setDepth(depth[row]);
+            if ((flags[row] & FLAG_SELECTED) != 0) {
+                shape.setSelected(true);
+            }
+            if (parent[row] == NONE) {
+                topLevel.add(shape);
+            } else {
+                ((CompositeShape) objects[parent[row]]).addShape(shape);
+            }
+        }
+        topLevel.sort(Comparator.comparingInt(BaseShape::getDepth));
+        return topLevel;
+    }
+
+    private BaseShape materializeLink(int row, ShapeFactory factory, BaseShape[] objects) {
+        Mode mode = kind[row] == GENERALIZATION ? Mode.GENERALIZATION
+                : kind[row] == COMPOSITION ? Mode.COMPOSITION : Mode.ASSOCIATION;
+        Link link = (Link) factory.createLink(mode, new Point(x[row], y[row]));
+        link.setEndPoint(new Point(x[row] + width[row], y[row] + height[row]));
+        if (source[row] != NONE && objects[source[row]] instanceof BasicShape startShape) {
+            link.setStartShape(startShape);
+        }
+        if (target[row] != NONE && objects[target[row]] instanceof BasicShape endShape) {
+            link.setEndShape(endShape);
+        }
+        return link;
+    }
+}
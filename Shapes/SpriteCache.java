@@ -0,0 +1,185 @@
+package Shapes;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 形狀點陣圖快取
+ * 將基本形狀不會隨選取狀態改變的部分（背景、邊框、分隔線、標籤）繪製成點陣圖，之後的繪製只需要貼圖
+ * 形狀的名稱、標籤樣式或大小改變時，形狀的版本號會改變，快取的點陣圖隨之失效
+ * 使用 LRU 淘汰並限制總記憶體用量，避免大型圖表耗盡記憶體
+ * 只在 EDT 上使用，其他執行緒繪製時直接畫出形狀
+ */
+public final class SpriteCache {
+    private static final SpriteCache INSTANCE = new SpriteCache();
+
+    private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024; // 預設記憶體上限 64MB
+    private static final int MAX_SPRITE_PIXELS = 512 * 512; // 單一點陣圖的像素上限，過大的形狀直接繪製
+
+    private final LinkedHashMap<BasicShape, Sprite> sprites = new LinkedHashMap<>(16, 0.75f, true); // 依存取順序排列
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long usedBytes = 0;
+    private boolean enabled = true;
+    private final AffineTransform blitTransform = new AffineTransform(); // 貼圖時重複使用的轉換矩陣
+
+    private SpriteCache() {
+    }
+
+    /**
+     * 取得快取實例
+     * @return 快取實例
+     */
+    public static SpriteCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 以快取的點陣圖繪製形狀主體
+     * @param g2d 圖形
+     * @param shape 形狀
+     * @return 是否已由快取繪製，回傳 false 時呼叫端需要自行繪製
+     */
+    public boolean draw(Graphics2D g2d, BasicShape shape) {
+        if (!enabled || !SwingUtilities.isEventDispatchThread()) {
+            return false;
+        }
+
+        double scale = LevelOfDetail.scaleOf(g2d);
+        Sprite sprite = sprites.get(shape);
+        if (sprite == null || sprite.version != shape.getRenderVersion() || sprite.scale != scale) {
+            if (sprite != null) {
+                discard(shape, sprite);
+            }
+            sprite = render(g2d, shape, scale);
+            if (sprite == null) {
+                return false;
+            }
+            sprites.put(shape, sprite);
+            usedBytes += sprite.bytes();
+            evict();
+        }
+
+        // 點陣圖每個像素對應 1/scale 個世界座標單位，貼到畫面上時剛好是 1:1
+        Rectangle bounds = shape.getBounds();
+        blitTransform.setTransform(1 / scale, 0, 0, 1 / scale, bounds.x + sprite.offsetX, bounds.y + sprite.offsetY);
+        g2d.drawImage(sprite.image, blitTransform, null);
+        return true;
+    }
+
+    /**
+     * 將形狀主體繪製成點陣圖
+     */
+    private Sprite render(Graphics2D g2d, BasicShape shape, double scale) {
+        Rectangle bounds = shape.getBounds();
+        Rectangle area = shape.getPaintBounds();
+        int width = (int) Math.ceil(area.width * scale);
+        int height = (int) Math.ceil(area.height * scale);
+        if (width <= 0 || height <= 0 || (long) width * height > MAX_SPRITE_PIXELS) {
+            return null;
+        }
+
+        BufferedImage image = g2d.getDeviceConfiguration().createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+        Graphics2D imageGraphics = image.createGraphics();
+        imageGraphics.setRenderingHints(g2d.getRenderingHints());
+        imageGraphics.scale(scale, scale);
+        imageGraphics.translate(-area.x, -area.y);
+        LevelOfDetail.setScaleHint(imageGraphics);
+        shape.drawBody(imageGraphics);
+        imageGraphics.dispose();
+
+        return new Sprite(image, scale, shape.getRenderVersion(), area.x - bounds.x, area.y - bounds.y);
+    }
+
+    /**
+     * 超過記憶體上限時，淘汰最久未使用的點陣圖
+     */
+    private void evict() {
+        Iterator<Map.Entry<BasicShape, Sprite>> iterator = sprites.entrySet().iterator();
+        while (usedBytes > maxBytes && iterator.hasNext()) {
+            Sprite sprite = iterator.next().getValue();
+            usedBytes -= sprite.bytes();
+            sprite.image.flush();
+            iterator.remove();
+        }
+    }
+
+    private void discard(BasicShape shape, Sprite sprite) {
+        sprites.remove(shape);
+        usedBytes -= sprite.bytes();
+        sprite.image.flush();
+    }
+
+    /**
+     * 移除形狀的快取，形狀被刪除時呼叫
+     * @param shape 形狀
+     */
+    public void invalidate(BasicShape shape) {
+        Sprite sprite = sprites.get(shape);
+        if (sprite != null) {
+            discard(shape, sprite);
+        }
+    }
+
+    /**
+     * 清除所有快取
+     */
+    public void clear() {
+        for (Sprite sprite : sprites.values()) {
+            sprite.image.flush();
+        }
+        sprites.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * 設定快取的記憶體上限
+     * @param maxBytes 上限（位元組）
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * 設定是否啟用快取
+     * @param enabled 是否啟用
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 快取的點陣圖以及產生它時的條件
+     */
+    private static final class Sprite {
+        final BufferedImage image;
+        final double scale; // 產生時的縮放比例
+        final int version; // 產生時形狀的版本號
+        final int offsetX; // 點陣圖左上角相對於形狀邊界的位移（世界座標）
+        final int offsetY;
+
+        Sprite(BufferedImage image, double scale, int version, int offsetX, int offsetY) {
+            this.image = image;
+            this.scale = scale;
+            this.version = version;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+        }
+
+        long bytes() {
+            return (long) image.getWidth() * image.getHeight() * 4;
+        }
+    }
+}
@@ -3,6 +3,8 @@ import java.awt.*;
 import MenuBar.MenuBar;
 import ToolBar.ToolBar;
 import Canvas.CanvasPanel;
+import Persistence.AutoSave;
+import Persistence.DiagramJournal;
 
 /**
  * UML編輯器
@@ -16,6 +18,7 @@ public class UMLEditor {
     private CanvasPanel canvasPanel; // 畫布面板
     private ToolBar toolbar; // 工具欄
     private MenuBar menuBar; // 選單欄
+    private AutoSave autoSave; // 定期在背景自動儲存畫布上的圖表
     private UIThemeManager uiThemeManager; // UI主題管理器（重新命名避免衝突）
 
     /**
@@ -53,6 +56,22 @@ public class UMLEditor {
         canvasPanel = new CanvasPanel();
         toolbar = new ToolBar();
         toolbar.setCanvasPanel(canvasPanel);
+        autoSave = new AutoSave(canvasPanel, AutoSave.defaultPath(), AutoSave.DEFAULT_INTERVAL);
+        autoSave.start();
+        // 關閉視窗與 Exit 都經由 System.exit 結束程式
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "autosave-shutdown"));
+    }
+
+    /**
+     * 程式正常結束前等待寫入中的自動儲存完成，並關閉編輯日誌
+     * 關閉日誌會捨棄沒有儲存的編輯，只有沒有正常結束時才會在下次開啟時詢問是否還原
+     */
+    private void shutdown() {
+        autoSave.stop();
+        DiagramJournal journal = DiagramJournal.of(canvasPanel);
+        if (journal != null) {
+            journal.close();
+        }
     }
 
     /**
@@ -60,7 +79,7 @@ public class UMLEditor {
      */
     private void layoutComponents() {
         mainPanel.add(toolbar, BorderLayout.WEST);
-        mainPanel.add(canvasPanel, BorderLayout.CENTER);
+        mainPanel.add(new JScrollPane(canvasPanel), BorderLayout.CENTER); // 畫布放在捲動面板中以支援縮放與平移
     }
 
     /**
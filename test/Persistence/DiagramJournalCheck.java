@@ -0,0 +1,334 @@
+package Persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.SwingUtilities;
+import Canvas.CanvasPanel;
+import Canvas.EditListener;
+import Shapes.BaseShape;
+import Shapes.BasicShape;
+import Shapes.Link;
+import Shapes.ShapeTable;
+
+/**
+ * 編輯日誌復原檢查
+ * 在暫存目錄建立圖表與日誌，模擬程式在各個時間點中斷後以 recover 開啟，確認讀到的圖表與中斷前一致
+ * 以 java Persistence.DiagramJournalCheck 執行，有檢查失敗時以非零狀態結束
+ */
+public class DiagramJournalCheck {
+    private static final int SHAPE_COUNT = 2000;
+
+    private final Path dir;
+    private int failures = 0;
+
+    private DiagramJournalCheck(Path dir) {
+        this.dir = dir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        DiagramJournalCheck check = new DiagramJournalCheck(Files.createTempDirectory("journal-check"));
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                check.cleanCloseWithoutSave();
+                check.crashAfterSave();
+                check.cleanCloseAfterSave();
+                check.crashDuringCompaction();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        System.out.println(check.failures == 0 ? "all checks passed" : check.failures + " check(s) failed");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * 沒有儲存就正常關閉：日誌被刪除，圖表檔維持儲存時的內容
+     */
+    private void cleanCloseWithoutSave() throws IOException {
+        Path path = dir.resolve("unsaved.umld");
+        CanvasPanel canvas = newCanvas();
+        DiagramJournal journal = DiagramJournal.create(path, canvas);
+        ShapeTable saved = canvas.captureTable();
+        moveAll(canvas, journal, 3);
+        journal.close();
+
+        check(!Files.exists(journalOf(path)), "clean close without save deletes the journal");
+        check(DiagramJournal.recover(path) == null, "clean close without save leaves nothing to recover");
+        check(same(saved, load(new DiagramReader().read(path))), "clean close without save keeps the saved diagram");
+    }
+
+    /**
+     * 儲存後又編輯，接著程式中斷：預設只讀到儲存時的內容，選擇還原時讀到中斷前的內容；
+     * 最後一筆紀錄寫到一半時忽略那一筆
+     */
+    private void crashAfterSave() throws IOException {
+        Path path = dir.resolve("crash.umld");
+        CanvasPanel canvas = newCanvas();
+        DiagramJournal journal = DiagramJournal.create(path, canvas);
+        moveAll(canvas, journal, 5);
+        journal.commit();
+        ShapeTable saved = canvas.captureTable();
+        moveOne(canvas, journal, 0, 7);
+        ShapeTable beforeLast = canvas.captureTable();
+        moveOne(canvas, journal, 1, 9);
+        ShapeTable live = canvas.captureTable();
+        journal.sync();
+
+        // 日誌沒有關閉，相當於程式在這裡中斷
+        DiagramJournal.Recovery recovery = DiagramJournal.recover(path);
+        check(recovery != null && recovery.hasUnsavedEdits(), "crash after save reports unsaved edits");
+        check(same(saved, load(recovery.getTable())), "crash after save recovers the saved diagram");
+        recovery = DiagramJournal.recover(path);
+        recovery.restoreUnsavedEdits();
+        check(same(live, load(recovery.getTable())), "crash after save restores the unsaved edits");
+
+        Path torn = dir.resolve("torn.umld");
+        Files.copy(path, torn);
+        byte[] bytes = Files.readAllBytes(journalOf(path));
+        Files.write(journalOf(torn), Arrays.copyOf(bytes, bytes.length - 3));
+        recovery = DiagramJournal.recover(torn);
+        recovery.restoreUnsavedEdits();
+        check(same(beforeLast, load(recovery.getTable())), "torn tail drops only the last record");
+
+        // 捨棄沒有儲存的編輯後繼續編輯，再次開啟時讀到之後儲存的內容
+        recovery = DiagramJournal.recover(torn);
+        CanvasPanel reopened = new CanvasPanel();
+        ShapeTable table = recovery.getTable();
+        BaseShape[] objects = new BaseShape[table.size()];
+        reopened.loadTable(table, objects);
+        DiagramJournal resumed = recovery.resume(objects, reopened);
+        moveAll(reopened, resumed, 2);
+        resumed.commit();
+        ShapeTable resaved = reopened.captureTable();
+        moveAll(reopened, resumed, 4);
+        resumed.close();
+        recovery = DiagramJournal.recover(torn);
+        check(recovery != null && !recovery.hasUnsavedEdits(), "resumed journal keeps only saved edits after close");
+        check(same(resaved, load(recovery.getTable())), "resumed journal recovers the edits saved after reopening");
+        journal.close();
+    }
+
+    /**
+     * 儲存後又編輯，接著正常關閉：日誌保留到最後一次儲存，沒有儲存的編輯被截掉
+     */
+    private void cleanCloseAfterSave() throws IOException {
+        Path path = dir.resolve("saved.umld");
+        CanvasPanel canvas = newCanvas();
+        DiagramJournal journal = DiagramJournal.create(path, canvas);
+        moveAll(canvas, journal, 5);
+        journal.commit();
+        ShapeTable saved = canvas.captureTable();
+        moveAll(canvas, journal, 6);
+        journal.close();
+
+        DiagramJournal.Recovery recovery = DiagramJournal.recover(path);
+        check(recovery != null && !recovery.hasUnsavedEdits(), "clean close after save leaves no unsaved edits");
+        check(same(saved, load(recovery.getTable())), "clean close after save recovers the saved diagram");
+    }
+
+    /**
+     * 背景壓縮中斷：分別模擬快照取代前與快照取代後、日誌取代前中斷，兩者都讀到最後一次儲存的內容
+     */
+    private void crashDuringCompaction() throws IOException {
+        Path path = dir.resolve("compact.umld");
+        Path chain = dir.resolve("chain.umld");
+        Path swap = dir.resolve("swap.umld");
+        CanvasPanel canvas = newCanvas();
+        DiagramJournal journal = DiagramJournal.create(path, canvas);
+        boolean compacted = false;
+        for (int round = 0; round < 200 && !compacted; round++) {
+            // 以硬連結保留壓縮前的日誌，壓縮以新日誌取代舊日誌後連結仍指向舊日誌
+            Files.deleteIfExists(journalOf(chain));
+            Files.copy(path, chain, StandardCopyOption.REPLACE_EXISTING);
+            Files.createLink(journalOf(chain), journalOf(path));
+            moveAll(canvas, journal, 1);
+            journal.commit();
+            journal.awaitCompaction();
+            compacted = !Files.isSameFile(journalOf(chain), journalOf(path));
+        }
+        check(compacted, "saving a long journal compacts it");
+        moveOne(canvas, journal, 2, 5);
+        journal.commit();
+        ShapeTable saved = canvas.captureTable();
+        moveOne(canvas, journal, 3, 5);
+        ShapeTable live = canvas.captureTable();
+        journal.sync();
+
+        // 快照取代前中斷：舊快照、舊日誌與檔頭還沒填入基準的新日誌
+        Files.copy(journalOf(path), nextOf(chain));
+        try (FileChannel next = FileChannel.open(nextOf(chain), StandardOpenOption.WRITE)) {
+            ByteBuffer base = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            base.putLong(JournalFormat.UNKNOWN_BASE).putInt(0).flip();
+            next.write(base, JournalFormat.BASE_OFFSET);
+        }
+        // 快照取代後、日誌取代前中斷：新快照、舊日誌與新日誌
+        Files.copy(path, swap);
+        Files.copy(journalOf(chain), journalOf(swap));
+        Files.copy(journalOf(path), nextOf(swap));
+
+        for (Path crashed : List.of(chain, swap)) {
+            String name = crashed.getFileName().toString();
+            DiagramJournal.Recovery recovery = DiagramJournal.recover(crashed);
+            check(recovery != null && recovery.hasUnsavedEdits(), name + ": interrupted compaction reports unsaved edits");
+            check(same(saved, load(recovery.getTable())), name + ": interrupted compaction recovers the saved diagram");
+            recovery = DiagramJournal.recover(crashed);
+            recovery.restoreUnsavedEdits();
+            ShapeTable table = recovery.getTable();
+            check(same(live, load(table)), name + ": interrupted compaction restores the unsaved edits");
+
+            // 接著編輯時完成壓縮，新日誌取代舊日誌，還原的編輯在下次開啟時仍是沒有儲存的編輯
+            CanvasPanel reopened = new CanvasPanel();
+            BaseShape[] objects = new BaseShape[table.size()];
+            reopened.loadTable(table, objects);
+            DiagramJournal resumed = recovery.resume(objects, reopened);
+            check(!Files.exists(nextOf(crashed)), name + ": resuming finishes the interrupted compaction");
+            resumed.sync();
+            recovery = DiagramJournal.recover(crashed);
+            check(recovery != null && same(saved, load(recovery.getTable())),
+                    name + ": resumed journal recovers the saved diagram");
+            resumed.close();
+            check(same(saved, load(open(crashed))), name + ": clean close after resuming keeps the saved diagram");
+        }
+        journal.close();
+    }
+
+    private void check(boolean condition, String description) {
+        System.out.println((condition ? "ok     " : "FAILED ") + description);
+        if (!condition) {
+            failures++;
+        }
+    }
+
+    private static Path journalOf(Path path) {
+        return path.resolveSibling(path.getFileName() + JournalFormat.SUFFIX);
+    }
+
+    private static Path nextOf(Path path) {
+        return path.resolveSibling(path.getFileName() + JournalFormat.NEXT_SUFFIX);
+    }
+
+    /**
+     * 建立含有形狀、群組與連結的畫布
+     */
+    private static CanvasPanel newCanvas() {
+        ShapeTable table = new ShapeTable(SHAPE_COUNT);
+        int previous = ShapeTable.NONE;
+        for (int i = 0; i < SHAPE_COUNT; i++) {
+            int x = (i % 40) * 150;
+            int y = (i / 40) * 120;
+            if (i % 10 == 0) {
+                int group = table.add(ShapeTable.GROUP, x, y, 100, 100);
+                int member = table.add(ShapeTable.RECT, x, y, 100, 40);
+                table.setName(member, "G" + i);
+                table.setParent(member, group);
+                int other = table.add(ShapeTable.OVAL, x, y + 60, 100, 40);
+                table.setParent(other, group);
+                previous = member;
+            } else {
+                int row = table.add(i % 2 == 0 ? ShapeTable.RECT : ShapeTable.OVAL, x, y, 100, 60);
+                table.setName(row, "S" + i);
+                if (previous != ShapeTable.NONE && i % 3 == 0) {
+                    int link = table.add(ShapeTable.ASSOCIATION, table.getX(previous), table.getY(previous), 0, 0);
+                    table.setEndpoints(link, previous, row);
+                }
+                previous = row;
+            }
+        }
+        CanvasPanel canvas = new CanvasPanel();
+        canvas.loadTable(table);
+        return canvas;
+    }
+
+    /**
+     * 移動所有形狀並記錄到日誌
+     */
+    private static void moveAll(CanvasPanel canvas, DiagramJournal journal, int delta) {
+        List<BaseShape> shapes = new ArrayList<>(canvas.getShapes());
+        for (BaseShape shape : shapes) {
+            if (!(shape instanceof Link)) {
+                shape.move(delta, delta);
+            }
+        }
+        for (BaseShape shape : shapes) {
+            canvas.updateLinksForShape(shape);
+        }
+        journal.edited(EditListener.Edit.MOVE, shapes, List.of());
+    }
+
+    /**
+     * 移動第 index 個不是連結的形狀並記錄到日誌
+     */
+    private static void moveOne(CanvasPanel canvas, DiagramJournal journal, int index, int delta) {
+        for (BaseShape shape : canvas.getShapes()) {
+            if (!(shape instanceof Link) && index-- == 0) {
+                shape.move(delta, delta);
+                canvas.updateLinksForShape(shape);
+                List<BaseShape> changed = new ArrayList<>();
+                changed.add(shape);
+                if (shape instanceof BasicShape basic) {
+                    // 畫布移動形狀時一併記錄跟著移動的連結
+                    for (Link link : basic.getOutgoingLinks()) {
+                        changed.add(link.getRoot());
+                    }
+                    for (Link link : basic.getIncomingLinks()) {
+                        changed.add(link.getRoot());
+                    }
+                }
+                journal.edited(EditListener.Edit.MOVE, changed, List.of());
+                return;
+            }
+        }
+    }
+
+    /**
+     * 以開啟圖表的方式讀取圖表：有已儲存的編輯時重播日誌，否則直接讀取圖表檔
+     */
+    private static ShapeTable open(Path path) throws IOException {
+        DiagramJournal.Recovery recovery = DiagramJournal.recover(path);
+        return recovery != null ? recovery.getTable() : new DiagramReader().read(path);
+    }
+
+    /**
+     * 將形狀表載入新的畫布再擷取，使列的順序與擷取畫布時相同
+     */
+    private static ShapeTable load(ShapeTable table) throws IOException {
+        CanvasPanel canvas = new CanvasPanel();
+        canvas.loadTable(table);
+        return canvas.captureTable();
+    }
+
+    /**
+     * 比較兩個擷取的形狀表；選取狀態不屬於日誌，頂層元素的深度在載入時會重新編號，都不比較
+     */
+    private static boolean same(ShapeTable expected, ShapeTable actual) {
+        if (expected.size() != actual.size()) {
+            return false;
+        }
+        for (int row = 0; row < expected.size(); row++) {
+            boolean matches = expected.getKind(row) == actual.getKind(row)
+                    && expected.getX(row) == actual.getX(row) && expected.getY(row) == actual.getY(row)
+                    && expected.getWidth(row) == actual.getWidth(row)
+                    && expected.getHeight(row) == actual.getHeight(row)
+                    && expected.getParent(row) == actual.getParent(row)
+                    && (expected.getParent(row) == ShapeTable.NONE || expected.getDepth(row) == actual.getDepth(row))
+                    && expected.getName(row).equals(actual.getName(row))
+                    && expected.getSource(row) == actual.getSource(row)
+                    && expected.getTarget(row) == actual.getTarget(row)
+                    && (expected.getFlags(row) & ~ShapeTable.FLAG_SELECTED)
+                    == (actual.getFlags(row) & ~ShapeTable.FLAG_SELECTED);
+            if (!matches) {
+                return false;
+            }
+        }
+        return true;
+    }
+}